@@ -0,0 +1,429 @@
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+
+/**
+ * Evaluates alert rules (see AlertRule) on every frame as it lands, on
+ * the sampler thread. A rule is bound once per target to the ids of the
+ * metrics it names, one instance per matching metric (the scaling metric
+ * is the first match), and bound again only when new metrics have been
+ * registered, so that a tick costs a few array reads and compares per
+ * instance. Each instance keeps O(1) state: the last n checks as bits,
+ * and the mean and variance of zscore(). An instance whose metric was
+ * missing from 10 frames in a row (its bean is gone, or the target is
+ * down) is resolved if it was firing, and dropped; it is bound again,
+ * with fresh state, as soon as its metrics are back.
+ *
+ * An alert is sent when an instance starts firing and when it resolves,
+ * as one JSON object, to every sink: a file it is appended to as a line,
+ * or an http:// URL it is POSTed to. Sinks are served by their own
+ * thread from a bounded queue; alerts that do not fit are dropped and
+ * counted, so that a slow webhook never delays a tick.
+ */
+public class AlertEngine implements Runnable {
+    static Logger log = Logger.getLogger(AlertEngine.class.getName());
+
+    static private final int QUEUE_SIZE = 1024;
+    static private final int HTTP_TIMEOUT_MS = 5000; // [ms]
+    static private final int MISSING_EVALUATIONS = 10;
+
+    interface Sink {
+        void send(String alert) throws IOException;
+        void close();
+    }
+
+    /* Appends each alert to a file, one line each */
+    static class FileSink implements Sink {
+        private final Writer out_;
+
+        FileSink(String file) throws IOException {
+            out_ = new FileWriter(file, true);
+        }
+
+        public void send(String alert) throws IOException {
+            out_.write(alert);
+            out_.write('\n');
+            out_.flush();
+        }
+
+        public void close() {
+            try {
+                out_.close();
+            } catch (IOException ex) {
+                log.error(ex);
+            }
+        }
+    }
+
+    /* POSTs each alert to a URL */
+    static class WebhookSink implements Sink {
+        private final URL url_;
+
+        WebhookSink(String url) throws IOException {
+            url_ = new URL(url);
+        }
+
+        public void send(String alert) throws IOException {
+            HttpURLConnection conn = (HttpURLConnection)url_.openConnection();
+            try {
+                conn.setConnectTimeout(HTTP_TIMEOUT_MS);
+                conn.setReadTimeout(HTTP_TIMEOUT_MS);
+                conn.setRequestMethod("POST");
+                conn.setDoOutput(true);
+                conn.setRequestProperty("Content-Type", "application/json");
+                OutputStream out = conn.getOutputStream();
+                out.write(alert.getBytes("UTF-8"));
+                out.close();
+                int status = conn.getResponseCode();
+                if (status < 200 || 300 <= status)
+                    throw new IOException("HTTP " + status + " from " + url_);
+            } finally {
+                conn.disconnect();
+            }
+        }
+
+        public void close() {
+        }
+    }
+
+    /* A rule bound to the metrics of one target */
+    private static class Instance {
+        final AlertRule rule;
+        final int id;
+        final int scaleId;      // -1 unless the rule has a scaling metric
+        final String key;       // rule index and ids, unique across targets
+        long bits;              // the last checks, newest lowest
+        int checks;             // up to rule.n
+        long samples;
+        double mean;            // of zscore()
+        double variance;
+        double value;           // the last one compared
+        boolean firing;
+        int missing;            // frames in a row without the metrics
+
+        Instance(AlertRule rule, int id, int scaleId, String key) {
+            this.rule = rule;
+            this.id = id;
+            this.scaleId = scaleId;
+            this.key = key;
+        }
+
+        /* Checks the frame's values; true if the instance started firing or resolved */
+        boolean update(SampleFrame frame) {
+            if (!frame.isNumber(id) || (0 <= scaleId && !frame.isNumber(scaleId))) {
+                missing++;
+                return false;
+            }
+            missing = 0;
+            double x = frame.doubleValue(id);
+            if (Double.isNaN(x))
+                return false;
+            boolean holds;
+            if (0 < rule.window) {
+                if (samples == 0)
+                    mean = x;
+                double deviation = Math.sqrt(variance);
+                value = (0 < deviation) ? (x - mean) / deviation : 0;
+                // incremental EWMA mean and variance
+                double diff = x - mean;
+                double increment = rule.alpha * diff;
+                mean += increment;
+                variance = (1 - rule.alpha) * (variance + diff * increment);
+                // no verdict before a window of samples
+                holds = (rule.window <= samples++) &&
+                    rule.holds(value, (0 <= scaleId) ? rule.number * frame.doubleValue(scaleId) : rule.number);
+            }
+            else {
+                value = x;
+                holds = rule.holds(x, (0 <= scaleId) ? rule.number * frame.doubleValue(scaleId) : rule.number);
+            }
+            bits = ((bits << 1) | (holds ? 1 : 0)) & rule.mask;
+            if (checks < rule.n)
+                checks++;
+            boolean fire = (checks == rule.n && rule.k <= Long.bitCount(bits));
+            if (fire == firing)
+                return false;
+            firing = fire;
+            return true;
+        }
+    }
+
+    /* The instances of one target */
+    private static class Binding {
+        int registrySize = -1;  // when bound
+        Instance[] instances = new Instance[0];
+        Instance[] dropped = new Instance[0];  // bound again once their metrics are back
+
+        /* Whether the metrics of a dropped instance are in the frame again */
+        boolean returned(SampleFrame frame) {
+            for (Instance instance : dropped) {
+                if (frame.isNumber(instance.id) && (instance.scaleId < 0 || frame.isNumber(instance.scaleId)))
+                    return true;
+            }
+            return false;
+        }
+    }
+
+    private final List<AlertRule> rules_;
+    private final MetricRegistry registry_;
+    private final List<Sink> sinks_;
+    private final Map<SampleFrame, Binding> bindings_;    // sampler thread only
+    private final ConcurrentMap<String, String> firing_;  // key -> alert, for getFiring()
+    private final BlockingQueue<String> queue_;
+    private final Thread thread_;
+    private volatile boolean running_;
+    private LatencyHistogram evaluateNs_;
+    private AtomicLong alerts_;
+    private AtomicLong dropped_;
+    private AtomicLong errors_;
+
+    public AlertEngine(List<AlertRule> rules, MetricRegistry registry) {
+        rules_ = rules;
+        registry_ = registry;
+        sinks_ = new ArrayList<Sink>();
+        bindings_ = new IdentityHashMap<SampleFrame, Binding>();
+        firing_ = new ConcurrentHashMap<String, String>();
+        queue_ = new ArrayBlockingQueue<String>(QUEUE_SIZE);
+        thread_ = new Thread(this, "alert-sinks");
+        thread_.setDaemon(true);
+        setStats(new MonitorStats());
+    }
+
+    /*
+     * The engine for the rules file and comma-separated sinks (files or
+     * http:// URLs), null if rulesFile is null or cannot be read
+     */
+    static public AlertEngine open(String rulesFile, String sinks, MetricRegistry registry) {
+        if (rulesFile == null)
+            return null;
+        AlertEngine engine;
+        try {
+            engine = new AlertEngine(AlertRule.load(rulesFile), registry);
+        } catch (Exception ex) {
+            log.error("Cannot read alert rules, alerting disabled: " + ex);
+            return null;
+        }
+        if (sinks != null) {
+            for (String sink : sinks.split(",")) {
+                try {
+                    engine.addSink(sink.trim());
+                } catch (IOException ex) {
+                    log.error("Cannot open alert sink " + sink + ": " + ex);
+                }
+            }
+        }
+        return engine;
+    }
+
+    public void addSink(String spec) throws IOException {
+        if (spec.startsWith("http://") || spec.startsWith("https://"))
+            sinks_.add(new WebhookSink(spec));
+        else
+            sinks_.add(new FileSink(spec));
+    }
+
+    /* Where to record the evaluation time per frame, alerts and their drops */
+    public void setStats(MonitorStats stats) {
+        evaluateNs_ = stats.histogram("alerts.evaluate");
+        alerts_ = stats.counter("alerts");
+        dropped_ = stats.counter("alerts.dropped");
+        errors_ = stats.counter(MonitorStats.ERRORS + "alerts");
+    }
+
+    public int getNumRules() {
+        return rules_.size();
+    }
+
+    public void start() {
+        running_ = true;
+        thread_.start();
+    }
+
+    /* Sends what is queued, then closes the sinks */
+    public void close() {
+        running_ = false;
+        thread_.interrupt();
+        try {
+            thread_.join();
+        } catch (InterruptedException ex) {
+            log.error(ex);
+        }
+        for (Sink sink : sinks_)
+            sink.close();
+    }
+
+    /* Evaluates the rules on a filled frame; every call must be on the same thread */
+    public void evaluate(SampleFrame frame) {
+        long start = System.nanoTime();
+        Binding binding = bindings_.get(frame);
+        if (binding == null) {
+            binding = new Binding();
+            bindings_.put(frame, binding);
+        }
+        int size = registry_.size();
+        // a target back from an outage registers no new ids
+        if (binding.registrySize != size || binding.returned(frame))
+            bind(binding, frame, size);
+        int gone = 0;
+        for (Instance instance : binding.instances) {
+            if (instance.update(frame)) {
+                changed(instance, frame.getTime());
+            }
+            else if (MISSING_EVALUATIONS <= instance.missing) {
+                if (instance.firing) {
+                    instance.firing = false;
+                    changed(instance, frame.getTime());
+                }
+                gone++;
+            }
+        }
+        if (0 < gone)
+            drop(binding, gone);
+        evaluateNs_.recordSince(start);
+    }
+
+    /* The alerts firing now, one per line */
+    public String getFiring() {
+        StringBuilder sb = new StringBuilder();
+        for (String alert : firing_.values())
+            sb.append(alert).append('\n');
+        return sb.toString();
+    }
+
+    public void run() {
+        while (running_ || !queue_.isEmpty()) {
+            String alert;
+            try {
+                alert = running_ ? queue_.take() : queue_.poll();
+            } catch (InterruptedException ex) {
+                continue;   // closing: send the rest
+            }
+            if (alert == null)
+                break;
+            for (Sink sink : sinks_) {
+                try {
+                    sink.send(alert);
+                } catch (IOException ex) {
+                    errors_.incrementAndGet();
+                    log.error("Alert sink: " + ex);
+                }
+            }
+        }
+    }
+
+    /*
+     * Binds every rule to the metrics of the frame it names, keeping the
+     * state of the instances bound before
+     */
+    private void bind(Binding binding, SampleFrame frame, int registrySize) {
+        Map<String, Instance> old = new HashMap<String, Instance>();
+        for (Instance instance : binding.instances)
+            old.put(instance.key, instance);
+        int[] ids = new int[frame.size()];
+        String[] names = new String[frame.size()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = frame.idAt(i);
+            names[i] = registry_.nameOf(ids[i]);
+        }
+        Set<String> bound = new HashSet<String>();
+        List<Instance> instances = new ArrayList<Instance>();
+        for (int r = 0; r < rules_.size(); r++) {
+            AlertRule rule = rules_.get(r);
+            int scaleId = -1;
+            if (rule.scaleMetric != null) {
+                for (int i = 0; i < ids.length && scaleId < 0; i++) {
+                    if (rule.matchesScale(names[i]))
+                        scaleId = ids[i];
+                }
+                if (scaleId < 0)
+                    continue;
+            }
+            for (int i = 0; i < ids.length; i++) {
+                if (!rule.matchesMetric(names[i]) || ids[i] == scaleId)
+                    continue;
+                String key = r + " " + ids[i] + " " + scaleId;
+                Instance instance = old.remove(key);
+                bound.add(key);
+                instances.add((instance != null) ? instance : new Instance(rule, ids[i], scaleId, key));
+            }
+        }
+        // those whose metrics missed this frame (a failed read) keep their
+        // state too, until they have missed MISSING_EVALUATIONS
+        instances.addAll(old.values());
+        binding.instances = instances.toArray(new Instance[instances.size()]);
+        binding.registrySize = registrySize;
+        List<Instance> dropped = new ArrayList<Instance>();
+        for (Instance instance : binding.dropped) {
+            if (!bound.contains(instance.key))
+                dropped.add(instance);
+        }
+        binding.dropped = dropped.toArray(new Instance[dropped.size()]);
+        if (log.isDebugEnabled())
+            log.debug("Bound " + rules_.size() + " alert rules to " + binding.instances.length +
+                      " instances over " + ids.length + " metrics");
+    }
+
+    /* Moves the instances whose metrics have been missing for too long to the dropped ones */
+    private void drop(Binding binding, int gone) {
+        Instance[] instances = new Instance[binding.instances.length - gone];
+        Instance[] dropped = Arrays.copyOf(binding.dropped, binding.dropped.length + gone);
+        int i = 0;
+        int d = binding.dropped.length;
+        for (Instance instance : binding.instances) {
+            if (instance.missing < MISSING_EVALUATIONS) {
+                instances[i++] = instance;
+                continue;
+            }
+            dropped[d++] = instance;
+            if (log.isDebugEnabled())
+                log.debug("Dropped alert " + instance.rule.name + " on " + registry_.nameOf(instance.id) +
+                          ", missing from " + instance.missing + " frames");
+        }
+        binding.instances = instances;
+        binding.dropped = dropped;
+    }
+
+    private void changed(Instance instance, long time) {
+        String metric = registry_.nameOf(instance.id);
+        String alert = "{\"time\":" + time +
+            ",\"rule\":\"" + escape(instance.rule.name) + "\"" +
+            ",\"state\":\"" + (instance.firing ? "firing" : "resolved") + "\"" +
+            ",\"metric\":\"" + escape(metric) + "\"" +
+            ",\"value\":" + (Double.isInfinite(instance.value) ? "null" : instance.value) +
+            ",\"expr\":\"" + escape(instance.rule.line) + "\"}";
+        if (instance.firing) {
+            log.warn("Alert " + instance.rule.name + " firing on " + metric + ": " + instance.value);
+            firing_.put(instance.key, alert);
+        }
+        else {
+            log.info("Alert " + instance.rule.name + " resolved on " + metric + ": " + instance.value);
+            firing_.remove(instance.key);
+        }
+        alerts_.incrementAndGet();
+        if (!sinks_.isEmpty() && !queue_.offer(alert))
+            dropped_.incrementAndGet();
+    }
+
+    static private String escape(String s) {
+        return s.replace("\\", "\\\\").replace("\"", "\\\"");
+    }
+}
@@ -0,0 +1,135 @@
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+
+/**
+ * One line of an alert rules file:
+ *
+ *   <name>: <metric> <op> <number> [* <metric>] [for <k> of <n>]
+ *   <name>: zscore(<metric>[, <n>]) <op> <number> [for <k> of <n>]
+ *
+ * op is one of < <= > >=. A metric is a substring of metric names, with
+ * * for any characters: "name=BytesOutPerSec*#OneMinuteRate" matches the
+ * broker-wide bean and every per-topic one, while
+ * "name=BytesOutPerSec,type=BrokerTopicMetrics#OneMinuteRate" matches only
+ * the broker-wide bean as KafkaMonitor names it. "* <metric>" scales the
+ * number by another metric of the same target, so "BytesOut < 0.9 *
+ * BytesIn" is BytesOut below 90% of BytesIn. zscore() compares how many standard
+ * deviations a value is off the exponentially weighted mean and variance
+ * of the last n samples (60 if not given), so it keeps two numbers, not n
+ * samples. "for k of n" fires when the condition held in at least k of
+ * the last n samples (n up to 64), otherwise on every sample it holds.
+ * Lines starting with # and empty lines are skipped.
+ */
+public class AlertRule {
+
+    static private final int MAX_N = 64;
+    static private final int ZSCORE_WINDOW = 60;   // [samples]
+    static private final Pattern RULE = Pattern.compile(
+        "([\\w.-]+)\\s*:\\s*(?:zscore\\(\\s*([^,()\\s]+)\\s*(?:,\\s*(\\d+)\\s*)?\\)|(\\S+?))" +
+        "\\s*(<=|>=|<|>)\\s*([-+]?[0-9.]+(?:[eE][-+]?\\d+)?)" +
+        "(?:\\s*\\*\\s*(\\S+))?(?:\\s+for\\s+(\\d+)\\s+of\\s+(\\d+))?\\s*");
+
+    static final int LT = 0;
+    static final int LE = 1;
+    static final int GT = 2;
+    static final int GE = 3;
+
+    final String name;
+    final String line;
+    final String metric;
+    final String scaleMetric;   // null unless the number is scaled by a metric
+    private final String[] metricParts;     // between the *s
+    private final String[] scaleParts;
+    final int op;
+    final double number;
+    final int window;           // of zscore(), 0 for the value itself
+    final double alpha;         // EWMA weight of a new sample, 2 / (window + 1)
+    final int k;
+    final int n;
+    final long mask;            // the last n bits
+
+    public AlertRule(String line) {
+        Matcher m = RULE.matcher(line.trim());
+        if (!m.matches())
+            throw new IllegalArgumentException("Not an alert rule: " + line);
+        this.line = line.trim();
+        name = m.group(1);
+        boolean zscore = (m.group(2) != null);
+        metric = zscore ? m.group(2) : m.group(4);
+        window = zscore ? ((m.group(3) != null) ? Integer.parseInt(m.group(3)) : ZSCORE_WINDOW) : 0;
+        alpha = 2.0 / (window + 1);
+        String opText = m.group(5);
+        op = opText.equals("<") ? LT : opText.equals("<=") ? LE : opText.equals(">") ? GT : GE;
+        number = Double.parseDouble(m.group(6));
+        scaleMetric = m.group(7);
+        k = (m.group(8) != null) ? Integer.parseInt(m.group(8)) : 1;
+        n = (m.group(9) != null) ? Integer.parseInt(m.group(9)) : 1;
+        if (n <= 0 || MAX_N < n || k <= 0 || n < k)
+            throw new IllegalArgumentException("Need 0 < k <= n <= " + MAX_N + ": " + line);
+        if (zscore && window <= 1)
+            throw new IllegalArgumentException("Need a zscore window of 2 or more: " + line);
+        mask = (n == MAX_N) ? -1L : (1L << n) - 1;
+        metricParts = metric.split("\\*");
+        scaleParts = (scaleMetric != null) ? scaleMetric.split("\\*") : null;
+    }
+
+    public boolean matchesMetric(String name) {
+        return matches(name, metricParts);
+    }
+
+    public boolean matchesScale(String name) {
+        return matches(name, scaleParts);
+    }
+
+    /* Whether the parts occur in name in order */
+    static private boolean matches(String name, String[] parts) {
+        int from = 0;
+        for (String part : parts) {
+            int at = name.indexOf(part, from);
+            if (at < 0)
+                return false;
+            from = at + part.length();
+        }
+        return true;
+    }
+
+    public boolean holds(double value, double rhs) {
+        switch (op) {
+        case LT:
+            return value < rhs;
+        case LE:
+            return value <= rhs;
+        case GT:
+            return value > rhs;
+        default:
+            return value >= rhs;
+        }
+    }
+
+    public String toString() {
+        return line;
+    }
+
+    /* The rules of a file, one per line */
+    static public List<AlertRule> load(String file) throws IOException {
+        List<AlertRule> rules = new ArrayList<AlertRule>();
+        BufferedReader in = new BufferedReader(new FileReader(file));
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.trim().isEmpty() || line.trim().startsWith("#"))
+                    continue;
+                rules.add(new AlertRule(line));
+            }
+        } finally {
+            in.close();
+        }
+        return rules;
+    }
+}
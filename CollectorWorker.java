@@ -0,0 +1,426 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+
+/**
+ * Collector of a Coordinator's cluster: samples the targets the
+ * coordinator assigns to it, as JmxMonitor samples its own, and forwards
+ * every sample to the coordinator instead of serving it.
+ *
+ *   java [-Djmxmon.worker.id=<id>] CollectorWorker <coordinator host:port> <beans file> [sampling interval ms]
+ *
+ * Every tick starts with a heartbeat, whose answer is the current
+ * assignment; targets that came are opened in the background, targets
+ * that went are closed. The coordinator connection is reopened with
+ * backoff when it breaks, and the samples of the ticks in between are
+ * lost. The id defaults to the JVM's "pid@host"; on a clean shutdown the
+ * worker leaves the cluster so that its targets move at once.
+ *
+ * Lines go to the coordinator through a bounded queue, written by a
+ * sender thread, so that a stalled coordinator never holds up sampling;
+ * lines that do not fit are dropped and counted (coordinator.dropped).
+ */
+public class CollectorWorker {
+    static Logger log = Logger.getLogger(CollectorWorker.class.getName());
+
+    static private final long SAMPLING_INTERVAL_MS = 3000; // [ms]
+    static private final int SAMPLING_THREADS = 8;
+    static private final int HISTORY_CAPACITY = 60; // [samples per metric], for DerivedMetrics
+    static private final double ADAPTIVE_STABLE_PERCENT = 1.0;
+    static private final int CONNECT_TIMEOUT_MS = 1000; // [ms]
+    static private final long MIN_BACKOFF_MS = 1000;  // [ms]
+    static private final long MAX_BACKOFF_MS = 60000; // [ms]
+    static private final int NAMES_CHUNK_CHARS = 32 * 1024;  // of a "names" line, well below the coordinator's limit
+    static private final int SEND_QUEUE_LINES = 1024;
+
+    private final String id_;
+    private final String coordinatorHost_;
+    private final int coordinatorPort_;
+    private final List<String[]> beanAttrList_;
+    private final long intervalMs_;
+    private final long periodMs_;
+    private final MetricRegistry registry_;
+    private final MonitorStats stats_;
+    private final DerivedMetrics derived_;
+    private final ConnectionManager manager_;
+    private final ExecutorService executor_;
+    private final Sampler sampler_;
+    // on the sampler thread only
+    private final Map<String, Target> targets_;     // by target, in assignment order
+    private final Map<String, int[]> sentIds_;      // metric ids last sent in "names", by target
+    private List<String> lastAssigned_;
+    private long tick_;
+    private Socket socket_;                         // null while disconnected
+    private BlockingQueue<String> queue_;           // of the sender of socket_
+    private Thread sender_;
+    private long queued_;                           // lines queued to the sender
+    private AtomicLong flushed_;                    // lines it wrote and flushed
+    private final AtomicLong dropped_;
+    private long reconnectAt_;
+    private long backoffMs_;
+    // set by the reader thread from the coordinator's answers
+    private volatile List<String> assigned_;
+    private volatile Socket closedSocket_;          // closed by the coordinator
+    private final Set<String> resend_;              // targets whose names the coordinator lacks
+
+    public CollectorWorker(String id, String coordinator, List<String[]> beanAttrList, long intervalMs) {
+        id_ = id;
+        int colon = coordinator.lastIndexOf(':');
+        coordinatorHost_ = coordinator.substring(0, colon);
+        coordinatorPort_ = Integer.parseInt(coordinator.substring(colon + 1));
+        beanAttrList_ = beanAttrList;
+        intervalMs_ = intervalMs;
+        periodMs_ = Target.periodOf(beanAttrList, intervalMs);
+        registry_ = new MetricRegistry();
+        stats_ = new MonitorStats();
+        derived_ = new DerivedMetrics(registry_, new MetricHistory(registry_, HISTORY_CAPACITY));
+        manager_ = new ConnectionManager();
+        stats_.setConnectionManager(manager_);
+        dropped_ = stats_.counter("coordinator.dropped");
+        executor_ = Executors.newFixedThreadPool(Integer.getInteger("jmxmon.threads", SAMPLING_THREADS));
+        targets_ = new LinkedHashMap<String, Target>();
+        sentIds_ = new HashMap<String, int[]>();
+        backoffMs_ = MIN_BACKOFF_MS;
+        assigned_ = Collections.emptyList();
+        lastAssigned_ = assigned_;
+        resend_ = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        sampler_ = new Sampler(periodMs_, new Runnable() {
+                public void run() {
+                    sample();
+                }
+            });
+        stats_.setSampler(sampler_);
+        log.info("Worker " + id_ + " of coordinator " + coordinator +
+                 ", sampling interval " + intervalMs_ + " ms" +
+                 ((periodMs_ != intervalMs_) ? " (ticks of " + periodMs_ + " ms)" : ""));
+    }
+
+    private void sample() {
+        long now = System.currentTimeMillis();
+        if (connect(now))
+            send("heartbeat " + id_ + " " + intervalMs_);
+        assign(assigned_);
+
+        tick_++;
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+        for (Target target : targets_.values()) {
+            target.getFrame().reset(now);
+            target.beginTick(tick_);
+            tasks.add(target);
+        }
+        try {
+            for (Future<Void> result : executor_.invokeAll(tasks))
+                result.get();
+        } catch (InterruptedException ex) {
+            log.error(ex);
+            sampler_.stop();
+            return;
+        } catch (ExecutionException ex) {
+            log.error(ex.getCause());
+        }
+
+        for (Map.Entry<String, Target> entry : targets_.entrySet()) {
+            Target target = entry.getValue();
+            target.copyValues();
+            if (0 < target.getFrame().size())
+                forward(entry.getKey(), target.getFrame());
+        }
+    }
+
+    /*
+     * Opens the targets newly assigned and closes the ones no longer
+     * assigned. Names are sent again after any change, as the coordinator
+     * forgets them when a target moves, and for the targets it asked for.
+     */
+    private void assign(List<String> assigned) {
+        if (!assigned.equals(lastAssigned_)) {
+            sentIds_.clear();
+            lastAssigned_ = assigned;
+        }
+        for (String name : resend_) {
+            resend_.remove(name);
+            sentIds_.remove(name);
+        }
+        int added = 0, removed = 0;
+        for (String name : new ArrayList<String>(targets_.keySet())) {
+            if (!assigned.contains(name)) {
+                manager_.remove(targets_.remove(name).getClient());
+                sentIds_.remove(name);
+                removed++;
+            }
+        }
+        for (String name : assigned) {
+            if (targets_.containsKey(name))
+                continue;
+            // metric names carry the target, as the coordinator merges all of them
+            JmxClient client = name.matches("\\d+") ?
+                new JmxClient(Integer.parseInt(name), registry_, name + "/") :
+                new JmxClient(name, registry_, name + "/");
+            client.setStats(stats_);
+            Target target = new Target(client, name, manager_, beanAttrList_, derived_);
+            target.setSchedule(periodMs_, intervalMs_,
+                               Double.parseDouble(System.getProperty("jmxmon.adaptive.percent",
+                                                                     Double.toString(ADAPTIVE_STABLE_PERCENT))));
+            targets_.put(name, target);
+            manager_.openLater(client);
+            added++;
+        }
+        if (0 < added || 0 < removed)
+            log.info("Assigned " + targets_.size() + " targets (" + added + " new, " +
+                     removed + " gone): " + targets_.keySet());
+    }
+
+    /*
+     * Sends the target's names if they changed since they were last sent,
+     * then its values. Names go in chunks of "names <worker> <target>\t
+     * <offset>\t<total>\t<name>...", as a target with pattern beans can
+     * have more than one request line can hold.
+     */
+    private void forward(String name, SampleFrame frame) {
+        int[] ids = new int[frame.size()];
+        for (int i = 0; i < ids.length; i++)
+            ids[i] = frame.idAt(i);
+        StringBuilder sb = new StringBuilder();
+        if (!Arrays.equals(ids, sentIds_.get(name))) {
+            int offset = 0;
+            do {
+                sb.setLength(0);
+                sb.append("names ").append(id_).append(' ').append(name)
+                    .append('\t').append(offset).append('\t').append(ids.length);
+                // at least one name per chunk, however long
+                do {
+                    sb.append('\t').append(registry_.nameOf(ids[offset++]));
+                } while (offset < ids.length &&
+                         sb.length() + registry_.nameOf(ids[offset]).length() < NAMES_CHUNK_CHARS);
+                if (!send(sb.toString()))
+                    return;
+            } while (offset < ids.length);
+            sentIds_.put(name, ids);
+            sb.setLength(0);
+        }
+        sb.append("sample ").append(id_).append(' ').append(name).append('\t').append(frame.getTime());
+        for (int id : ids) {
+            sb.append('\t');
+            int start = sb.length();
+            SampleFormatter.appendValue(sb, frame, id);
+            if (frame.typeOf(id) == SampleFrame.OBJECT) {
+                // tabs and line breaks would split the value
+                for (int i = start; i < sb.length(); i++) {
+                    char c = sb.charAt(i);
+                    if (c == '\t' || c == '\n' || c == '\r')
+                        sb.setCharAt(i, ' ');
+                }
+            }
+        }
+        send(sb.toString());
+    }
+
+    /* Returns true if connected to the coordinator, trying to connect when the backoff allows */
+    private boolean connect(long now) {
+        if (socket_ != null && socket_ == closedSocket_)
+            disconnect(new IOException("Connection closed by coordinator"));
+        if (socket_ != null)
+            return true;
+        if (now < reconnectAt_)
+            return false;
+        try {
+            Socket socket = new Socket();
+            socket.connect(new InetSocketAddress(coordinatorHost_, coordinatorPort_), CONNECT_TIMEOUT_MS);
+            socket.setTcpNoDelay(true);
+            startReader(socket);
+            startSender(socket);
+            socket_ = socket;
+            sentIds_.clear();
+            backoffMs_ = MIN_BACKOFF_MS;
+            log.info("Connected to coordinator " + coordinatorHost_ + ":" + coordinatorPort_);
+            return true;
+        } catch (IOException ex) {
+            reconnectAt_ = now + backoffMs_;
+            log.warn("Cannot connect to coordinator (" + ex + "), retrying in " + backoffMs_ + " ms");
+            backoffMs_ = Math.min(2 * backoffMs_, MAX_BACKOFF_MS);
+            return false;
+        }
+    }
+
+    /* Reads the coordinator's answers: assignments, requests for names, and the ok of leave */
+    private void startReader(final Socket socket) throws IOException {
+        final BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+        Thread thread = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        String line;
+                        while ((line = in.readLine()) != null) {
+                            if (line.startsWith("assign ")) {
+                                String targets = line.substring("assign ".length());
+                                assigned_ = targets.isEmpty() ?
+                                    Collections.<String>emptyList() : Arrays.asList(targets.split("\t"));
+                            }
+                            else if (line.startsWith("resend ")) {
+                                resend_.add(line.substring("resend ".length()));
+                            }
+                            else if (!line.equals("ok")) {
+                                log.warn("Coordinator: " + line);
+                            }
+                        }
+                    } catch (IOException ex) {
+                        log.debug(ex);
+                    }
+                    closedSocket_ = socket;
+                }
+            }, "coordinator-reader");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /* Writes the queued lines, flushing whenever the queue runs empty, until the socket breaks */
+    private void startSender(final Socket socket) throws IOException {
+        final BufferedWriter out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), "UTF-8"));
+        final BlockingQueue<String> queue = new ArrayBlockingQueue<String>(
+            Integer.getInteger("jmxmon.worker.queue.lines", SEND_QUEUE_LINES));
+        final AtomicLong flushed = new AtomicLong();
+        Thread thread = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        long written = 0;
+                        while (true) {
+                            String line = queue.take();
+                            out.write(line);
+                            out.write('\n');
+                            written++;
+                            if (queue.isEmpty()) {
+                                out.flush();
+                                flushed.set(written);
+                            }
+                        }
+                    } catch (InterruptedException ex) {
+                        ;   // disconnected
+                    } catch (IOException ex) {
+                        log.debug(ex);
+                        closedSocket_ = socket;
+                    }
+                }
+            }, "coordinator-sender");
+        thread.setDaemon(true);
+        thread.start();
+        queue_ = queue;
+        sender_ = thread;
+        queued_ = 0;
+        flushed_ = flushed;
+    }
+
+    /*
+     * Queues the line for the sender; returns false if disconnected or the
+     * queue is full, in which case the line is dropped
+     */
+    private boolean send(String line) {
+        if (socket_ == null)
+            return false;
+        if (queue_.offer(line)) {
+            queued_++;
+            return true;
+        }
+        if (dropped_.incrementAndGet() == 1)
+            log.warn("Coordinator does not keep up, dropping lines (coordinator.dropped)");
+        return false;
+    }
+
+    /* Waits up to timeoutMs for the sender to write and flush what is queued */
+    private void drain(long timeoutMs) {
+        long end = System.currentTimeMillis() + timeoutMs;
+        while (socket_ != null && flushed_.get() < queued_ && System.currentTimeMillis() < end) {
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException ex) {
+                return;
+            }
+        }
+    }
+
+    private void disconnect(IOException reason) {
+        stats_.counter(MonitorStats.ERRORS + "coordinator").incrementAndGet();
+        log.error("Lost coordinator: " + reason);
+        try {
+            socket_.close();
+        } catch (IOException ex) {
+            ;
+        }
+        sender_.interrupt();
+        socket_ = null;
+        reconnectAt_ = System.currentTimeMillis() + backoffMs_;
+    }
+
+    public void doMonitor() {
+        final Thread main = Thread.currentThread();
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+                public void run() {
+                    sampler_.stop();
+                    try {
+                        main.join(CONNECT_TIMEOUT_MS);  // let it leave the cluster
+                    } catch (InterruptedException ex) {
+                        ;
+                    }
+                }
+            }));
+        try {
+            sampler_.start();
+            sampler_.join();
+        } catch (InterruptedException ex) {
+            log.error(ex);
+        }
+        // hand the targets over at once rather than after missed heartbeats
+        if (send("leave " + id_))
+            drain(CONNECT_TIMEOUT_MS);
+        executor_.shutdown();
+        manager_.close();
+        log.info("Self stats: " + stats_.getSummary() + ", lines dropped " + dropped_.get());
+    }
+
+    public static void main(String[] args) {
+        if (args.length < 2) {
+            System.err.println("Usage: java [-Djmxmon.worker.id=<id>] CollectorWorker " +
+                               "[coordinator host:port] [beans file] ([sampling interval ms])");
+            System.exit(1);
+        }
+
+        List<String[]> beanAttrList = new ArrayList<String[]>();
+        try {
+            BufferedReader reader = new BufferedReader(new FileReader(args[1]));
+            String line;
+            while ((line = reader.readLine()) != null)
+                beanAttrList.add(line.split("#"));
+            reader.close();
+        } catch (IOException ex) {
+            log.error(ex);
+            System.exit(1);
+        }
+        long intervalMs = (3 <= args.length) ? Long.parseLong(args[2]) : SAMPLING_INTERVAL_MS;
+        String id = System.getProperty("jmxmon.worker.id", ManagementFactory.getRuntimeMXBean().getName());
+        new CollectorWorker(id, args[0], beanAttrList, intervalMs).doMonitor();
+    }
+}
@@ -0,0 +1,191 @@
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.Notification;
+import javax.management.NotificationListener;
+import javax.management.remote.JMXConnectionNotification;
+
+import org.apache.log4j.Logger;
+
+
+/**
+ * Keeps one connection per JmxClient and reopens broken ones in the
+ * background with exponential backoff, so that the sampler never blocks on
+ * a connect: it just skips the clients that are not up.
+ *
+ * A connection counts as broken when a read fails with an IOException
+ * (reported through reportFailure()) or when the connector sends a FAILED
+ * or CLOSED notification.
+ */
+public class ConnectionManager {
+    static Logger log = Logger.getLogger(ConnectionManager.class.getName());
+
+    static private final long MIN_BACKOFF_MS = 1000;  // [ms]
+    static private final long MAX_BACKOFF_MS = 60000; // [ms]
+
+    private static class Connection {
+        volatile boolean up = false;
+        boolean reconnecting = false;   // guarded by the Connection
+        long backoffMs = MIN_BACKOFF_MS;
+    }
+
+    private Map<JmxClient, Connection> connections_;
+    private ScheduledExecutorService reconnector_;
+    private NotificationListener listener_;
+    private AtomicLong reconnects_;
+    private volatile boolean closed_;
+
+    public ConnectionManager() {
+        connections_ = new ConcurrentHashMap<JmxClient, Connection>();
+        reconnector_ = Executors.newSingleThreadScheduledExecutor();
+        reconnects_ = new AtomicLong();
+        closed_ = false;
+        listener_ = new NotificationListener() {
+                public void handleNotification(Notification notif, Object handback) {
+                    String type = notif.getType();
+                    if (type.equals(JMXConnectionNotification.FAILED) ||
+                        type.equals(JMXConnectionNotification.CLOSED))
+                        reportFailure((JmxClient)handback, type);
+                }
+            };
+    }
+
+    public void add(JmxClient client) {
+        client.setConnectionListener(listener_);
+        connections_.put(client, new Connection());
+    }
+
+    /* Opens every client once; the ones that fail are retried in the background */
+    public void openAll() {
+        for (JmxClient client : connections_.keySet()) {
+            try {
+                client.open();
+                connections_.get(client).up = true;
+            } catch (IOException ex) {
+                reportFailure(client, ex.toString());
+            }
+        }
+    }
+
+    /**
+     * Opens a client added while running on the background thread, so the
+     * caller does not block; if that fails it is retried like a reconnect.
+     */
+    public void openLater(final JmxClient client) {
+        final Connection conn = connections_.get(client);
+        if (conn == null || closed_)
+            return;
+        reconnector_.execute(new Runnable() {
+                public void run() {
+                    if (closed_ || connections_.get(client) != conn)
+                        return;
+                    try {
+                        client.open();
+                        conn.up = true;
+                    } catch (IOException ex) {
+                        reportFailure(client, ex.toString());
+                    }
+                }
+            });
+    }
+
+    /* Stops looking after a client and closes it in the background */
+    public void remove(final JmxClient client) {
+        Connection conn = connections_.remove(client);
+        if (conn == null || closed_)
+            return;
+        conn.up = false;
+        reconnector_.execute(new Runnable() {
+                public void run() {
+                    try {
+                        client.close();
+                    } catch (IOException ex) {
+                        log.error(ex);
+                    }
+                }
+            });
+    }
+
+    public boolean isUp(JmxClient client) {
+        Connection conn = connections_.get(client);
+        return conn != null && conn.up;
+    }
+
+    /* Total number of successful reconnects */
+    public long getReconnects() {
+        return reconnects_.get();
+    }
+
+    /**
+     * Marks the connection of client as broken and schedules a reconnect,
+     * unless one is pending already. Safe to call from any thread.
+     */
+    public void reportFailure(JmxClient client, String reason) {
+        Connection conn = connections_.get(client);
+        if (conn == null || closed_)
+            return;
+        synchronized (conn) {
+            conn.up = false;
+            if (conn.reconnecting)
+                return;
+            conn.reconnecting = true;
+        }
+        client.getStats().counter(MonitorStats.ERRORS + "connection").incrementAndGet();
+        log.error("Connection to " + client.getTargetName() + " broken (" + reason +
+                  "), reconnecting in " + conn.backoffMs + " ms");
+        scheduleReconnect(client, conn);
+    }
+
+    private void scheduleReconnect(final JmxClient client, final Connection conn) {
+        reconnector_.schedule(new Runnable() {
+                public void run() {
+                    reconnect(client, conn);
+                }
+            }, conn.backoffMs, TimeUnit.MILLISECONDS);
+    }
+
+    private void reconnect(JmxClient client, Connection conn) {
+        if (closed_ || connections_.get(client) != conn)
+            return;     // closed, or removed in the meantime
+        try {
+            client.close();
+        } catch (IOException ex) {
+            ;   // the old connection is gone anyway
+        }
+
+        try {
+            client.open();
+            synchronized (conn) {
+                conn.up = true;
+                conn.reconnecting = false;
+                conn.backoffMs = MIN_BACKOFF_MS;
+            }
+            reconnects_.incrementAndGet();
+            log.info("Reconnected to " + client.getTargetName());
+        } catch (IOException ex) {
+            client.getStats().counter(MonitorStats.ERRORS + "reconnect").incrementAndGet();
+            conn.backoffMs = Math.min(2 * conn.backoffMs, MAX_BACKOFF_MS);
+            log.warn("Reconnect to " + client.getTargetName() + " failed (" + ex +
+                     "), next attempt in " + conn.backoffMs + " ms");
+            scheduleReconnect(client, conn);
+        }
+    }
+
+    public void close() {
+        closed_ = true;
+        reconnector_.shutdownNow();
+        for (Map.Entry<JmxClient, Connection> entry : connections_.entrySet()) {
+            entry.getValue().up = false;
+            try {
+                entry.getKey().close();
+            } catch (IOException ex) {
+                log.error(ex);
+            }
+        }
+    }
+}
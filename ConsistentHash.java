@@ -0,0 +1,104 @@
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+
+/**
+ * Consistent hashing of keys (e.g. JMX targets) onto nodes (e.g. collector
+ * workers). Every node is put on a 64-bit ring at several points, its
+ * virtual nodes; a key belongs to the first virtual node at or after its
+ * own hash. Adding or removing a node thus only moves the keys of the arcs
+ * it gains or loses, about 1/n of them, and the virtual nodes spread the
+ * keys evenly.
+ *
+ * Not thread-safe.
+ */
+public class ConsistentHash {
+
+    static public final int VIRTUAL_NODES = 128;
+
+    private final int virtualNodes_;
+    private final TreeMap<Long, String> ring_;
+    private final List<String> nodes_;
+
+    public ConsistentHash() {
+        this(VIRTUAL_NODES);
+    }
+
+    public ConsistentHash(int virtualNodes) {
+        if (virtualNodes < 1)
+            throw new IllegalArgumentException("Need at least one virtual node: " + virtualNodes);
+        virtualNodes_ = virtualNodes;
+        ring_ = new TreeMap<Long, String>();
+        nodes_ = new ArrayList<String>();
+    }
+
+    /* Returns false if the node is there already */
+    public boolean add(String node) {
+        if (nodes_.contains(node))
+            return false;
+        nodes_.add(node);
+        for (int i = 0; i < virtualNodes_; i++) {
+            // on the rare collision, the smaller name wins on every ring
+            long point = hash(node + "#" + i);
+            String other = ring_.get(point);
+            if (other == null || node.compareTo(other) < 0)
+                ring_.put(point, node);
+        }
+        return true;
+    }
+
+    /* Returns false if the node was not there */
+    public boolean remove(String node) {
+        if (!nodes_.remove(node))
+            return false;
+        Iterator<String> it = ring_.values().iterator();
+        while (it.hasNext()) {
+            if (it.next().equals(node))
+                it.remove();
+        }
+        // points the node won a collision on go back to the other node
+        for (String other : nodes_) {
+            for (int i = 0; i < virtualNodes_; i++) {
+                long point = hash(other + "#" + i);
+                String owner = ring_.get(point);
+                if (owner == null || other.compareTo(owner) < 0)
+                    ring_.put(point, other);
+            }
+        }
+        return true;
+    }
+
+    /* The node a key belongs to, null if there are no nodes */
+    public String nodeOf(String key) {
+        if (ring_.isEmpty())
+            return null;
+        Map.Entry<Long, String> entry = ring_.ceilingEntry(hash(key));
+        return (entry != null) ? entry.getValue() : ring_.firstEntry().getValue();
+    }
+
+    public List<String> getNodes() {
+        return new ArrayList<String>(nodes_);
+    }
+
+    public int size() {
+        return nodes_.size();
+    }
+
+    /* 64-bit FNV-1a, with the MurmurHash3 finalizer so that similar names spread out */
+    static public long hash(String key) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            h ^= key.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,471 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.apache.log4j.Logger;
+
+
+/**
+ * Line-based control/query server running on its own thread, so that
+ * clients never share a thread with the sampler.
+ *
+ * A single selector serves all clients. Connections stay open until the
+ * client closes them, and several requests may be sent without waiting for
+ * the responses; they are answered in order, one line per request. Once
+ * a client has 1 MB of responses waiting to be sent, its further requests
+ * are not read until it has taken some of them, so that a client that
+ * sends requests but never reads cannot grow the heap. Requests that take
+ * long (see setSlowRequests()) are handled on a worker thread; the
+ * client's later requests wait for their response.
+ *
+ * A client that sends "subscribe" additionally gets every line passed to
+ * publish() pushed to it as soon as it is published. Pushed lines wait in a
+ * bounded per-subscriber buffer; when a subscriber falls behind by more
+ * than that, the SlowConsumerPolicy decides whether its oldest pending
+ * lines are dropped or it is disconnected.
+ */
+public class ControlServer implements Runnable {
+    static Logger log = Logger.getLogger(ControlServer.class.getName());
+
+    static private final int BACKLOG = 1024;
+    static private final int READ_BUFFER_SIZE = 4096;
+    static private final int MAX_REQUEST_LENGTH = 64 * 1024;
+    static private final Charset CHARSET = Charset.forName("UTF-8");
+    static private final int SUBSCRIBER_BUFFER_SIZE = 1024; // [lines]
+    static private final int MAX_PENDING_BYTES = 1 << 20;  // of a connection's responses
+
+    public enum SlowConsumerPolicy { DROP_OLDEST, DISCONNECT }
+
+    public interface Handler {
+        /**
+         * Returns the response line for a request, or null for no response.
+         * "bye" and "quit" are handled by the server and passed to onClose().
+         * Called on the server thread, so it must not block, except for the
+         * slow requests, which are called on the worker thread.
+         */
+        String handle(String request);
+
+        void onClose();
+    }
+
+    /* The response to a slow request, for the server thread to send */
+    private static class Response {
+        final SelectionKey key;
+        final String line;      // null for none
+
+        Response(SelectionKey key, String line) {
+            this.key = key;
+            this.line = line;
+        }
+    }
+
+    /* Per-connection state, attached to its SelectionKey */
+    private static class Connection {
+        ByteBuffer in = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        ArrayDeque<ByteBuffer> out = new ArrayDeque<ByteBuffer>();
+        long outBytes;                  // left to send in out
+        boolean paused = false;         // requests left unread until out drains
+        boolean busy = false;           // a slow request is being handled
+        boolean subscriber = false;
+        boolean discarding = false;     // the rest of a request that was too long
+    }
+
+    private int port_;
+    private Selector selector_;
+    private ServerSocketChannel serverChannel_;
+    private Handler handler_;
+    private Thread thread_;
+    private volatile boolean running_;
+
+    // published lines waiting for the selector thread to hand them out
+    private ConcurrentLinkedQueue<ByteBuffer> published_;
+    private List<SelectionKey> subscribers_;
+    private int subscriberBufferSize_;
+    private SlowConsumerPolicy slowConsumerPolicy_;
+    private int maxRequestLength_;
+    private Set<String> slowRequests_;  // by first word
+    private ExecutorService worker_;    // null without slow requests
+    private ConcurrentLinkedQueue<Response> responses_;
+    private volatile long publishedLines_;
+    private volatile long droppedLines_;
+    private volatile long disconnectedSubscribers_;
+
+    public ControlServer(int port, Handler handler) throws IOException {
+        port_ = port;
+        handler_ = handler;
+        selector_ = Selector.open();
+        serverChannel_ = ServerSocketChannel.open();
+        serverChannel_.socket().setReuseAddress(true);
+        serverChannel_.socket().bind(new InetSocketAddress(port_), BACKLOG);
+        serverChannel_.configureBlocking(false);
+        serverChannel_.register(selector_, SelectionKey.OP_ACCEPT);
+        thread_ = new Thread(this, "control-server-" + port_);
+        thread_.setDaemon(true);
+
+        published_ = new ConcurrentLinkedQueue<ByteBuffer>();
+        subscribers_ = new ArrayList<SelectionKey>();
+        subscriberBufferSize_ = SUBSCRIBER_BUFFER_SIZE;
+        slowConsumerPolicy_ = SlowConsumerPolicy.DROP_OLDEST;
+        maxRequestLength_ = MAX_REQUEST_LENGTH;
+        slowRequests_ = new HashSet<String>();
+        responses_ = new ConcurrentLinkedQueue<Response>();
+    }
+
+    /**
+     * Has the requests starting with one of the commands handled one at a
+     * time on a worker thread, so that formatting a large response holds
+     * up neither the other clients nor the subscribers. Call before start().
+     */
+    public void setSlowRequests(String... commands) {
+        slowRequests_.addAll(Arrays.asList(commands));
+        if (worker_ == null)
+            worker_ = Executors.newSingleThreadExecutor();
+    }
+
+    /**
+     * Sets the longest request line, in bytes. A longer one is answered
+     * with an error and skipped up to its end; the connection stays open.
+     */
+    public void setMaxRequestLength(int bytes) {
+        if (bytes < READ_BUFFER_SIZE)
+            throw new IllegalArgumentException("Max request length must be at least " +
+                                               READ_BUFFER_SIZE + ": " + bytes);
+        maxRequestLength_ = bytes;
+    }
+
+    /**
+     * Sets how many published lines may wait for a subscriber, and what to
+     * do with a subscriber that has that many lines pending.
+     */
+    public void setSlowConsumerPolicy(int bufferSize, SlowConsumerPolicy policy) {
+        if (bufferSize < 2)
+            throw new IllegalArgumentException("Subscriber buffer size must be at least 2: " + 
+                                               bufferSize);
+        subscriberBufferSize_ = bufferSize;
+        slowConsumerPolicy_ = policy;
+    }
+
+    /**
+     * Pushes a line to all subscribers. Safe to call from any thread; the
+     * actual writes happen on the server thread.
+     */
+    public void publish(String line) {
+        published_.add(ByteBuffer.wrap((line + "\n").getBytes(CHARSET)));
+        publishedLines_++;
+        selector_.wakeup();
+    }
+
+    public String getSubscriberStats() {
+        return "subscribers " + subscribers_.size() + 
+            ", published " + publishedLines_ +
+            ", dropped " + droppedLines_ + 
+            ", disconnected " + disconnectedSubscribers_;
+    }
+
+    public int getPort() {
+        return port_;
+    }
+
+    public void start() {
+        running_ = true;
+        thread_.start();
+    }
+
+    public void close() {
+        running_ = false;
+        selector_.wakeup();
+        if (!thread_.isAlive() || Thread.currentThread() == thread_)
+            closeChannels();
+    }
+
+    public void run() {
+        try {
+            while (running_) {
+                selector_.select();
+                dispatchPublished();
+                dispatchResponses();
+                Iterator<SelectionKey> it = selector_.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    try {
+                        if (!key.isValid())
+                            continue;
+                        if (key.isAcceptable())
+                            accept();
+                        else {
+                            if (key.isReadable())
+                                read(key);
+                            if (key.isValid() && key.isWritable())
+                                write(key);
+                        }
+                    } catch (IOException ex) {
+                        log.debug("Closing connection: " + ex);
+                        closeConnection(key);
+                    }
+                }
+            }
+        } catch (IOException ex) {
+            log.error(ex);
+        } catch (ClosedSelectorException ex) {
+            ;
+        }
+        closeChannels();
+    }
+
+    private void dispatchPublished() {
+        ByteBuffer line;
+        while ((line = published_.poll()) != null) {
+            Iterator<SelectionKey> it = subscribers_.iterator();
+            while (it.hasNext()) {
+                SelectionKey key = it.next();
+                if (!key.isValid()) {
+                    it.remove();
+                    continue;
+                }
+                Connection conn = (Connection)key.attachment();
+                if (subscriberBufferSize_ <= conn.out.size()) {
+                    if (slowConsumerPolicy_ == SlowConsumerPolicy.DISCONNECT) {
+                        log.warn("Disconnecting slow subscriber " + 
+                                 ((SocketChannel)key.channel()).socket().getRemoteSocketAddress());
+                        disconnectedSubscribers_++;
+                        it.remove();
+                        closeConnection(key);
+                        continue;
+                    }
+                    // the head may be partially written already; drop the one after it
+                    ByteBuffer head = conn.out.removeFirst();
+                    conn.outBytes -= conn.out.removeFirst().remaining();
+                    conn.out.addFirst(head);
+                    droppedLines_++;
+                }
+                conn.out.addLast(line.duplicate());
+                conn.outBytes += line.remaining();
+                setInterest(key);
+            }
+        }
+    }
+
+    /* Sends the responses of slow requests, then goes on with the requests after them */
+    private void dispatchResponses() {
+        Response response;
+        while ((response = responses_.poll()) != null) {
+            SelectionKey key = response.key;
+            if (!key.isValid())
+                continue;
+            Connection conn = (Connection)key.attachment();
+            conn.busy = false;
+            if (response.line != null)
+                send(key, response.line);
+            try {
+                if (handleLines(key))
+                    write(key);
+            } catch (IOException ex) {
+                log.debug("Closing connection: " + ex);
+                closeConnection(key);
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = serverChannel_.accept();
+        if (channel == null)
+            return;
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        channel.register(selector_, SelectionKey.OP_READ, new Connection());
+    }
+
+    private void read(SelectionKey key) throws IOException {
+        SocketChannel channel = (SocketChannel)key.channel();
+        Connection conn = (Connection)key.attachment();
+
+        if (!conn.in.hasRemaining()) {
+            if (maxRequestLength_ <= conn.in.capacity()) {
+                if (!conn.discarding) {
+                    log.warn("Request longer than " + maxRequestLength_ + " bytes from " +
+                             channel.socket().getRemoteSocketAddress() + ", skipped");
+                    send(key, "error: request longer than " + maxRequestLength_ + " bytes");
+                    conn.discarding = true;
+                }
+                conn.in.clear();
+            }
+            else {
+                ByteBuffer larger = ByteBuffer.allocate(Math.min(conn.in.capacity() * 2, maxRequestLength_));
+                conn.in.flip();
+                larger.put(conn.in);
+                conn.in = larger;
+            }
+        }
+
+        if (channel.read(conn.in) < 0) {
+            closeConnection(key);
+            return;
+        }
+        if (!handleLines(key))
+            return;
+        if (!conn.out.isEmpty())
+            write(key);
+        else
+            setInterest(key);
+    }
+
+    /*
+     * Handles the complete lines in the buffer until MAX_PENDING_BYTES of
+     * responses are waiting; the rest stays in the buffer. Returns false
+     * if the connection or the server got closed.
+     */
+    private boolean handleLines(SelectionKey key) {
+        Connection conn = (Connection)key.attachment();
+        conn.in.flip();
+        int start = 0;
+        conn.paused = false;
+        for (int i = 0; i < conn.in.limit() && !conn.busy; i++) {
+            if (MAX_PENDING_BYTES <= conn.outBytes) {
+                conn.paused = true;
+                break;
+            }
+            if (conn.in.get(i) != '\n')
+                continue;
+            if (conn.discarding) {
+                // the end of the request that was too long
+                conn.discarding = false;
+                start = i + 1;
+                continue;
+            }
+            int end = (start < i && conn.in.get(i - 1) == '\r') ? i - 1 : i;
+            String request = new String(conn.in.array(), start, end - start, CHARSET);
+            start = i + 1;
+            if (!handle(key, request))
+                return false;
+        }
+        conn.in.position(start);
+        conn.in.compact();
+        return true;
+    }
+
+    /* Returns false if the connection or the server got closed */
+    private boolean handle(SelectionKey key, String request) {
+        if (request.equals("bye") || request.equals("quit")) {
+            closeConnection(key);
+            running_ = false;
+            handler_.onClose();
+            return false;
+        }
+
+        if (request.equals("subscribe")) {
+            Connection conn = (Connection)key.attachment();
+            if (!conn.subscriber) {
+                conn.subscriber = true;
+                subscribers_.add(key);
+            }
+            return true;
+        }
+        else if (request.equals("get_subscriber_stats")) {
+            send(key, getSubscriberStats());
+            return true;
+        }
+
+        if (!slowRequests_.isEmpty() && slowRequests_.contains(request.trim().split("\\s+", 2)[0])) {
+            handleSlow(key, request);
+            return true;
+        }
+        String resp = handler_.handle(request);
+        if (resp != null)
+            send(key, resp);
+        return true;
+    }
+
+    /* Hands the request to the worker; the connection reads no further requests until it is answered */
+    private void handleSlow(final SelectionKey key, final String request) {
+        ((Connection)key.attachment()).busy = true;
+        worker_.execute(new Runnable() {
+                public void run() {
+                    String resp = null;
+                    try {
+                        resp = handler_.handle(request);
+                    } catch (RuntimeException ex) {
+                        log.error(ex);
+                        resp = "error: " + ex;
+                    }
+                    responses_.add(new Response(key, resp));
+                    selector_.wakeup();
+                }
+            });
+    }
+
+    private void send(SelectionKey key, String line) {
+        Connection conn = (Connection)key.attachment();
+        ByteBuffer buf = ByteBuffer.wrap((line + "\n").getBytes(CHARSET));
+        conn.out.addLast(buf);
+        conn.outBytes += buf.remaining();
+    }
+
+    private void write(SelectionKey key) throws IOException {
+        SocketChannel channel = (SocketChannel)key.channel();
+        Connection conn = (Connection)key.attachment();
+
+        while (!conn.out.isEmpty()) {
+            ByteBuffer buf = conn.out.peekFirst();
+            conn.outBytes -= channel.write(buf);
+            if (buf.hasRemaining())
+                break;
+            conn.out.removeFirst();
+        }
+        // requests read while responses were piling up
+        if (conn.paused && conn.outBytes < MAX_PENDING_BYTES && !conn.busy && !handleLines(key))
+            return;
+        setInterest(key);
+    }
+
+    /*
+     * Asks for OP_WRITE only while there is something left to send, and for
+     * OP_READ only while the client is taking its responses
+     */
+    private void setInterest(SelectionKey key) {
+        Connection conn = (Connection)key.attachment();
+        int ops = (conn.paused || conn.busy) ? 0 : SelectionKey.OP_READ;
+        if (!conn.out.isEmpty())
+            ops |= SelectionKey.OP_WRITE;
+        key.interestOps(ops);
+    }
+
+    private void closeConnection(SelectionKey key) {
+        key.cancel();
+        try {
+            key.channel().close();
+        } catch (IOException ex) {
+            log.error(ex);
+        }
+    }
+
+    private void closeChannels() {
+        if (worker_ != null)
+            worker_.shutdown();
+        try {
+            for (SelectionKey key : selector_.keys())
+                key.channel().close();
+            selector_.close();
+        } catch (IOException ex) {
+            log.error(ex);
+        } catch (ClosedSelectorException ex) {
+            ;
+        }
+    }
+}
@@ -0,0 +1,421 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+
+/**
+ * Coordinator of a cluster of CollectorWorkers, for fleets too large for
+ * one JmxMonitor: it owns the list of targets (JMX service URLs, host:port
+ * or local pids), assigns them to the live workers by consistent hashing,
+ * and merges the samples the workers forward into one query endpoint.
+ *
+ *   java Coordinator <targets file | targets(csv)> [port]
+ *
+ * Workers talk to the control port (default 9999) in lines whose fields
+ * after the worker are separated by tabs:
+ *
+ *   heartbeat <worker> <interval ms>  answered with "assign <target>\t...",
+ *                                     the worker's targets; the first one
+ *                                     joins the worker
+ *   names <worker> <target>\t<offset>\t<total>\t<metric name>\t...
+ *                                     total names in chunks, from offset
+ *   sample <worker> <target>\t<time>\t<value>\t...   in names order;
+ *                                     answered with "resend <target>"
+ *                                     if the names are unknown
+ *   leave <worker>                    answered with "ok"
+ *
+ * A worker that misses 3 heartbeats in a row is dropped. Joins and leaves
+ * rebalance at once, moving only the targets of the ring arcs that
+ * changed hands; workers pick up the change with their next heartbeat.
+ * Samples of a target from a worker that no longer owns it are dropped.
+ * Local pids are only meaningful when all workers run on the targets'
+ * host.
+ *
+ * Queries on the same port: get_data (the latest sample of every target
+ * in target order, as one "timestamp, value, ..." line), get_header (the
+ * "timestamp, name, ..." of get_data), get_range, get_targets,
+ * get_workers, get_self_stats and subscribe (every merged line as it is
+ * published, once per tick).
+ */
+public class Coordinator {
+    static Logger log = Logger.getLogger(Coordinator.class.getName());
+
+    static private final int LISTEN_PORT = 9999;
+    static private final long TICK_MS = 1000; // [ms]
+    static private final int MISSED_HEARTBEATS = 3;
+    static private final int HISTORY_CAPACITY = 3600; // [samples per metric]
+    static private final int MAX_REQUEST_LENGTH = 1 << 20; // [bytes], of a sample of a large target
+
+    /* What the coordinator knows of one target */
+    private static class TargetState {
+        final String name;
+        String worker;          // owner on the ring, null without workers
+        int[] ids;              // of the metric names, from "names"
+        int[] pendingIds;       // of the chunks received so far
+        SampleFrame frame;      // the last sample
+        String values;          // ", v1, v2, ..." of the last sample
+        long samples;
+
+        TargetState(String name) {
+            this.name = name;
+            this.frame = new SampleFrame();
+        }
+    }
+
+    private static class Worker {
+        final String name;
+        long intervalMs;
+        long lastHeartbeat;
+        long samples;
+
+        Worker(String name) {
+            this.name = name;
+        }
+    }
+
+    private int port_;
+    private ControlServer server_;
+    private MetricRegistry registry_;
+    private MetricHistory history_;
+    private MonitorStats stats_;
+    private Sampler sampler_;
+    // all guarded by the coordinator: requests come in on the server
+    // thread, ticks run on the sampler thread
+    private ConsistentHash ring_;
+    private Map<String, TargetState> targets_;  // in the order given
+    private Map<String, Worker> workers_;
+    private long lastPublished_;                // time of the last merged line
+    private long dropped_;                      // samples from a former owner
+    private long rebalances_;
+
+    public Coordinator(List<String> targets, int port) throws IOException {
+        port_ = port;
+        registry_ = new MetricRegistry();
+        history_ = new MetricHistory(registry_,
+                                     Integer.getInteger("jmxmon.history.capacity", HISTORY_CAPACITY),
+                                     Boolean.getBoolean("jmxmon.history.compress"));
+        stats_ = new MonitorStats();
+        ring_ = new ConsistentHash();
+        targets_ = new LinkedHashMap<String, TargetState>();
+        for (String target : targets)
+            targets_.put(target, new TargetState(target));
+        workers_ = new LinkedHashMap<String, Worker>();
+
+        server_ = new ControlServer(port_, new ControlServer.Handler() {
+                public String handle(String request) {
+                    return handleRequest(request);
+                }
+
+                public void onClose() {
+                    sampler_.stop();
+                }
+            });
+        // formatted from the history, which has its own lock
+        server_.setSlowRequests("get_range");
+        server_.setMaxRequestLength(Integer.getInteger("jmxmon.coordinator.max.request.bytes",
+                                                       MAX_REQUEST_LENGTH));
+        sampler_ = new Sampler(TICK_MS, new Runnable() {
+                public void run() {
+                    tick();
+                }
+            });
+        stats_.setSampler(sampler_);
+        log.info("Coordinating " + targets_.size() + " targets on port " + port_);
+    }
+
+    private String handleRequest(String request) {
+        // get_range is handled on the server's worker thread, without the lock sample() holds
+        String[] args = request.trim().startsWith("get_range") ? request.trim().split("\\s+") : null;
+        if (args != null && args[0].equals("get_range")) {
+            try {
+                return history_.getRange(Long.parseLong(args[1]), Long.parseLong(args[2]),
+                                         (4 <= args.length) ? args[3] : null);
+            } catch (RuntimeException ex) {
+                return "error: usage get_range <from ms> <to ms> [name substring]";
+            }
+        }
+        return handleLocked(request);
+    }
+
+    private synchronized String handleLocked(String request) {
+        int space = request.indexOf(' ');
+        String command = (space < 0) ? request.trim() : request.substring(0, space);
+        String rest = (space < 0) ? "" : request.substring(space + 1);
+        try {
+            if (command.equals("sample"))
+                return sample(rest);
+            else if (command.equals("names"))
+                return names(rest);
+            else if (command.equals("heartbeat"))
+                return heartbeat(rest);
+            else if (command.equals("leave"))
+                return leave(rest.trim());
+        } catch (RuntimeException ex) {
+            log.warn("Bad request from worker: " + ex);
+            return null;    // workers do not wait for answers to samples
+        }
+
+        String[] args = request.trim().split("\\s+");
+        if (args[0].equals("get_data")) {
+            return getData(false);
+        }
+        else if (args[0].equals("get_header")) {
+            return getData(true);
+        }
+        else if (args[0].equals("get_targets")) {
+            StringBuilder sb = new StringBuilder();
+            long now = System.currentTimeMillis();
+            for (TargetState target : targets_.values()) {
+                if (0 < sb.length())
+                    sb.append(", ");
+                sb.append(target.name).append(" (")
+                    .append((target.worker != null) ? target.worker : "unassigned");
+                if (target.values != null)
+                    sb.append(", last sample ").append(now - target.frame.getTime()).append(" ms ago");
+                sb.append(')');
+            }
+            return sb.toString();
+        }
+        else if (args[0].equals("get_workers")) {
+            StringBuilder sb = new StringBuilder();
+            long now = System.currentTimeMillis();
+            for (Worker worker : workers_.values()) {
+                if (0 < sb.length())
+                    sb.append(", ");
+                sb.append(worker.name).append(" (targets ").append(getTargets(worker.name).size())
+                    .append(", samples ").append(worker.samples)
+                    .append(", heartbeat ").append(now - worker.lastHeartbeat).append(" ms ago)");
+            }
+            return sb.append("; rebalances ").append(rebalances_)
+                .append(", dropped samples ").append(dropped_).toString();
+        }
+        else if (args[0].equals("get_self_stats")) {
+            return stats_.getSummary();
+        }
+        return "error: unknown request " + request;
+    }
+
+    private String heartbeat(String rest) {
+        String[] fields = rest.trim().split("\\s+");
+        Worker worker = workers_.get(fields[0]);
+        if (worker == null) {
+            worker = new Worker(fields[0]);
+            workers_.put(worker.name, worker);
+            ring_.add(worker.name);
+            log.info("Worker " + worker.name + " joined");
+            rebalance();
+        }
+        worker.intervalMs = (2 <= fields.length) ? Long.parseLong(fields[1]) : TICK_MS;
+        worker.lastHeartbeat = System.currentTimeMillis();
+
+        StringBuilder sb = new StringBuilder("assign ");
+        List<String> targets = getTargets(worker.name);
+        for (int i = 0; i < targets.size(); i++)
+            sb.append((i == 0) ? "" : "\t").append(targets.get(i));
+        return sb.toString();
+    }
+
+    private String leave(String name) {
+        if (workers_.remove(name) != null) {
+            ring_.remove(name);
+            log.info("Worker " + name + " left");
+            rebalance();
+        }
+        return "ok";
+    }
+
+    private String names(String rest) {
+        int space = rest.indexOf(' ');
+        String[] fields = rest.substring(space + 1).split("\t");
+        TargetState target = targets_.get(fields[0]);
+        if (target == null || !rest.substring(0, space).equals(target.worker))
+            return null;
+        int offset = Integer.parseInt(fields[1]);
+        int total = Integer.parseInt(fields[2]);
+        if (offset == 0)
+            target.pendingIds = new int[total];
+        else if (target.pendingIds == null || target.pendingIds.length != total)
+            return null;    // a chunk without its start
+        for (int i = 3; i < fields.length; i++)
+            target.pendingIds[offset + i - 3] = registry_.idOf(fields[i]);
+        if (offset + fields.length - 3 == total) {
+            target.ids = target.pendingIds;
+            target.pendingIds = null;
+        }
+        return null;
+    }
+
+    /* Rebuilds the target's frame from the values, records it and keeps it for get_data */
+    private String sample(String rest) {
+        int space = rest.indexOf(' ');
+        String[] fields = rest.substring(space + 1).split("\t", -1);
+        TargetState target = targets_.get(fields[0]);
+        if (target == null)
+            return null;
+        if (!rest.substring(0, space).equals(target.worker)) {
+            dropped_++;
+            return null;
+        }
+        if (target.ids == null || target.ids.length != fields.length - 2) {
+            log.debug("Sample of " + target.name + " does not match its names, dropped");
+            dropped_++;
+            return "resend " + target.name;     // e.g. moved away and back between heartbeats
+
+        }
+
+        SampleFrame frame = target.frame;
+        frame.reset(Long.parseLong(fields[1]));
+        for (int i = 2; i < fields.length; i++)
+            putValue(frame, target.ids[i - 2], fields[i]);
+        history_.add(frame);
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < frame.size(); i++) {
+            sb.append(", ");
+            SampleFormatter.appendValue(sb, frame, frame.idAt(i));
+        }
+        target.values = sb.toString();
+        target.samples++;
+        Worker worker = workers_.get(target.worker);
+        if (worker != null)
+            worker.samples++;
+        return null;
+    }
+
+    static private void putValue(SampleFrame frame, int id, String value) {
+        try {
+            frame.putLong(id, Long.parseLong(value));
+            return;
+        } catch (NumberFormatException ex) {
+            ;
+        }
+        try {
+            frame.putDouble(id, Double.parseDouble(value));
+        } catch (NumberFormatException ex) {
+            frame.put(id, value);
+        }
+    }
+
+    /* Moves every target to its owner on the ring; logs how many moved */
+    private void rebalance() {
+        int moved = 0;
+        for (TargetState target : targets_.values()) {
+            String worker = ring_.nodeOf(target.name);
+            if (worker == null ? target.worker != null : !worker.equals(target.worker)) {
+                target.worker = worker;
+                target.ids = null;      // the new owner sends its names first
+                target.pendingIds = null;
+                moved++;
+            }
+        }
+        rebalances_++;
+        log.info("Rebalanced over " + ring_.size() + " workers: " + moved + " of " +
+                 targets_.size() + " targets moved");
+    }
+
+    private List<String> getTargets(String worker) {
+        List<String> targets = new ArrayList<String>();
+        for (TargetState target : targets_.values()) {
+            if (worker.equals(target.worker))
+                targets.add(target.name);
+        }
+        return targets;
+    }
+
+    /* The latest values of every target as one line, or its header */
+    private String getData(boolean header) {
+        long time = 0;
+        StringBuilder sb = new StringBuilder();
+        for (TargetState target : targets_.values()) {
+            if (target.values == null)
+                continue;
+            time = Math.max(time, target.frame.getTime());
+            if (!header) {
+                sb.append(target.values);
+                continue;
+            }
+            for (int i = 0; i < target.frame.size(); i++)
+                sb.append(", ").append(registry_.nameOf(target.frame.idAt(i)));
+        }
+        return (header ? "timestamp" : Long.toString(time)) + sb;
+    }
+
+    /* Drops the workers that stopped sending heartbeats, publishes the merged line */
+    private synchronized void tick() {
+        long now = System.currentTimeMillis();
+        List<String> lost = new ArrayList<String>();
+        for (Worker worker : workers_.values()) {
+            if (MISSED_HEARTBEATS * Math.max(worker.intervalMs, TICK_MS) < now - worker.lastHeartbeat)
+                lost.add(worker.name);
+        }
+        for (String name : lost) {
+            workers_.remove(name);
+            ring_.remove(name);
+            log.warn("Worker " + name + " missed " + MISSED_HEARTBEATS + " heartbeats, dropped");
+        }
+        if (!lost.isEmpty())
+            rebalance();
+
+        long time = 0;
+        for (TargetState target : targets_.values()) {
+            if (target.values != null)
+                time = Math.max(time, target.frame.getTime());
+        }
+        if (lastPublished_ < time) {
+            lastPublished_ = time;
+            String line = getData(false);
+            log.info(line);
+            server_.publish(line);
+        }
+    }
+
+    public void run() {
+        try {
+            server_.start();
+            sampler_.start();
+            sampler_.join();
+            server_.close();
+            log.info("Self stats: " + stats_.getSummary());
+        } catch (InterruptedException ex) {
+            log.error(ex);
+        }
+    }
+
+    /* One target per line of a file, or comma-separated */
+    static private List<String> readTargets(String arg) throws IOException {
+        List<String> targets = new ArrayList<String>();
+        if (!new File(arg).isFile()) {
+            for (String target : arg.split(","))
+                targets.add(target.trim());
+            return targets;
+        }
+        BufferedReader reader = new BufferedReader(new FileReader(arg));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.trim().isEmpty() && !line.startsWith("#"))
+                    targets.add(line.trim());
+            }
+        } finally {
+            reader.close();
+        }
+        return targets;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("Usage: java Coordinator " +
+                               "[targets file | pids, host:port or JMX service URLs(csv)] ([port])");
+            System.exit(1);
+        }
+
+        int port = (2 <= args.length) ? Integer.parseInt(args[1]) : LISTEN_PORT;
+        new Coordinator(readTargets(args[0]), port).run();
+    }
+}
@@ -0,0 +1,201 @@
+import java.util.Arrays;
+
+import org.apache.log4j.Logger;
+
+
+/**
+ * Series derived from the raw samples, computed once in the monitor
+ * instead of by every client. A beans file line selects them with an
+ * optional third field, e.g.
+ *
+ *   kafka.server:type=BrokerTopicMetrics,name=BytesInPerSec#Count#rate,downsample=60
+ *
+ * for every attribute of the line:
+ *   rate          per-second rate of a monotonic counter, "<name>:rate"; a
+ *                 decrease is taken as a counter reset, counting from zero
+ *   delta         difference to the previous sample, "<name>:delta"
+ *   downsample=s  min, max and average over buckets of s seconds,
+ *                 "<name>:min<s>s" etc., recorded at the start of the
+ *                 bucket once it is complete
+ *
+ * Rates and deltas are added to the frame, so they show up in get_data,
+ * the history and the log; a metric gets its first one on its second
+ * sample. Buckets go into the history only and are read with get_range.
+ *
+ * Not thread-safe: derive() is called on the sampling thread.
+ */
+public class DerivedMetrics {
+    static Logger log = Logger.getLogger(DerivedMetrics.class.getName());
+
+    /* What to derive from the attributes of one beans file line */
+    public static class Spec {
+        boolean rate;
+        boolean delta;
+        long bucketMs;  // 0: no downsampling
+
+        public String toString() {
+            return (rate ? "rate " : "") + (delta ? "delta " : "") +
+                ((0 < bucketMs) ? "downsample=" + (bucketMs / 1000) : "");
+        }
+    }
+
+    /* Returns null if nothing is derived; a bad downsample= is logged for bean and left out */
+    static public Spec parse(String spec, String bean) {
+        if (spec == null || spec.trim().isEmpty())
+            return null;
+        Spec result = new Spec();
+        for (String option : spec.split(",")) {
+            option = option.trim();
+            if (option.equals("rate"))
+                result.rate = true;
+            else if (option.equals("delta"))
+                result.delta = true;
+            else if (option.startsWith("downsample="))
+                result.bucketMs = 1000 * parseSeconds(option.substring("downsample=".length()), bean);
+            else
+                throw new IllegalArgumentException("Unknown derived series: " + option);
+        }
+        return (result.rate || result.delta || 0 < result.bucketMs) ? result : null;
+    }
+
+    /* 0 for a bad value, which leaves downsampling off */
+    static private long parseSeconds(String value, String bean) {
+        try {
+            long seconds = Long.parseLong(value);
+            if (0 < seconds)
+                return seconds;
+        } catch (NumberFormatException ex) {
+            // logged below
+        }
+        log.error(bean + ": downsample= needs a positive number of seconds, not downsampling: " + value);
+        return 0;
+    }
+
+    private final MetricRegistry registry_;
+    private final MetricHistory history_;
+
+    // state per source metric id
+    private boolean[] seen_;
+    private long[] prevTimes_;
+    private double[] prevValues_;
+    private long[] prevLongs_;
+    private long[] bucketStarts_;
+    private double[] mins_;
+    private double[] maxs_;
+    private double[] sums_;
+    private int[] counts_;
+    // derived metric ids per source id, -1 until first used
+    private int[] rateIds_;
+    private int[] deltaIds_;
+    private int[] minIds_;
+    private int[] maxIds_;
+    private int[] avgIds_;
+
+    public DerivedMetrics(MetricRegistry registry, MetricHistory history) {
+        registry_ = registry;
+        history_ = history;
+        grow(64);
+    }
+
+    /*
+     * Derives the series selected by spec from the values the frame got
+     * between the from-th and the to-th put.
+     */
+    public void derive(SampleFrame frame, int from, int to, Spec spec) {
+        long time = frame.getTime();
+        for (int i = from; i < to; i++) {
+            int id = frame.idAt(i);
+            if (!frame.isNumber(id))
+                continue;
+            if (seen_.length <= id)
+                grow(Math.max(id + 1, seen_.length * 2));
+            boolean isLong = (frame.typeOf(id) == SampleFrame.LONG);
+            double value = frame.doubleValue(id);
+            long longValue = frame.longValue(id);
+
+            if (seen_[id] && prevTimes_[id] < time) {
+                if (spec.rate) {
+                    double increase = value - prevValues_[id];
+                    if (increase < 0)
+                        increase = value;   // reset: counting again from zero
+                    frame.putDouble(derivedId(rateIds_, id, ":rate"),
+                                    increase * 1000 / (time - prevTimes_[id]));
+                }
+                if (spec.delta) {
+                    int deltaId = derivedId(deltaIds_, id, ":delta");
+                    if (isLong)
+                        frame.putLong(deltaId, longValue - prevLongs_[id]);
+                    else
+                        frame.putDouble(deltaId, value - prevValues_[id]);
+                }
+            }
+            if (0 < spec.bucketMs)
+                downsample(id, time, value, spec.bucketMs);
+
+            seen_[id] = true;
+            prevTimes_[id] = time;
+            prevValues_[id] = value;
+            prevLongs_[id] = longValue;
+        }
+    }
+
+    private void downsample(int id, long time, double value, long bucketMs) {
+        long bucket = time - Math.floorMod(time, bucketMs);
+        if (0 < counts_[id] && bucket != bucketStarts_[id]) {
+            String suffix = (bucketMs / 1000) + "s";
+            long start = bucketStarts_[id];
+            history_.add(start, derivedId(minIds_, id, ":min" + suffix), mins_[id]);
+            history_.add(start, derivedId(maxIds_, id, ":max" + suffix), maxs_[id]);
+            history_.add(start, derivedId(avgIds_, id, ":avg" + suffix), sums_[id] / counts_[id]);
+            counts_[id] = 0;
+        }
+        if (counts_[id] == 0) {
+            bucketStarts_[id] = bucket;
+            mins_[id] = value;
+            maxs_[id] = value;
+            sums_[id] = 0;
+        }
+        mins_[id] = Math.min(mins_[id], value);
+        maxs_[id] = Math.max(maxs_[id], value);
+        sums_[id] += value;
+        counts_[id]++;
+    }
+
+    private int derivedId(int[] ids, int id, String suffix) {
+        if (ids[id] < 0)
+            ids[id] = registry_.idOf(registry_.nameOf(id) + suffix);
+        return ids[id];
+    }
+
+    private void grow(int capacity) {
+        int old = (seen_ == null) ? 0 : seen_.length;
+        seen_ = (seen_ == null) ? new boolean[capacity] : Arrays.copyOf(seen_, capacity);
+        prevTimes_ = copyOf(prevTimes_, capacity);
+        prevValues_ = copyOf(prevValues_, capacity);
+        prevLongs_ = copyOf(prevLongs_, capacity);
+        bucketStarts_ = copyOf(bucketStarts_, capacity);
+        mins_ = copyOf(mins_, capacity);
+        maxs_ = copyOf(maxs_, capacity);
+        sums_ = copyOf(sums_, capacity);
+        counts_ = (counts_ == null) ? new int[capacity] : Arrays.copyOf(counts_, capacity);
+        rateIds_ = copyOfIds(rateIds_, old, capacity);
+        deltaIds_ = copyOfIds(deltaIds_, old, capacity);
+        minIds_ = copyOfIds(minIds_, old, capacity);
+        maxIds_ = copyOfIds(maxIds_, old, capacity);
+        avgIds_ = copyOfIds(avgIds_, old, capacity);
+    }
+
+    static private long[] copyOf(long[] array, int capacity) {
+        return (array == null) ? new long[capacity] : Arrays.copyOf(array, capacity);
+    }
+
+    static private double[] copyOf(double[] array, int capacity) {
+        return (array == null) ? new double[capacity] : Arrays.copyOf(array, capacity);
+    }
+
+    static private int[] copyOfIds(int[] ids, int old, int capacity) {
+        int[] copy = (ids == null) ? new int[capacity] : Arrays.copyOf(ids, capacity);
+        Arrays.fill(copy, old, capacity, -1);
+        return copy;
+    }
+}
@@ -0,0 +1,45 @@
+/**
+ * Scales when an exponentially weighted moving average of
+ * BytesOutPerSec / BytesInPerSec is above (100 - threshold)%: the consumer
+ * has kept up lately, with recent ticks weighing more than a fixed
+ * window would let them. alpha is the weight of the newest tick.
+ */
+public class EwmaPolicy implements ScalingPolicy {
+    private final double alpha_;
+    private final double thresholdPercent_;
+    private final int minSamples_;
+    private double average_;
+    private int samples_;           // up to minSamples_
+
+    public EwmaPolicy(double alpha, double thresholdPercent, int minSamples) {
+        if (alpha <= 0 || 1 < alpha)
+            throw new IllegalArgumentException("Need 0 < alpha <= 1, got " + alpha);
+        alpha_ = alpha;
+        thresholdPercent_ = thresholdPercent;
+        minSamples_ = minSamples;
+    }
+
+    public void update(double bytesInPerSec, double bytesOutPerSec) {
+        double ratio = keptUp(bytesInPerSec, bytesOutPerSec);
+        average_ = (samples_ == 0) ? ratio : average_ + alpha_ * (ratio - average_);
+        if (samples_ < minSamples_)
+            samples_++;
+    }
+
+    /* Share of the input the consumer read, 1 when there was no input */
+    static private double keptUp(double bytesInPerSec, double bytesOutPerSec) {
+        return (0 < bytesInPerSec) ? bytesOutPerSec / bytesInPerSec : 1;
+    }
+
+    public boolean shouldScale() {
+        return (minSamples_ <= samples_ && (100 - thresholdPercent_) / 100 < average_);
+    }
+
+    public void scaled() {
+    }
+
+    public String toString() {
+        return "ewma alpha " + alpha_ + ", threshold " + thresholdPercent_ + "%" +
+            ", min samples " + minSamples_ + " (average " + String.format("%.4f", average_) + ")";
+    }
+}
@@ -0,0 +1,137 @@
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+
+/**
+ * Compression ratio and encode/decode throughput of GorillaSeries against
+ * MetricRing's 16 bytes per sample. Runs over samples recorded with
+ * -Djmxmon.log.dir (see SegmentLog), or, without a directory, over a
+ * synthetic day of per-second OneMinuteRate samples of three brokers,
+ * which like Kafka's meters only change every 5 s.
+ */
+public class GorillaBench {
+
+    static private final int SYNTHETIC_BROKERS = 3;
+    static private final String[] SYNTHETIC_METRICS = {
+        "MessagesInPerSec", "BytesInPerSec", "BytesOutPerSec"
+    };
+    static private final int SYNTHETIC_SECONDS = 86400;
+    static private final int ROUNDS = 5;
+
+    /* Samples of one metric, grown as they are read */
+    private static class Series {
+        long[] times = new long[1024];
+        double[] values = new double[1024];
+        int size;
+
+        void add(long time, double value) {
+            if (size == times.length) {
+                times = Arrays.copyOf(times, size * 2);
+                values = Arrays.copyOf(values, size * 2);
+            }
+            times[size] = time;
+            values[size] = value;
+            size++;
+        }
+    }
+
+    private final Map<String, Series> series_;
+
+    public GorillaBench() {
+        series_ = new HashMap<String, Series>();
+    }
+
+    public void load(String dir) throws IOException {
+        new SegmentReader(dir).scan(Long.MIN_VALUE, Long.MAX_VALUE, new SegmentReader.Visitor() {
+                public void sample(SampleFrame frame, String[] names) {
+                    for (int i = 0; i < frame.size(); i++) {
+                        int id = frame.idAt(i);
+                        Series series = series_.get(names[id]);
+                        if (series == null) {
+                            series = new Series();
+                            series_.put(names[id], series);
+                        }
+                        series.add(frame.getTime(), frame.doubleValue(id));
+                    }
+                }
+            });
+    }
+
+    /* Yammer-style one-minute EWMA rates, ticked every 5 s, sampled every ~1000 ms */
+    public void generate() {
+        Random random = new Random(42);
+        double alpha = 1 - Math.exp(-5.0 / 60);
+        for (int b = 0; b < SYNTHETIC_BROKERS; b++) {
+            for (int m = 0; m < SYNTHETIC_METRICS.length; m++) {
+                Series series = new Series();
+                double mean = (m == 0) ? 20000 : 20000 * 1024;
+                double rate = mean;
+                long time = 1800000000000L;
+                for (int s = 0; s < SYNTHETIC_SECONDS; s++) {
+                    if (s % 5 == 0) {
+                        double load = mean * (1 + 0.3 * Math.sin(2 * Math.PI * s / 86400));
+                        double count = 5 * load * (1 + 0.05 * random.nextGaussian());
+                        rate += alpha * (count / 5 - rate);
+                    }
+                    time += 1000 + random.nextInt(5) - 2;
+                    series.add(time, rate);
+                }
+                series_.put("broker" + b + "/" + SYNTHETIC_METRICS[m] + "#OneMinuteRate", series);
+            }
+        }
+    }
+
+    public void run() {
+        long samples = 0, bytes = 0, encodeNs = 0, decodeNs = 0;
+        double sink = 0;
+        for (int round = 0; round <= ROUNDS; round++) {
+            // round 0 warms up
+            samples = bytes = encodeNs = decodeNs = 0;
+            for (Series s : series_.values()) {
+                long start = System.nanoTime();
+                GorillaSeries gorilla = new GorillaSeries(s.size);
+                for (int i = 0; i < s.size; i++)
+                    gorilla.add(s.times[i], s.values[i]);
+                encodeNs += System.nanoTime() - start;
+
+                start = System.nanoTime();
+                int i = 0;
+                for (MetricSeries.Cursor cursor = gorilla.cursor(Long.MIN_VALUE); cursor.valid(); cursor.next()) {
+                    if (cursor.time() != s.times[i] ||
+                        Double.doubleToRawLongBits(cursor.value()) != Double.doubleToRawLongBits(s.values[i]))
+                        throw new IllegalStateException("Decoded sample " + i + " differs");
+                    sink += cursor.value();
+                    i++;
+                }
+                decodeNs += System.nanoTime() - start;
+                if (i != s.size)
+                    throw new IllegalStateException("Decoded " + i + " of " + s.size + " samples");
+
+                samples += s.size;
+                bytes += gorilla.getFootprintBytes();
+            }
+        }
+
+        long rawBytes = 16 * samples;
+        System.out.println("series: " + series_.size() + ", samples: " + samples);
+        System.out.println(String.format("raw        %12d bytes (16.00 bytes/sample)", rawBytes));
+        System.out.println(String.format("compressed %12d bytes (%5.2f bytes/sample), ratio %.1fx",
+                                         bytes, (double)bytes / samples, (double)rawBytes / bytes));
+        System.out.println(String.format("encode %.1f M samples/s, decode %.1f M samples/s",
+                                         samples * 1e3 / encodeNs, samples * 1e3 / decodeNs));
+        if (sink == 42)
+            System.out.println();
+    }
+
+    public static void main(String[] args) throws IOException {
+        GorillaBench bench = new GorillaBench();
+        if (1 <= args.length)
+            bench.load(args[0]);
+        else
+            bench.generate();
+        bench.run();
+    }
+}
@@ -0,0 +1,300 @@
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+
+
+/**
+ * MetricSeries compressed as in Facebook's Gorilla: timestamps as
+ * delta-of-deltas, values as the XOR with the previous value, both
+ * bit-packed. Slowly changing rates and fixed-rate timestamps take a few
+ * bits per sample instead of MetricRing's 16 bytes.
+ *
+ * Samples go into blocks of BLOCK_SAMPLES; each block starts with a raw
+ * timestamp and value, so it decodes on its own. Full blocks are trimmed
+ * and sealed, and the oldest block is dropped once the rest hold
+ * capacity samples, so between capacity and capacity + BLOCK_SAMPLES
+ * samples are retained.
+ *
+ * Timestamp encoding (dod = delta - previous delta):
+ *   '0' dod 0 | '10' 7 bits | '110' 9 bits | '1110' 12 bits | '1111' 64 bits
+ * Value encoding (xor = bits ^ previous bits):
+ *   '0' xor 0
+ *   '10' meaningful bits, inside the previous leading/trailing zero window
+ *   '11' leading zeros:5 meaningful length:6 (0: 64) meaningful bits
+ */
+public class GorillaSeries implements MetricSeries {
+
+    static public final int BLOCK_SAMPLES = 1024;
+
+    static private final class Block {
+        long[] words = new long[16];
+        int bits;
+        int count;
+        long firstTime;
+        long lastTime;
+        // encoder state
+        long prevTime;
+        long prevDelta;
+        long prevBits;
+        int prevLeading = -1;   // no window yet
+        int prevTrailing;
+
+        void write(long value, int n) {
+            if (n == 0)
+                return;
+            if (words.length * 64 < bits + n)
+                words = Arrays.copyOf(words, words.length * 2);
+            if (n < 64)
+                value &= (1L << n) - 1;
+            int index = bits >>> 6;
+            int free = 64 - (bits & 63);
+            if (n <= free)
+                words[index] |= value << (free - n);
+            else {
+                words[index] |= value >>> (n - free);
+                words[index + 1] |= value << (64 - (n - free));
+            }
+            bits += n;
+        }
+
+        long read(int pos, int n) {
+            if (n == 0)
+                return 0;
+            int index = pos >>> 6;
+            int free = 64 - (pos & 63);
+            long value;
+            if (n <= free)
+                value = words[index] >>> (free - n);
+            else
+                value = (words[index] << (n - free)) | (words[index + 1] >>> (64 - (n - free)));
+            return (n < 64) ? value & ((1L << n) - 1) : value;
+        }
+
+        void append(long time, double value) {
+            long valueBits = Double.doubleToRawLongBits(value);
+            if (count == 0) {
+                write(time, 64);
+                write(valueBits, 64);
+                firstTime = time;
+            }
+            else {
+                long delta = time - prevTime;
+                long dod = delta - prevDelta;
+                if (dod == 0)
+                    write(0, 1);
+                else if (-63 <= dod && dod <= 64)
+                    write((0x2L << 7) | (dod + 63), 2 + 7);
+                else if (-255 <= dod && dod <= 256)
+                    write((0x6L << 9) | (dod + 255), 3 + 9);
+                else if (-2047 <= dod && dod <= 2048)
+                    write((0xeL << 12) | (dod + 2047), 4 + 12);
+                else {
+                    write(0xf, 4);
+                    write(dod, 64);
+                }
+                prevDelta = delta;
+
+                long xor = valueBits ^ prevBits;
+                if (xor == 0)
+                    write(0, 1);
+                else {
+                    int leading = Math.min(Long.numberOfLeadingZeros(xor), 31);
+                    int trailing = Long.numberOfTrailingZeros(xor);
+                    if (0 <= prevLeading && prevLeading <= leading && prevTrailing <= trailing) {
+                        write(0x2, 2);
+                        write(xor >>> prevTrailing, 64 - prevLeading - prevTrailing);
+                    }
+                    else {
+                        int meaningful = 64 - leading - trailing;
+                        write(0x3, 2);
+                        write(leading, 5);
+                        write(meaningful & 63, 6);
+                        write(xor >>> trailing, meaningful);
+                        prevLeading = leading;
+                        prevTrailing = trailing;
+                    }
+                }
+            }
+            prevTime = time;
+            prevBits = valueBits;
+            lastTime = time;
+            count++;
+        }
+
+        void seal() {
+            words = Arrays.copyOf(words, (bits + 63) >>> 6);
+        }
+
+        long footprintBytes() {
+            return 8L * words.length + 16 + 80;     // array header, object
+        }
+    }
+
+    /* Streaming decoder of the blocks, oldest first */
+    private final class BlockCursor implements Cursor {
+        private final Iterator<Block> it_;
+        private Block block_;
+        private int pos_;
+        private int index_;     // of the current sample within block_
+        private long time_;
+        private long delta_;
+        private long bits_;
+        private int leading_;
+        private int trailing_;
+
+        BlockCursor(long time) {
+            it_ = blocks_.iterator();
+            nextBlock();
+            // skip whole blocks, then samples
+            while (block_ != null && block_.lastTime < time)
+                nextBlock();
+            while (valid() && time_ < time)
+                next();
+        }
+
+        public boolean valid() {
+            return block_ != null;
+        }
+
+        public long time() {
+            return time_;
+        }
+
+        public double value() {
+            return Double.longBitsToDouble(bits_);
+        }
+
+        public void next() {
+            if (++index_ < block_.count)
+                decode();
+            else
+                nextBlock();
+        }
+
+        private void nextBlock() {
+            block_ = null;
+            while (it_.hasNext()) {
+                Block block = it_.next();
+                if (0 < block.count) {
+                    block_ = block;
+                    break;
+                }
+            }
+            if (block_ == null)
+                return;
+            pos_ = 0;
+            index_ = 0;
+            time_ = block_.read(pos_, 64);
+            bits_ = block_.read(pos_ + 64, 64);
+            pos_ += 128;
+            delta_ = 0;
+            leading_ = -1;
+        }
+
+        private void decode() {
+            Block b = block_;
+            long dod;
+            if (b.read(pos_, 1) == 0) {
+                dod = 0;
+                pos_ += 1;
+            }
+            else if (b.read(pos_ + 1, 1) == 0) {
+                dod = b.read(pos_ + 2, 7) - 63;
+                pos_ += 2 + 7;
+            }
+            else if (b.read(pos_ + 2, 1) == 0) {
+                dod = b.read(pos_ + 3, 9) - 255;
+                pos_ += 3 + 9;
+            }
+            else if (b.read(pos_ + 3, 1) == 0) {
+                dod = b.read(pos_ + 4, 12) - 2047;
+                pos_ += 4 + 12;
+            }
+            else {
+                dod = b.read(pos_ + 4, 64);
+                pos_ += 4 + 64;
+            }
+            delta_ += dod;
+            time_ += delta_;
+
+            if (b.read(pos_, 1) == 0) {
+                pos_ += 1;
+                return;
+            }
+            if (b.read(pos_ + 1, 1) == 0) {
+                pos_ += 2;
+                int meaningful = 64 - leading_ - trailing_;
+                bits_ ^= b.read(pos_, meaningful) << trailing_;
+                pos_ += meaningful;
+            }
+            else {
+                leading_ = (int)b.read(pos_ + 2, 5);
+                int meaningful = (int)b.read(pos_ + 7, 6);
+                if (meaningful == 0)
+                    meaningful = 64;
+                trailing_ = 64 - leading_ - meaningful;
+                pos_ += 2 + 5 + 6;
+                bits_ ^= b.read(pos_, meaningful) << trailing_;
+                pos_ += meaningful;
+            }
+        }
+    }
+
+    private final int capacity_;
+    private final ArrayDeque<Block> blocks_;     // oldest first, the last one open
+    private int size_;
+    private long sealedBytes_;
+
+    public GorillaSeries(int capacity) {
+        if (capacity < 1)
+            throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+        capacity_ = capacity;
+        blocks_ = new ArrayDeque<Block>();
+        blocks_.add(new Block());
+        size_ = 0;
+        sealedBytes_ = 0;
+    }
+
+    public void add(long time, double value) {
+        Block open = blocks_.peekLast();
+        if (open.count == BLOCK_SAMPLES) {
+            open.seal();
+            sealedBytes_ += open.footprintBytes();
+            open = new Block();
+            blocks_.add(open);
+        }
+        open.append(time, value);
+        size_++;
+
+        Block oldest = blocks_.peekFirst();
+        if (oldest != open && capacity_ <= size_ - oldest.count) {
+            blocks_.removeFirst();
+            size_ -= oldest.count;
+            sealedBytes_ -= oldest.footprintBytes();
+        }
+    }
+
+    public int size() {
+        return size_;
+    }
+
+    public int capacity() {
+        return capacity_;
+    }
+
+    public long getFootprintBytes() {
+        return sealedBytes_ + blocks_.peekLast().footprintBytes() + 64;
+    }
+
+    /* Compressed bits per sample, excluding block overhead */
+    public double getBitsPerSample() {
+        long bits = 0;
+        for (Block block : blocks_)
+            bits += block.bits;
+        return (size_ == 0) ? 0 : (double)bits / size_;
+    }
+
+    public Cursor cursor(long time) {
+        return new BlockCursor(time);
+    }
+}
@@ -1,17 +1,34 @@
 import java.io.IOException;
 import java.util.Arrays;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
 
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.InstanceNotFoundException;
 import javax.management.JMException;
 import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanNotificationInfo;
 import javax.management.MBeanServerConnection;
+import javax.management.MBeanServerDelegate;
+import javax.management.MBeanServerNotification;
+import javax.management.Notification;
+import javax.management.NotificationListener;
 import javax.management.ObjectName;
+import javax.management.RuntimeOperationsException;
 import javax.management.openmbean.CompositeData;
-import javax.management.openmbean.CompositeDataSupport;
+import javax.management.openmbean.CompositeType;
+import javax.management.relation.MBeanServerNotificationFilter;
+import javax.management.remote.JMXConnectionNotification;
 import javax.management.remote.JMXConnector;
 import javax.management.remote.JMXConnectorFactory;
 import javax.management.remote.JMXServiceURL;
@@ -22,93 +39,863 @@ import org.apache.log4j.Logger;
 public class JmxClient {
     static Logger log = Logger.getLogger(JmxClient.class.getName());
 
+    // marks attributes that could not be read in this tick
+    static private final Object UNREADABLE = new Object();
+    // type of com.sun.management.GarbageCollectionNotificationInfo
+    static private final String GC_NOTIFICATION = "com.sun.management.gc.notification";
+    // per-tick event series of a notification-driven query, "<bean>#<name>"
+    static private final String[] EVENT_NAMES = { "notifications", "gcPauseMaxMs", "gcPauseTotalMs" };
+
     private int pid_;
-    private JMXConnector connector_;
+    private String url_;        // remote JMX service URL, null for a local pid
+    private volatile JMXConnector connector_;
+    private NotificationListener connectionListener_;
+    private MetricRegistry registry_;
+    private String keyPrefix_;
+    // "bean#attributes" -> handle, an index into queryList_
+    private Map<String, Integer> handles_;
+    private List<BeanQuery> queryList_;
+    private NotificationListener registrationListener_;
+    private NotificationListener notificationListener_;
+    private boolean batchReads_;
+    private AtomicLong roundTrips_;
+    private MonitorStats stats_;
+    // latency of each JMX operation and failed attribute reads, from stats_
+    private LatencyHistogram getMBeanInfoNs_;
+    private LatencyHistogram getAttributesNs_;
+    private LatencyHistogram getAttributeNs_;
+    private LatencyHistogram queryNamesNs_;
+    private AtomicLong attributeErrors_;
+    private AtomicLong notifications_;
+    private AtomicLong callsSaved_;
+
+    /*
+     * Compiled form of a "bean#attributes(csv)" request: the resolved
+     * ObjectName, the readable attributes to fetch and the result keys and
+     * metric ids of each value. Built from getMBeanInfo() on first use and
+     * kept until the bean is unregistered, so a steady-state sample only
+     * fetches values.
+     */
+    private static class BeanQuery {
+        String bean;
+        String csvAttributes;
+        volatile boolean compiled;
+        ObjectName name;
+        String[] attrNames;       // readable attributes, sorted
+        String[] attrKeys;        // bean#attr
+        int[] attrIds;
+        CompositeType[] types;    // last seen CompositeType per attribute
+        String[][] itemNames;     // CompositeType keys per attribute
+        String[][] itemKeys;      // bean#attr-key per attribute
+        int[][] itemIds;
+        Object[] results;         // reused by fetch()
+        volatile boolean fetched; // results are from the last fetch()
+        // for an ObjectName pattern: one query per matching bean, sorted by
+        // name and replaced as a whole when beans come and go; else null
+        volatile List<BeanQuery> members;
+        // notification-driven: the values are read once and then only after
+        // the bean emitted a notification, so that a quiet bean costs no
+        // round trip; its notifications are counted per tick instead
+        boolean notify;
+        int numEvents;            // event series, 0 if the bean emits nothing
+        int[] eventIds;
+        volatile MBeanServerConnection subscribed;  // null while polled
+        volatile boolean stale;   // notified since the last read
+        long events;              // since the last fetch, guarded by the query
+        long pauseMaxMs;
+        long pauseTotalMs;
+        long[] tickEvents;        // of the last fetch until copied, by EVENT_NAMES
+    }
 
     public JmxClient(int pid) {
+        this(pid, new MetricRegistry(), "");
+    }
+
+    /**
+     * keyPrefix is prepended to every result key, e.g. to tell apart the
+     * metrics of several VMs registered in one MetricRegistry.
+     */
+    public JmxClient(int pid, MetricRegistry registry, String keyPrefix) {
+        this(pid, null, registry, keyPrefix);
+    }
+
+    /**
+     * Client of a remote VM. url is a JMX service URL, e.g.
+     * service:jmx:rmi:///jndi/rmi://host:port/jmxrmi, or host:port as a
+     * shorthand for that.
+     */
+    public JmxClient(String url, MetricRegistry registry, String keyPrefix) {
+        this(-1, toServiceUrl(url), registry, keyPrefix);
+    }
+
+    private JmxClient(int pid, String url, MetricRegistry registry, String keyPrefix) {
         pid_ = pid;
+        url_ = url;
         connector_ = null;
+        registry_ = registry;
+        keyPrefix_ = keyPrefix;
+        handles_ = new ConcurrentHashMap<String, Integer>();
+        queryList_ = new CopyOnWriteArrayList<BeanQuery>();
+        batchReads_ = true;
+        roundTrips_ = new AtomicLong();
+        notificationListener_ = new NotificationListener() {
+                public void handleNotification(Notification notif, Object handback) {
+                    notified((BeanQuery)handback, notif);
+                }
+            };
+        setStats(new MonitorStats());
     }
     
+    static public boolean isRemote(String target) {
+        return target.startsWith("service:jmx:") || target.matches("[^\\s:/]+:\\d+");
+    }
+
+    static private String toServiceUrl(String url) {
+        if (url.startsWith("service:jmx:"))
+            return url;
+        return "service:jmx:rmi:///jndi/rmi://" + url + "/jmxrmi";
+    }
+
+    public int getPid() {
+        return pid_;
+    }
+
+    public String getUrl() {
+        return url_;
+    }
+
+    /* pid for a local VM, the service URL for a remote one */
+    public String getTargetName() {
+        return (url_ != null) ? url_ : "pid " + pid_;
+    }
+
+    /**
+     * Registers a listener for JMXConnectionNotifications (e.g. FAILED) of
+     * every connection opened from now on.
+     */
+    public void setConnectionListener(NotificationListener listener) {
+        connectionListener_ = listener;
+    }
+
     public void open() throws IOException {
-        LocalVirtualMachine vm = LocalVirtualMachine.getLocalVirtualMachine(pid_);
-        String url = vm.connectorAddress();
+        String url = url_;
+        if (url == null) {
+            LocalVirtualMachine vm = LocalVirtualMachine.getLocalVirtualMachine(pid_);
+            if (vm == null)
+                throw new IOException("No local VM with pid " + pid_);
+            url = vm.connectorAddress();
+            if (url == null)
+                throw new IOException("No JMX connector address for pid " + pid_);
+        }
         // log.debug("Connecting to MBean server: " + url);
-        connector_ = JMXConnectorFactory.connect(new JMXServiceURL(url), null /* env */);
-        log.info("Opened connection to pid " + pid_);
+        JMXConnector connector = JMXConnectorFactory.connect(new JMXServiceURL(url), null /* env */);
+        if (connectionListener_ != null)
+            connector.addConnectionNotificationListener(connectionListener_, null, this);
+        // pattern matches may have missed registrations; query them again
+        connector.addConnectionNotificationListener(new NotificationListener() {
+                public void handleNotification(Notification notif, Object handback) {
+                    if (notif.getType().equals(JMXConnectionNotification.NOTIFS_LOST))
+                        rediscover();
+                }
+            }, null, null);
+        connector_ = connector;
+        listenForRegistrations();
+        log.info("Opened connection to " + getTargetName());
+    }
+
+    private void listenForRegistrations() throws IOException {
+        MBeanServerNotificationFilter filter = new MBeanServerNotificationFilter();
+        filter.enableAllObjectNames();
+
+        registrationListener_ = new NotificationListener() {
+                public void handleNotification(Notification notif, Object handback) {
+                    if (!(notif instanceof MBeanServerNotification))
+                        return;
+                    ObjectName name = ((MBeanServerNotification)notif).getMBeanName();
+                    if (notif.getType().equals(MBeanServerNotification.REGISTRATION_NOTIFICATION))
+                        registered(name);
+                    else
+                        invalidate(name);
+                }
+            };
+        try {
+            connector_.getMBeanServerConnection().addNotificationListener(
+                MBeanServerDelegate.DELEGATE_NAME, registrationListener_, filter, null);
+        } catch (InstanceNotFoundException ex) {
+            // cannot happen for the delegate; fall back to InstanceNotFoundException only
+            log.warn(ex);
+            registrationListener_ = null;
+        }
+    }
+
+    private void invalidate(ObjectName name) {
+        for (BeanQuery query : queryList_) {
+            if (query.members != null) {
+                for (BeanQuery member : query.members) {
+                    if (member.name.equals(name))
+                        removeMember(query, member);
+                }
+            }
+            else if (query.compiled && query.name.equals(name)) {
+                query.compiled = false;
+                log.debug("Invalidated cached query for " + name);
+            }
+        }
+    }
+
+    /* Adds a newly registered bean to every pattern query it matches */
+    private void registered(ObjectName name) {
+        queries:
+        for (BeanQuery query : queryList_) {
+            if (query.members != null && query.name.apply(name)) {
+                synchronized (query) {
+                    List<BeanQuery> members = new ArrayList<BeanQuery>(query.members);
+                    for (BeanQuery member : members) {
+                        if (member.name.equals(name))
+                            continue queries;   // already found by queryNames()
+                    }
+                    members.add(newMember(query, name));
+                    sortMembers(members);
+                    query.members = members;
+                }
+                log.debug("Discovered " + name + " for " + query.bean);
+            }
+        }
+    }
+
+    private void removeMember(BeanQuery query, BeanQuery member) {
+        synchronized (query) {
+            List<BeanQuery> members = new ArrayList<BeanQuery>(query.members);
+            if (members.remove(member)) {
+                query.members = members;
+                log.debug("Removed " + member.bean + " from " + query.bean);
+            }
+        }
+    }
+
+    /*
+     * Makes every pattern query run queryNames() again on its next fetch,
+     * and every notification-driven query read its values again
+     */
+    private void rediscover() {
+        log.warn("Lost notifications from " + getTargetName() + ", rediscovering beans");
+        for (BeanQuery query : queryList_) {
+            if (query.members != null) {
+                query.compiled = false;
+                for (BeanQuery member : query.members)
+                    member.stale = true;
+            }
+            query.stale = true;
+        }
+    }
+
+    /* On a JMX notification thread: counts the event and invalidates the cached values */
+    private void notified(BeanQuery query, Notification notif) {
+        long pauseMs = -1;
+        if (notif.getType().equals(GC_NOTIFICATION) && notif.getUserData() instanceof CompositeData) {
+            try {
+                CompositeData gcInfo = (CompositeData)((CompositeData)notif.getUserData()).get("gcInfo");
+                pauseMs = ((Number)gcInfo.get("duration")).longValue();
+            } catch (RuntimeException ex) {
+                log.debug("Unexpected GC notification from " + query.bean + ": " + ex);
+            }
+        }
+        synchronized (query) {
+            query.events++;
+            if (0 <= pauseMs) {
+                query.pauseMaxMs = Math.max(query.pauseMaxMs, pauseMs);
+                query.pauseTotalMs += pauseMs;
+            }
+        }
+        query.stale = true;
+        notifications_.incrementAndGet();
+    }
+
+    /* Where to record JMX latencies and errors; shared by all clients of a monitor */
+    public void setStats(MonitorStats stats) {
+        stats_ = stats;
+        getMBeanInfoNs_ = stats.histogram("jmx.getMBeanInfo");
+        getAttributesNs_ = stats.histogram("jmx.getAttributes");
+        getAttributeNs_ = stats.histogram("jmx.getAttribute");
+        queryNamesNs_ = stats.histogram("jmx.queryNames");
+        attributeErrors_ = stats.counter(MonitorStats.ERRORS + "attribute");
+        notifications_ = stats.counter("notifications");
+        callsSaved_ = stats.counter(MonitorStats.CALLS_SAVED);
+    }
+
+    public MonitorStats getStats() {
+        return stats_;
+    }
+
+    public String getKeyPrefix() {
+        return keyPrefix_;
+    }
+
+    public MetricRegistry getRegistry() {
+        return registry_;
     }
 
     public boolean isOpened() {
         return (connector_ != null);
     }
     
+    /**
+     * Reads all attributes of a bean with one getAttributes() call (default)
+     * instead of one getAttribute() call per attribute.
+     */
+    public void setBatchReads(boolean batchReads) {
+        batchReads_ = batchReads;
+    }
+
+    /**
+     * Number of MBean server calls issued so far (getMBeanInfo, getAttributes
+     * and getAttribute); each one is a network round trip on a remote VM.
+     */
+    public long getRoundTrips() {
+        return roundTrips_.get();
+    }
+
     public void close() throws IOException {
-        if (connector_ != null) {
-            connector_.close();
+        for (BeanQuery query : queryList_)
+            query.compiled = false;
+        JMXConnector connector = connector_;
+        connector_ = null;
+        if (connector != null) {
+            if (connectionListener_ != null) {
+                try {
+                    connector.removeConnectionNotificationListener(connectionListener_);
+                } catch (JMException ex) {
+                    ;
+                }
+            }
+            connector.close();
             log.info("Bye");
         }
     }
 
-    public Map<String, Object> getAttributeValues(String bean, String csvAttributes) 
-        throws JMException, IOException {
-        String[] attrs = csvAttributes.split(",");
-        ArrayList<String> attributes = new ArrayList<String>(Arrays.asList(attrs));
+    /**
+     * Returns a handle for a "bean#attributes(csv)" request, to be passed to
+     * readValues(). The same request always gets the same handle.
+     */
+    public int prepare(String bean, String csvAttributes) {
+        return prepare(bean, csvAttributes, false);
+    }
 
-        if (attributes == null || attributes.isEmpty())
-            throw new IllegalArgumentException( "Please specify at least one attribute" );
+    /**
+     * With notify, the request is notification-driven if the bean is a
+     * NotificationEmitter: its values are read on the first fetch and then
+     * only after the bean emitted a notification, and the cached ones are
+     * returned in between. Each fetch adds "<bean>#notifications", the
+     * number of notifications since the previous fetch, and for a garbage
+     * collector "#gcPauseMaxMs" and "#gcPauseTotalMs" of the collections in
+     * that time. Meant for beans that change by events (GC counts, config,
+     * controller or log dir state), not for rates, which change all the
+     * time without notifying. Beans that emit nothing are polled.
+     */
+    public synchronized int prepare(String bean, String csvAttributes, boolean notify) {
         if (bean == null)
             throw new IllegalArgumentException( "Please specify a valid bean name" );
 
-        ObjectName beanName = new ObjectName(bean);
-        MBeanServerConnection conn = connector_.getMBeanServerConnection();
-        MBeanAttributeInfo[] attrInfos = conn.getMBeanInfo(beanName).getAttributes();
-        Map<String, MBeanAttributeInfo> attrNames = new TreeMap<String, MBeanAttributeInfo>();
+        String queryKey = bean + "#" + csvAttributes + (notify ? "#notify" : "");
+        Integer handle = handles_.get(queryKey);
+        if (handle == null) {
+            BeanQuery query = new BeanQuery();
+            query.bean = bean;
+            query.csvAttributes = csvAttributes;
+            query.notify = notify;
+            query.compiled = false;
+            handle = queryList_.size();
+            queryList_.add(query);
+            handles_.put(queryKey, handle);
+        }
+        return handle;
+    }
 
-        if (attributes.contains("*")) {
-            for (MBeanAttributeInfo attrInfo : attrInfos)
-                attrNames.put(attrInfo.getName(), attrInfo);
+    public Map<String, Object> getAttributeValues(String bean, String csvAttributes) 
+        throws JMException, IOException {
+        BeanQuery query = queryList_.get(prepare(bean, csvAttributes));
+        fetch(query);
+
+        Map<String, Object> attrValues = new TreeMap<String, Object>();
+        if (query.members != null) {
+            for (BeanQuery member : query.members) {
+                if (member.fetched)
+                    putValues(member, attrValues);
+            }
         }
         else {
-            for (String attr : attributes) {
-                for (MBeanAttributeInfo attrInfo : attrInfos) {
-                    if (attrInfo.getName().equals(attr)) {
-                        attrNames.put(attr, attrInfo);
-                        break;
-                    }
+            putValues(query, attrValues);
+        }
+
+        return attrValues;
+    }
+
+    private void putValues(BeanQuery query, Map<String, Object> attrValues) {
+        Object[] results = query.results;
+        for (int i = 0; i < query.attrNames.length; i++) {
+            Object result = results[i];
+            if (result == UNREADABLE)
+                continue;
+            if (result instanceof CompositeData) {
+                String[] itemNames = query.itemNames[i];
+                Object[] vals = ((CompositeData)result).getAll(itemNames);
+                for (int j = 0; j < itemNames.length; j++)
+                    attrValues.put(query.itemKeys[i][j], vals[j]); 
+            }
+            else {
+                attrValues.put(query.attrKeys[i], result);
+            }
+        }
+        if (query.subscribed != null) {
+            for (int i = 0; i < query.numEvents; i++)
+                attrValues.put(query.bean + "#" + EVENT_NAMES[i], query.tickEvents[i]);
+        }
+    }
+
+    /**
+     * Reads the values of a prepared request into frame, addressed by the
+     * metric ids of this client's MetricRegistry. Apart from what the JMX
+     * connection itself allocates, nothing is allocated per call.
+     */
+    public void readValues(int handle, SampleFrame frame) throws JMException, IOException {
+        fetch(handle);
+        copyValues(handle, frame);
+    }
+
+    /**
+     * First half of readValues(): fetches the values of a prepared request
+     * and keeps them until the next fetch. Different handles may be fetched
+     * concurrently.
+     */
+    public void fetch(int handle) throws JMException, IOException {
+        fetch(queryList_.get(handle));
+    }
+
+    /**
+     * Fetches the first count of handles, prepared requests of the same
+     * bean, with one getAttributes() for all of their attributes instead
+     * of one each. Requests that cannot share it (patterns, notify, not
+     * compiled yet, or batch reads off) are fetched on their own.
+     */
+    public void fetch(int[] handles, int count) throws JMException, IOException {
+        JMXConnector connector = connector_;
+        if (connector == null)
+            throw new IOException("Not connected to " + getTargetName());
+        MBeanServerConnection conn = connector.getMBeanServerConnection();
+
+        BeanQuery[] batch = new BeanQuery[count];
+        int size = 0;
+        ObjectName name = null;
+        for (int i = 0; i < count; i++) {
+            BeanQuery query = queryList_.get(handles[i]);
+            if (batchReads_ && query.compiled && query.members == null && !query.notify &&
+                (name == null || name.equals(query.name))) {
+                name = query.name;
+                batch[size++] = query;
+            }
+            else {
+                fetch(query);
+            }
+        }
+        if (size == 0)
+            return;
+        if (size == 1) {
+            fetch(batch[0]);
+            return;
+        }
+
+        List<String> attrNames = new ArrayList<String>();
+        for (int i = 0; i < size; i++) {
+            batch[i].fetched = false;
+            Arrays.fill(batch[i].results, null);
+            for (String attrName : batch[i].attrNames) {
+                if (!attrNames.contains(attrName))
+                    attrNames.add(attrName);
+            }
+        }
+        AttributeList list;
+        try {
+            roundTrips_.incrementAndGet();
+            long start = System.nanoTime();
+            list = conn.getAttributes(name, attrNames.toArray(new String[attrNames.size()]));
+            getAttributesNs_.recordSince(start);
+        } catch (InstanceNotFoundException ex) {
+            for (int i = 0; i < size; i++)
+                batch[i].compiled = false;
+            throw ex;
+        }
+        callsSaved_.addAndGet(size - 1);
+        for (Attribute attr : list.asList()) {
+            for (int i = 0; i < size; i++) {
+                int j = Arrays.asList(batch[i].attrNames).indexOf(attr.getName());
+                if (0 <= j)
+                    batch[i].results[j] = attr.getValue();
+            }
+        }
+        for (int i = 0; i < size; i++)
+            readRest(conn, batch[i]);
+    }
+
+    /*
+     * Round trips a fetch of the prepared request normally takes: one per
+     * bean it resolved to, as attributes are read in batches
+     */
+    public int getCallsPerFetch(int handle) {
+        List<BeanQuery> members = queryList_.get(handle).members;
+        return (members != null) ? members.size() : 1;
+    }
+
+    /* Second half of readValues(): puts the values of the last fetch(handle) into frame */
+    public void copyValues(int handle, SampleFrame frame) {
+        BeanQuery query = queryList_.get(handle);
+        if (query.members != null) {
+            for (BeanQuery member : query.members) {
+                if (member.fetched)
+                    copyValues(member, frame);
+            }
+        }
+        else {
+            copyValues(query, frame);
+        }
+    }
+
+    private void copyValues(BeanQuery query, SampleFrame frame) {
+        Object[] results = query.results;
+
+        for (int i = 0; i < query.attrNames.length; i++) {
+            Object result = results[i];
+            if (result == UNREADABLE)
+                continue;
+            if (result instanceof CompositeData) {
+                CompositeData data = (CompositeData)result;
+                String[] itemNames = query.itemNames[i];
+                for (int j = 0; j < itemNames.length; j++)
+                    frame.put(query.itemIds[i][j], data.get(itemNames[j]));
+            }
+            else {
+                frame.put(query.attrIds[i], result);
+            }
+        }
+        if (query.subscribed != null) {
+            // the events of a fetch are put once; copies of a later tick
+            // without a fetch (a line not due) put 0
+            for (int i = 0; i < query.numEvents; i++) {
+                frame.putLong(query.eventIds[i], query.tickEvents[i]);
+                query.tickEvents[i] = 0;
+            }
+        }
+    }
+
+    /* The bean name of a prepared request */
+    public String getBean(int handle) {
+        return queryList_.get(handle).bean;
+    }
+
+    /*
+     * Fetches the current values of a query into query.results, compiling it
+     * first if needed. Attributes that could not be read come back as
+     * UNREADABLE. A pattern query fetches each of its members instead. A
+     * subscribed query keeps its results unless it was notified.
+     */
+    private void fetch(BeanQuery query) throws JMException, IOException {
+        JMXConnector connector = connector_;
+        if (connector == null)
+            throw new IOException("Not connected to " + getTargetName());
+        MBeanServerConnection conn = connector.getMBeanServerConnection();
+        if (!query.compiled)
+            compile(conn, query);
+
+        if (query.members != null) {
+            for (BeanQuery member : query.members) {
+                try {
+                    fetch(member);
+                } catch (InstanceNotFoundException ex) {
+                    // unregistered before we heard about it
+                    removeMember(query, member);
                 }
             }
+            return;
         }
 
-        Map<String, Object> attrValues = new TreeMap<String, Object>();
-        for (Map.Entry<String, MBeanAttributeInfo> entry : attrNames.entrySet()) {
-            String attrName = entry.getKey();
-            MBeanAttributeInfo attrInfo = entry.getValue();
-            if (attrInfo.isReadable()) {
-                Object result = conn.getAttribute(beanName, attrName);
-                if (result instanceof CompositeDataSupport ) {
-                    Set<String> keys = ((CompositeDataSupport)result)
-                        .getCompositeType().keySet();
-                    for (String key : keys) {
-                        Object val = ((CompositeData)result).get(key);
-                        attrValues.put(bean + "#" + attrName + "-" + key, val); 
-                    }
+        if (query.notify && query.subscribed != conn)
+            subscribe(conn, query);
+        if (query.subscribed != null) {
+            takeEvents(query);
+            if (query.fetched && !query.stale) {
+                callsSaved_.incrementAndGet();
+                return;
+            }
+            query.stale = false;    // a notification from now on means read again
+        }
+
+        query.fetched = false;
+        Arrays.fill(query.results, null);
+        if (batchReads_)
+            readBatch(conn, query);
+        readRest(conn, query);
+    }
+
+    /*
+     * Reads the attributes whose results are still null one by one, then
+     * marks the query fetched
+     */
+    private void readRest(MBeanServerConnection conn, BeanQuery query)
+        throws JMException, IOException {
+        Object[] results = query.results;
+        for (int i = 0; i < query.attrNames.length; i++) {
+            Object result = results[i];
+            if (result == null) {
+                // not batched, or failed in the batch: read it on its own
+                try {
+                    roundTrips_.incrementAndGet();
+                    long start = System.nanoTime();
+                    result = conn.getAttribute(query.name, query.attrNames[i]);
+                    getAttributeNs_.recordSince(start);
+                } catch (InstanceNotFoundException ex) {
+                    query.compiled = false;
+                    throw ex;
+                } catch (JMException ex) {
+                    attributeErrors_.incrementAndGet();
+                    log.warn("Failed to read " + query.attrKeys[i] + ": " + ex);
+                    results[i] = UNREADABLE;
+                    continue;
                 }
-                else {
-                    attrValues.put(bean + "#" + attrName, result);
+                results[i] = result;
+            }
+            if (result instanceof CompositeData) {
+                CompositeType type = ((CompositeData)result).getCompositeType();
+                if (!type.equals(query.types[i]))
+                    compileComposite(query, i, type);
+            }
+        }
+        query.fetched = true;
+    }
+
+    /*
+     * Fetches all attributes of the query in one round trip into
+     * query.results. getAttributes() silently leaves out attributes it could
+     * not read; their slots stay null so that the caller retries them one by
+     * one.
+     */
+    private void readBatch(MBeanServerConnection conn, BeanQuery query)
+        throws JMException, IOException {
+        Object[] results = query.results;
+        if (query.attrNames.length == 0)
+            return;
+
+        AttributeList list;
+        try {
+            roundTrips_.incrementAndGet();
+            long start = System.nanoTime();
+            list = conn.getAttributes(query.name, query.attrNames);
+            getAttributesNs_.recordSince(start);
+        } catch (InstanceNotFoundException ex) {
+            query.compiled = false;
+            throw ex;
+        }
+
+        // results normally come back in request order; search only on a mismatch
+        int i = 0;
+        for (Attribute attr : list.asList()) {
+            if (i >= results.length || !attr.getName().equals(query.attrNames[i]))
+                i = Arrays.asList(query.attrNames).indexOf(attr.getName());
+            if (i < 0) {
+                i = 0;
+                continue;
+            }
+            results[i++] = attr.getValue();
+        }
+    }
+
+    private void compile(MBeanServerConnection conn, BeanQuery query)
+        throws JMException, IOException {
+        String[] attrs = query.csvAttributes.split(",");
+        ArrayList<String> attributes = new ArrayList<String>(Arrays.asList(attrs));
+
+        if (attributes == null || attributes.isEmpty())
+            throw new IllegalArgumentException( "Please specify at least one attribute" );
+
+        ObjectName beanName = new ObjectName(query.bean);
+        if (beanName.isPattern()) {
+            compilePattern(conn, query, beanName);
+            return;
+        }
+        roundTrips_.incrementAndGet();
+        long start = System.nanoTime();
+        MBeanInfo info = conn.getMBeanInfo(beanName);
+        getMBeanInfoNs_.recordSince(start);
+        MBeanAttributeInfo[] attrInfos = info.getAttributes();
+        Map<String, MBeanAttributeInfo> attrNames = new TreeMap<String, MBeanAttributeInfo>();
+        for (MBeanAttributeInfo attrInfo : attrInfos) {
+            if (attributes.contains("*") || attributes.contains(attrInfo.getName()))
+                attrNames.put(attrInfo.getName(), attrInfo);
+        }
+
+        List<String> readable = new ArrayList<String>();
+        for (MBeanAttributeInfo attrInfo : attrNames.values()) {
+            if (attrInfo.isReadable())
+                readable.add(attrInfo.getName());
+        }
+
+        query.name = beanName;
+        query.attrNames = readable.toArray(new String[readable.size()]);
+        query.attrKeys = new String[query.attrNames.length];
+        query.attrIds = new int[query.attrNames.length];
+        query.types = new CompositeType[query.attrNames.length];
+        query.itemNames = new String[query.attrNames.length][];
+        query.itemKeys = new String[query.attrNames.length][];
+        query.itemIds = new int[query.attrNames.length][];
+        query.results = new Object[query.attrNames.length];
+        for (int i = 0; i < query.attrNames.length; i++) {
+            query.attrKeys[i] = keyPrefix_ + query.bean + "#" + query.attrNames[i];
+            query.attrIds[i] = registry_.idOf(query.attrKeys[i]);
+        }
+        if (query.notify)
+            compileEvents(query, info.getNotifications());
+        query.compiled = true;
+        log.debug("Compiled query for " + query.bean + ": " + readable);
+    }
+
+    /*
+     * Resolves an ObjectName pattern with queryNames(). From then on the
+     * registration listener keeps the matches current, so this runs again
+     * only after a reconnect or lost notifications.
+     */
+    private void compilePattern(MBeanServerConnection conn, BeanQuery query, ObjectName pattern)
+        throws IOException {
+        roundTrips_.incrementAndGet();
+        long start = System.nanoTime();
+        Set<ObjectName> names = conn.queryNames(pattern, null);
+        queryNamesNs_.recordSince(start);
+
+        synchronized (query) {
+            // keep the members we already have, so their compiled queries survive
+            List<BeanQuery> old = (query.members != null) ? 
+                query.members : new ArrayList<BeanQuery>();
+            List<BeanQuery> members = new ArrayList<BeanQuery>();
+            for (ObjectName name : names) {
+                BeanQuery member = null;
+                for (BeanQuery m : old) {
+                    if (m.name.equals(name))
+                        member = m;
                 }
+                members.add((member != null) ? member : newMember(query, name));
             }
+            sortMembers(members);
+            query.name = pattern;
+            query.members = members;
+            query.compiled = true;
         }
+        log.debug("Resolved " + query.bean + " to " + names.size() + " beans");
+    }
 
-        return attrValues;
+    private BeanQuery newMember(BeanQuery query, ObjectName name) {
+        BeanQuery member = new BeanQuery();
+        member.bean = name.toString();
+        member.name = name;
+        member.csvAttributes = query.csvAttributes;
+        member.notify = query.notify;
+        member.compiled = false;
+        return member;
+    }
+
+    /*
+     * The event series of a notification-driven query, from the
+     * notifications the bean declares; none if it declares none. Makes the
+     * next fetch subscribe again, as the bean may be a new one.
+     */
+    private void compileEvents(BeanQuery query, MBeanNotificationInfo[] notifInfos) {
+        boolean gc = false;
+        for (MBeanNotificationInfo notifInfo : notifInfos) {
+            if (Arrays.asList(notifInfo.getNotifTypes()).contains(GC_NOTIFICATION))
+                gc = true;
+        }
+        query.numEvents = (notifInfos.length == 0) ? 0 : (gc ? 3 : 1);
+        query.eventIds = new int[query.numEvents];
+        for (int i = 0; i < query.numEvents; i++)
+            query.eventIds[i] = registry_.idOf(keyPrefix_ + query.bean + "#" + EVENT_NAMES[i]);
+        query.tickEvents = new long[EVENT_NAMES.length];
+        query.subscribed = null;
+        if (query.numEvents == 0)
+            log.info(query.bean + " emits no notifications, polling it");
+    }
+
+    /*
+     * Listens to the bean's notifications on conn; on failure, or if the
+     * bean emits none, the query is polled. Either way its values are read
+     * on this fetch.
+     */
+    private void subscribe(MBeanServerConnection conn, BeanQuery query)
+        throws JMException, IOException {
+        query.subscribed = null;
+        query.stale = true;
+        if (query.numEvents == 0)
+            return;
+        try {
+            roundTrips_.incrementAndGet();
+            conn.addNotificationListener(query.name, notificationListener_, null, query);
+        } catch (RuntimeOperationsException ex) {
+            // not a NotificationEmitter after all
+            query.numEvents = 0;
+            log.warn("Cannot listen to " + query.bean + ", polling it: " + ex.getCause());
+            return;
+        } catch (InstanceNotFoundException ex) {
+            query.compiled = false;
+            throw ex;
+        }
+        synchronized (query) {
+            query.events = 0;
+            query.pauseMaxMs = 0;
+            query.pauseTotalMs = 0;
+        }
+        query.subscribed = conn;
+        log.debug("Listening to notifications of " + query.bean);
+    }
+
+    /* Moves the events counted since the last fetch to tickEvents */
+    private void takeEvents(BeanQuery query) {
+        synchronized (query) {
+            query.tickEvents[0] = query.events;
+            query.tickEvents[1] = query.pauseMaxMs;
+            query.tickEvents[2] = query.pauseTotalMs;
+            query.events = 0;
+            query.pauseMaxMs = 0;
+            query.pauseTotalMs = 0;
+        }
+    }
+
+    static private void sortMembers(List<BeanQuery> members) {
+        Collections.sort(members, new Comparator<BeanQuery>() {
+                public int compare(BeanQuery a, BeanQuery b) {
+                    return a.bean.compareTo(b.bean);
+                }
+            });
+    }
+
+    private void compileComposite(BeanQuery query, int i, CompositeType type) {
+        Set<String> keys = type.keySet();
+        String[] itemNames = keys.toArray(new String[keys.size()]);
+        String[] itemKeys = new String[itemNames.length];
+        int[] itemIds = new int[itemNames.length];
+        for (int j = 0; j < itemNames.length; j++) {
+            itemKeys[j] = query.attrKeys[i] + "-" + itemNames[j];
+            itemIds[j] = registry_.idOf(itemKeys[j]);
+        }
+        query.itemNames[i] = itemNames;
+        query.itemKeys[i] = itemKeys;
+        query.itemIds[i] = itemIds;
+        query.types[i] = type;
     }
 
     public static void main(String[] args) {
         if (args.length < 2) {
-            System.err.println("Usage: java JmxClient [pid] [bean#attributes(csv)]+");
+            System.err.println("Usage: java JmxClient [pid | host:port | JMX service URL] " +
+                               "[bean#attributes(csv)]+");
             System.exit(1);
         }
 
-        JmxClient jmx = new JmxClient(Integer.parseInt(args[0]));
+        JmxClient jmx = isRemote(args[0]) ? 
+            new JmxClient(args[0], new MetricRegistry(), "") : new JmxClient(Integer.parseInt(args[0]));
 
         try {
             jmx.open();
@@ -120,6 +907,7 @@ public class JmxClient {
                     log.info(entry.getKey() + ": " + entry.getValue());
                 }
             }
+            log.info("Round trips: " + jmx.getRoundTrips());
             jmx.close();
         } catch (IOException ex) {
             log.error(ex);
@@ -1,15 +1,16 @@
 import java.io.BufferedReader;
 import java.io.FileReader;
-import java.io.InputStreamReader;
 import java.io.IOException;
-import java.io.PrintWriter;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.net.SocketTimeoutException;
 import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
-import javax.management.JMException;
 import sun.tools.jconsole.LocalVirtualMachine;
 import org.apache.log4j.Logger;
 
@@ -18,29 +19,86 @@ public class JmxMonitor {
     static Logger log = Logger.getLogger(JmxMonitor.class.getName());
 
     static private int LISTEN_PORT = 9999;
-    static private int ACCEPT_TIMEOUT_MS = 3000; // [ms]
+    static private long SAMPLING_INTERVAL_MS = 3000; // [ms]
+    static private int SUBSCRIBER_BUFFER_SIZE = 1024; // [samples]
+    static private int HISTORY_CAPACITY = 3600; // [samples per metric]
+    static private int SAMPLING_THREADS = 8;
+    static private long SEGMENT_BYTES = 64L << 20;
+    static private long SEGMENT_AGE_MS = 3600000; // [ms]
+    static private double ADAPTIVE_STABLE_PERCENT = 1.0;
 
     private int port_;
-    private ServerSocket serverSock_;
+    private ControlServer server_;
+    private OpenMetricsServer metricsServer_;   // null unless -Djmxmon.http.port is set
 
-    private int pid_;
-    private JmxClient client_;
     private ArrayList<String[]> beanAttrList_;
+    private MetricRegistry registry_;
+    private DerivedMetrics derived_;
+    private MonitorStats stats_;
+    private LatencyHistogram tickNs_;
+    private ConnectionManager manager_;
+    private List<Target> targets_;
+    private List<SampleFrame> frames_;  // frame of each target, in target order
+    private List<String> prefixes_;     // metric name prefix of each target
+    private ExecutorService executor_;
+    private List<Callable<Void>> tasks_;    // targets, or all their bean reads in fan-out mode
+    private long intervalMs_;   // of lines without interval=
+    private long periodMs_;     // of a tick: the shortest interval of any line
+    private long tick_;
+    // stats of the last tick, for get_tick_stats
+    private volatile long lastWallNs_;
+    private volatile long lastRoundTrips_;
+    private volatile Target.BeanRead lastSlowest_;
+    private volatile long lastSlowestNs_;
+    private SampleFormatter formatter_;
     private long startTime_;
+    private Sampler sampler_;
+    private volatile String lastSample_;
+    private MetricHistory history_;
+    private SegmentLog segmentLog_;     // null unless -Djmxmon.log.dir is set
+    private AlertEngine alerts_;        // null unless -Djmxmon.alerts is set
 
-    public JmxMonitor(String className, String beansFile) {
+    /**
+     * classNames is a comma-separated list of patterns matched against the
+     * display names of the local VMs; every matching VM is monitored. "*"
+     * matches all VMs.
+     */
+    public JmxMonitor(String classNames, String beansFile, long intervalMs) {
 
         port_ = LISTEN_PORT;
         try {
-            serverSock_ = new ServerSocket(port_);
-            serverSock_.setSoTimeout(ACCEPT_TIMEOUT_MS);
+            server_ = new ControlServer(port_, new ControlServer.Handler() {
+                    public String handle(String request) {
+                        return handleRequest(request);
+                    }
+
+                    public void onClose() {
+                        sampler_.stop();
+                    }
+                });
+            server_.setSlowConsumerPolicy(
+                Integer.getInteger("jmxmon.subscriber.buffer", SUBSCRIBER_BUFFER_SIZE),
+                ControlServer.SlowConsumerPolicy.valueOf(
+                    System.getProperty("jmxmon.subscriber.policy", "drop_oldest").toUpperCase()));
+            // formatted from the history, which has its own lock
+            server_.setSlowRequests("get_range");
         } catch (Exception ex) {
             log.error(ex);
         }
 
-        pid_ = getPid(className);
-        if (pid_ < 0) {
-            log.error("pid not found for " + className);
+        // remote targets are given as host:port or JMX service URLs, the rest are patterns
+        List<String> urls = new ArrayList<String>();
+        List<String> patterns = new ArrayList<String>();
+        for (String className : classNames.split(",")) {
+            if (JmxClient.isRemote(className))
+                urls.add(className);
+            else
+                patterns.add(className);
+        }
+        Map<Integer, String> vms = patterns.isEmpty() ? 
+            new TreeMap<Integer, String>() : getPids(patterns.toArray(new String[patterns.size()]));
+        if (vms.isEmpty() && urls.isEmpty()) {
+            log.error("pid not found for " + classNames);
             System.exit(1);
         }
 
@@ -58,86 +116,305 @@ public class JmxMonitor {
         }
         // for (String[] beanAttr : beanAttrList_)
         //     System.out.println(beanAttr[0] + ", " + beanAttr[1]);
+        // lines with an interval= shorter than the sampling interval make ticks shorter
+        intervalMs_ = intervalMs;
+        periodMs_ = Target.periodOf(beanAttrList_, intervalMs);
 
-        client_ = new JmxClient(pid_);
+        // metric names are tagged by VM only when there is more than one
+        registry_ = new MetricRegistry();
+        stats_ = new MonitorStats();
+        tickNs_ = stats_.histogram(MonitorStats.TICK);
+        // -Djmxmon.history.compress=true keeps the history Gorilla-compressed
+        history_ = new MetricHistory(registry_, 
+                                     Integer.getInteger("jmxmon.history.capacity", HISTORY_CAPACITY),
+                                     Boolean.getBoolean("jmxmon.history.compress"));
+        derived_ = new DerivedMetrics(registry_, history_);
+        manager_ = new ConnectionManager();
+        stats_.setConnectionManager(manager_);
+        targets_ = new ArrayList<Target>();
+        frames_ = new ArrayList<SampleFrame>();
+        prefixes_ = new ArrayList<String>();
+        boolean tagged = (1 < vms.size() + urls.size());
+        for (Map.Entry<Integer, String> vm : vms.entrySet()) {
+            String tag = tagged ? Target.tagOf(vm.getKey(), vm.getValue()) + "/" : "";
+            addTarget(new JmxClient(vm.getKey(), registry_, tag), vm.getValue());
+        }
+        for (String url : urls)
+            addTarget(new JmxClient(url, registry_, tagged ? url + "/" : ""), url);
+        // -Djmxmon.fanout=true reads every bean of a tick concurrently, not just every target
+        boolean fanout = Boolean.getBoolean("jmxmon.fanout");
+        tasks_ = new ArrayList<Callable<Void>>();
+        for (Target target : targets_) {
+            if (fanout)
+                tasks_.addAll(target.getReads());
+            else
+                tasks_.add(target);
+        }
+        // no tasks (fan-out over a beans file without beans) idles rather than fails
+        executor_ = Executors.newFixedThreadPool(
+            Math.max(1, Math.min(tasks_.size(), Integer.getInteger("jmxmon.threads", SAMPLING_THREADS))));
+        formatter_ = new SampleFormatter();
+        Integer httpPort = Integer.getInteger("jmxmon.http.port");
+        if (httpPort != null) {
+            try {
+                metricsServer_ = new OpenMetricsServer(httpPort, registry_);
+            } catch (IOException ex) {
+                log.error(ex);
+            }
+        }
+        segmentLog_ = openSegmentLog(System.getProperty("jmxmon.log.dir"), registry_);
+        // -Djmxmon.alerts=<rules file>, sent to -Djmxmon.alerts.sink=<file | http:// URL>(csv)
+        alerts_ = AlertEngine.open(System.getProperty("jmxmon.alerts"), 
+                                   System.getProperty("jmxmon.alerts.sink"), registry_);
+        if (alerts_ != null)
+            alerts_.setStats(stats_);
+        sampler_ = new Sampler(periodMs_, new Runnable() {
+                public void run() {
+                    sample();
+                }
+            });
+        stats_.setSampler(sampler_);
+        stats_.register("jmxmon:type=MonitorStats");
         startTime_ = System.currentTimeMillis();
-        log.info("Started at time " + startTime_ + " with listening port " + port_);
+        log.info("Started at time " + startTime_ + " with listening port " + port_ +
+                 ", targets " + targets_.size() +
+                 ", parallel reads " + tasks_.size() +
+                 ((alerts_ != null) ? ", alert rules " + alerts_.getNumRules() : "") +
+                 ", sampling interval " + intervalMs + " ms" +
+                 ((periodMs_ != intervalMs) ? " (ticks of " + periodMs_ + " ms)" : "") +
+                 ", history " + history_.getCapacity() + " samples per metric" +
+                 (history_.isCompressed() ? " (compressed)" : ""));
     }
 
-    private int getPid(String className) {
-        int pid = -1;
+    /* Binary sample log in dir, rotated by -Djmxmon.log.segment.mb and .minutes */
+    static private SegmentLog openSegmentLog(String dir, MetricRegistry registry) {
+        if (dir == null)
+            return null;
+        try {
+            return new SegmentLog(dir, registry,
+                                  Long.getLong("jmxmon.log.segment.mb", SEGMENT_BYTES >> 20) << 20,
+                                  Long.getLong("jmxmon.log.segment.minutes", 
+                                               SEGMENT_AGE_MS / 60000) * 60000);
+        } catch (Exception ex) {
+            log.error(ex);
+            return null;
+        }
+    }
+
+    private void addTarget(JmxClient client, String displayName) {
+        client.setStats(stats_);
+        Target target = new Target(client, displayName, manager_, beanAttrList_, derived_);
+        // -Djmxmon.adaptive.percent: largest change between reads an adaptive line counts as stable
+        target.setSchedule(periodMs_, intervalMs_, 
+                           Double.parseDouble(System.getProperty("jmxmon.adaptive.percent", 
+                                                                 Double.toString(ADAPTIVE_STABLE_PERCENT))));
+        targets_.add(target);
+        frames_.add(target.getFrame());
+        prefixes_.add(client.getKeyPrefix());
+    }
+
+    private String handleRequest(String request) {
+        String[] args = request.trim().split("\\s+");
+        if (args[0].equals("get_data")) {
+            return (lastSample_ != null) ? lastSample_ : "";
+        }
+        else if (args[0].equals("get_range")) {
+            // header, one line per sample and an empty line to end the response
+            try {
+                return history_.getRange(Long.parseLong(args[1]), Long.parseLong(args[2]),
+                                         (4 <= args.length) ? args[3] : null);
+            } catch (RuntimeException ex) {
+                return "error: usage get_range <from ms> <to ms> [name substring]";
+            }
+        }
+        else if (args[0].equals("get_tick_stats")) {
+            return getTickStats() + ", sampler: " + sampler_;
+        }
+        else if (args[0].equals("get_history_stats")) {
+            return "metrics " + history_.getNumMetrics() +
+                ", capacity " + history_.getCapacity() + " samples per metric" +
+                ", compressed " + history_.isCompressed() +
+                ", footprint " + history_.getFootprintBytes() + " bytes";
+        }
+        else if (args[0].equals("get_self_stats")) {
+            return stats_.getSummary();
+        }
+        else if (args[0].equals("get_latencies")) {
+            // one line per histogram and counter, and an empty line to end the response
+            StringBuilder sb = new StringBuilder();
+            for (String latency : stats_.getLatencies())
+                sb.append(latency).append('\n');
+            for (String counter : stats_.getCounters())
+                sb.append(counter).append('\n');
+            return sb.toString();
+        }
+        else if (args[0].equals("get_alerts")) {
+            // one line per firing alert, and an empty line to end the response
+            return (alerts_ != null) ? alerts_.getFiring() : "";
+        }
+        else if (args[0].equals("get_targets")) {
+            StringBuilder sb = new StringBuilder();
+            for (Target target : targets_) {
+                if (0 < sb.length())
+                    sb.append(", ");
+                if (0 <= target.getPid())
+                    sb.append(target.getPid()).append(' ');
+                sb.append(target.getDisplayName())
+                    .append(target.isUp() ? " (up)" : " (down)");
+            }
+            return sb.toString();
+        }
+        return "error: unknown request " + request;
+    }
+
+    /* pid -> display name of every VM matching one of the patterns */
+    private Map<Integer, String> getPids(String[] classNames) {
+        Map<Integer, String> pids = new TreeMap<Integer, String>();
 
         Map<Integer, LocalVirtualMachine> vms = LocalVirtualMachine.getAllVirtualMachines();
         for (Map.Entry<Integer, LocalVirtualMachine> entry : vms.entrySet()) {
             LocalVirtualMachine vm = entry.getValue();
-            // if (vm.displayName().startsWith(className)) {
-            if (vm.displayName().contains(className) && 
-                !vm.displayName().contains(JmxMonitor.class.getName())) {
-                pid = vm.vmid();
-                log.info("Found vm \"" + vm.displayName() + "\" with pid " + pid);
-                break;
+            if (vm.displayName().contains(JmxMonitor.class.getName()))
+                continue;
+            for (String className : classNames) {
+                // if (vm.displayName().startsWith(className)) {
+                if (className.equals("*") || vm.displayName().contains(className)) {
+                    pids.put(vm.vmid(), vm.displayName());
+                    log.info("Found vm \"" + vm.displayName() + "\" with pid " + vm.vmid());
+                    break;
+                }
             }
         }
 
-        return pid;
+        return pids;
     }
 
-    public void doMonitor() {
-        try {
-            client_.open();
-
-            while (true) {
-                String str = System.currentTimeMillis() + ", ";
-
-                for (String[] beanAttr : beanAttrList_) {
-                    Map<String, Object> vals = client_
-                        .getAttributeValues(beanAttr[0], beanAttr[1]);
-                    for (Map.Entry<String, Object> val : vals.entrySet()) {
-                        if (val.getValue() instanceof Double)
-                            str += String.format("%.3f", val.getValue()) + ", ";
-                        else
-                            str += val.getValue() + ", ";
-                    }
-                }
+    /*
+     * Reads all targets (or, in fan-out mode, all beans of all targets) in
+     * parallel, then fills their frames, all stamped with the tick time, and
+     * merges them into one line in target order.
+     */
+    private void sample() {
+        long tickStart = System.nanoTime();
+        long now = System.currentTimeMillis();
+        long roundTrips = 0;
+        tick_++;
+        for (Target target : targets_) {
+            target.getFrame().reset(now);
+            target.beginTick(tick_);
+            roundTrips -= target.getClient().getRoundTrips();
+        }
 
-                str = str.substring(0, str.lastIndexOf(','));
-                log.info(str);
+        long start = System.nanoTime();
+        try {
+            List<Future<Void>> results = executor_.invokeAll(tasks_);
+            for (Future<Void> result : results)
+                result.get();
+        } catch (InterruptedException ex) {
+            log.error(ex);
+            sampler_.stop();
+            return;
+        } catch (ExecutionException ex) {
+            log.error(ex.getCause());
+        }
+        long wallNs = System.nanoTime() - start;
 
+        Target.BeanRead slowest = null;
+        for (Target target : targets_) {
+            target.copyValues();
+            history_.add(target.getFrame());
+            if (alerts_ != null)
+                alerts_.evaluate(target.getFrame());
+            if (segmentLog_ != null) {
                 try {
-                    Socket sock = serverSock_.accept();
-                    BufferedReader in = new BufferedReader(new InputStreamReader(sock.getInputStream()));
-                    String data = in.readLine();
-                    if (data.equals("bye") || data.equals("quit")) {
-                        sock.close();
-                        serverSock_.close();
-                        break;
-                    }
-                    else if (data.equals("get_data")) {
-                        PrintWriter out = new PrintWriter(sock.getOutputStream(), true);
-                        out.println(str);
-                        sock.close();
-                    }
-                } catch (SocketTimeoutException ex) {
-                    ;
+                    segmentLog_.append(target.getFrame());
+                } catch (IOException ex) {
+                    log.error(ex);
                 }
             }
+            roundTrips += target.getClient().getRoundTrips();
+            for (Target.BeanRead read : target.getReads()) {
+                if (slowest == null || slowest.getElapsedNs() < read.getElapsedNs())
+                    slowest = read;
+            }
+        }
+        String str = formatter_.format(now, frames_).toString();
+        log.info(str);
+        lastSample_ = str;
+        if (server_ != null)
+            server_.publish(str);
+        if (metricsServer_ != null)
+            metricsServer_.update(frames_, prefixes_);
 
-            client_.close();
-        } catch (IOException ex) {
+        lastWallNs_ = wallNs;
+        lastRoundTrips_ = roundTrips;
+        lastSlowest_ = slowest;
+        lastSlowestNs_ = (slowest != null) ? slowest.getElapsedNs() : 0;
+        tickNs_.recordSince(tickStart);
+        // the series exist only once sampled; get_history_stats has it later on
+        if (tick_ == 1)
+            log.info("History of " + history_.getNumMetrics() + " metrics, footprint " +
+                     history_.getFootprintBytes() + " bytes");
+        if (log.isDebugEnabled())
+            log.debug("Tick: " + getTickStats());
+    }
+
+    private String getTickStats() {
+        Target.BeanRead slowest = lastSlowest_;
+        return "wall " + String.format("%.3f", (double)lastWallNs_ / 1e6) + " ms" +
+            ", JMX round trips " + lastRoundTrips_ + 
+            ", saved so far " + stats_.counter(MonitorStats.CALLS_SAVED).get() +
+            ((slowest == null) ? "" : ", slowest bean " + slowest.getTarget().getDisplayName() + 
+             " " + slowest.getBean() + " " + String.format("%.3f", (double)lastSlowestNs_ / 1e6) + " ms");
+    }
+
+    public void doMonitor() {
+        try {
+            manager_.openAll();
+            if (server_ != null)
+                server_.start();
+            if (metricsServer_ != null)
+                metricsServer_.start();
+            if (alerts_ != null)
+                alerts_.start();
+            sampler_.start();
+            sampler_.join();
+
+            if (server_ != null) {
+                log.info("Subscribers: " + server_.getSubscriberStats());
+                server_.close();
+            }
+            executor_.shutdown();
+            if (metricsServer_ != null) {
+                log.info("Scrapes: " + metricsServer_.getScrapes());
+                metricsServer_.close();
+            }
+            if (segmentLog_ != null)
+                segmentLog_.close();
+            if (alerts_ != null)
+                alerts_.close();
+            log.info("Reconnects: " + manager_.getReconnects());
+            log.info("JMX calls saved: " + stats_.counter(MonitorStats.CALLS_SAVED).get());
+            log.info("Self stats: " + stats_.getSummary());
+            manager_.close();
+        } catch (InterruptedException ex) {
             log.error(ex);
-        } 
-        catch (JMException ex) {
+        } catch (IOException ex) {
             log.error(ex);
         }
     }
 
     public static void main(String[] args) {
         if (args.length < 2) {
-            System.err.println("Usage: java JmxMonitor [monitoring class name] [beans file]");
+            System.err.println("Usage: java JmxMonitor " + 
+                               "[monitoring class names | host:port | JMX service URLs(csv) | *] " +
+                               "[beans file] " + 
+                               "([sampling interval ms])");
             System.exit(1);
         }
 
-        JmxMonitor monitor  = new JmxMonitor(args[0], args[1]);
+        long intervalMs = (3 <= args.length) ? Long.parseLong(args[2]) : SAMPLING_INTERVAL_MS;
+        JmxMonitor monitor  = new JmxMonitor(args[0], args[1], intervalMs);
         monitor.doMonitor();
     }
 }
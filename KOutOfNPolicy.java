@@ -0,0 +1,58 @@
+/**
+ * Scales when the consumer kept up with the producers in at least K of
+ * the last N ticks, i.e. BytesOutPerSec was above (100 - threshold)% of
+ * BytesInPerSec. The checks are bits in a ring with a running count of
+ * the set ones, so a tick costs the same for any N.
+ */
+public class KOutOfNPolicy implements ScalingPolicy {
+    private final int k_;
+    private final int n_;
+    private final double thresholdPercent_;
+    private final long[] bits_;     // ring of the last n_ checks
+    private int next_;              // ring position of the next check
+    private int checks_;            // checks in the ring, up to n_
+    private int ones_;              // checks in the ring that kept up
+
+    public KOutOfNPolicy(int k, int n, double thresholdPercent) {
+        if (n <= 0 || k < 0 || n < k)
+            throw new IllegalArgumentException("Need 0 <= K <= N and 0 < N, got K " + k + ", N " + n);
+        k_ = k;
+        n_ = n;
+        thresholdPercent_ = thresholdPercent;
+        bits_ = new long[(n + 63) / 64];
+    }
+
+    public void update(double bytesInPerSec, double bytesOutPerSec) {
+        // check if the consumer is processing at least (100-alpha)% of the producer throughput
+        boolean isConsumerKeepingUp = (bytesInPerSec * (100 - thresholdPercent_) / 100 < bytesOutPerSec);
+        int word = next_ >>> 6;
+        long bit = 1L << next_;
+        if (checks_ == n_) {
+            if ((bits_[word] & bit) != 0)
+                ones_--;
+        }
+        else {
+            checks_++;
+        }
+        if (isConsumerKeepingUp) {
+            bits_[word] |= bit;
+            ones_++;
+        }
+        else {
+            bits_[word] &= ~bit;
+        }
+        next_ = (next_ + 1 == n_) ? 0 : next_ + 1;
+    }
+
+    public boolean shouldScale() {
+        return (checks_ == n_ && k_ <= ones_);
+    }
+
+    public void scaled() {
+    }
+
+    public String toString() {
+        return "kofn K " + k_ + ", N " + n_ + ", threshold " + thresholdPercent_ + "%" +
+            " (last N: " + ones_ + " of " + checks_ + " kept up)";
+    }
+}
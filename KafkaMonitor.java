@@ -1,14 +1,11 @@
-import java.io.BufferedReader;
-import java.io.DataOutputStream;
-import java.io.InputStreamReader;
 import java.io.IOException;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.net.SocketTimeoutException;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.LinkedList;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
 import java.util.TreeMap;
 
 import javax.management.JMException;
@@ -20,7 +17,10 @@ public class KafkaMonitor {
     static Logger log = Logger.getLogger(KafkaMonitor.class.getName());
 
     static private final int LISTEN_PORT = 8888;
-    static private final int ACCEPT_TIMEOUT_MS = 3000; // [ms]
+    static private final long SAMPLING_INTERVAL_MS = 3000; // [ms]
+    static private final long SEGMENT_BYTES = 64L << 20;
+    static private final long SEGMENT_AGE_MS = 3600000; // [ms]
+    static private final long PRODUCER_TIMEOUT_MS = 30000; // [ms]
     static private final String KAKFA_BROKER_CLASSNAME = "kafka.Kafka";
     static private final String[] MONITORING_METRICS = {
         // bean#attributes(csv)
@@ -28,63 +28,64 @@ public class KafkaMonitor {
         "kafka.server:name=BytesInPerSec,type=BrokerTopicMetrics#OneMinuteRate",
         "kafka.server:name=BytesOutPerSec,type=BrokerTopicMetrics#OneMinuteRate"
     };
-    // Producer scaling decision: K out of N
-    static private final int K = 8;
-    static private final int N = 10;
-    static private final int SCALING_THRESHOLD_PERCENTAGE = 3;
-    static private final int COOLDOWN_PERIOD_MS = 60000; // [ms]
-    static private final int COOLDOWN_THRESHOLD_PERCENTAGE = 5;
-    // BytesIn < BytesOut
-    // See why this happens: http://mail-archives.apache.org/mod_mbox/kafka-users/201404.mbox/%3cCAFbh0Q1ikxwxce8i5H_yEd9DfsxUJSoJoQ7AYpGvwQexii-nYA@mail.gmail.com%3e
-    static private final int BYTES_INOUT_DIFF_PERCENTAGE = 15;
-
-    // Termination criteria: program terminates if both conditions 1 and 2 meet
-    //  OR
-    // condition 3 meet
-    // 1. messagesInPerSec_ is within a% of totalMessagesInPerSec_
-    // 2. "delta between BytesOutPerSec and lastBytesOutPerSec is less than b%" 
-    //    is observed M times in a row
-    // 3. bytesOutPerSec_ drops more than c% from its peak value (maxBytesOutPerSec-)
-    static private final int TERMINATION_MESSAGESIN_THRESHOLD_PERCENTAGE = 3;   // a
-    static private final int TERMINATION_BYTESOUT_THRESHOLD_PERCENTAGE = 5;     // b
-    static private final int TERMINATION_BYTESOUT_DROP_THRESHOLD_PERCENTAGE = 10;// c
-    static private final int M = 10;
-
+    static private final String[] PARTITION_METRICS = {
+        // bean#attributes(csv), %s is the topic
+        "kafka.server:type=BrokerTopicMetrics,name=*,topic=%s#OneMinuteRate",
+        "kafka.log:type=Log,name=LogEndOffset,topic=%s,*#Value"
+    };
+    static private final String CONSUMER_METRICS =
+        "kafka.consumer:type=consumer-fetch-manager-metrics,*#records-lag,records-lag-max";
 
     private int port_;
-    private ServerSocket serverSock_;
+    private ControlServer server_;
+    private Sampler sampler_;
 
     private JmxClient client_;
+    private ConnectionManager manager_;
     private int pid_;
     private String[] beans_;
     private String[] csvAttributes_;
     private long startTime_;
+    private MonitorStats stats_;
+    private LatencyHistogram tickNs_;
+    private SegmentLog segmentLog_;     // null unless -Dkafkamon.log.dir is set
+    private AlertEngine alerts_;        // null unless -Dkafkamon.alerts is set
+    private SampleFrame frame_;         // null unless logged, alerted on or split by partition
+    private PartitionLag partitions_;   // null unless partitions are tracked
+    private int[] partitionHandles_;
+    private List<JmxClient> consumers_;
+    private List<Integer> consumerHandles_;
 
     private boolean producerScalingEnabled_;
-    private String[] producerIpAddrs_; // ip1:port1,ip2:port2,...
-    private Socket[] producerSocks_;
-    private int currentProducer_;
-    private LinkedList<Boolean> lastNChecks_;
-    private long lastScalingTime_;
-    private int messagesInPerSec_;     
-    private double maxMessagesInPerSec_;
-    private double maxBytesInPerSec_;
-    private boolean messagesInPerSecWithinThreshold_;
-    private int totalMessagesInPerSec_;
-    private double maxBytesOutPerSec_;
-    private double lastBytesOutPerSec_;
-    private int numBytesOutDeltaWithinThreshold_;
+    private ProducerChannel producers_;
+    private ProducerScaling scaling_;
 
     public KafkaMonitor(String[] args) {
         port_ = LISTEN_PORT;
         try {
-            serverSock_ = new ServerSocket(port_);
-            serverSock_.setSoTimeout(ACCEPT_TIMEOUT_MS);
+            server_ = new ControlServer(port_, new ControlServer.Handler() {
+                    public String handle(String request) {
+                        if (request.trim().equals("get_self_stats"))
+                            return stats_.getSummary();
+                        if (request.trim().equals("get_alerts"))
+                            return (alerts_ != null) ? alerts_.getFiring() : "";
+                        if (request.trim().equals("get_partitions"))
+                            return (partitions_ != null) ? partitions_.getSummary() : "";
+                        if (request.trim().equals("get_producers"))
+                            return (producers_ != null) ? producers_.getSummary() : "producer scaling disabled";
+                        return null;
+                    }
+
+                    public void onClose() {
+                        sampler_.stop();
+                    }
+                });
         } catch (Exception ex) {
             log.error(ex);
         }
 
-        pid_ = getPid(KAKFA_BROKER_CLASSNAME);
+        if (System.getProperty("kafkamon.broker") == null)
+            pid_ = getPid(KAKFA_BROKER_CLASSNAME);
         beans_ = new String[MONITORING_METRICS.length];
         csvAttributes_ = new String[MONITORING_METRICS.length];
         for (int i = 0; i < MONITORING_METRICS.length; i++) {
@@ -93,36 +94,63 @@ public class KafkaMonitor {
                 substring(MONITORING_METRICS[i].indexOf('#') + 1);
         }
 
-        client_ = new JmxClient(pid_);
+        // -Dkafkamon.broker=host:port monitors a remote broker instead of the local one
+        String broker = System.getProperty("kafkamon.broker");
+        if (broker != null)
+            client_ = new JmxClient(broker, new MetricRegistry(), "");
+        else
+            client_ = new JmxClient(pid_);
+        stats_ = new MonitorStats();
+        tickNs_ = stats_.histogram(MonitorStats.TICK);
+        client_.setStats(stats_);
+        manager_ = new ConnectionManager();
+        manager_.add(client_);
+        stats_.setConnectionManager(manager_);
+        String logDir = System.getProperty("kafkamon.log.dir");
+        if (logDir != null) {
+            try {
+                segmentLog_ = new SegmentLog(logDir, client_.getRegistry(), SEGMENT_BYTES, SEGMENT_AGE_MS);
+            } catch (IOException ex) {
+                log.error(ex);
+            }
+        }
+        alerts_ = AlertEngine.open(System.getProperty("kafkamon.alerts"),
+                                   System.getProperty("kafkamon.alerts.sink"), client_.getRegistry());
+        if (alerts_ != null)
+            alerts_.setStats(stats_);
+        setupPartitions(System.getProperty("kafkamon.topics"), System.getProperty("kafkamon.consumer"));
+        if (segmentLog_ != null || alerts_ != null || partitions_ != null)
+            frame_ = new SampleFrame();
+        long intervalMs = Long.getLong("kafkamon.interval.ms", SAMPLING_INTERVAL_MS);
+        sampler_ = new Sampler(intervalMs, new Runnable() {
+                public void run() {
+                    sample();
+                }
+            });
+        stats_.setSampler(sampler_);
+        stats_.register("kafkamon:type=MonitorStats");
         startTime_ = System.currentTimeMillis();
 
         if (2 <= args.length) {
             // Producer scaling enabled
             producerScalingEnabled_ = true;
 
-            messagesInPerSec_ = Integer.parseInt(args[1]);
-            messagesInPerSecWithinThreshold_ = false;
-            totalMessagesInPerSec_ = 0;
-            maxBytesOutPerSec_ = 0.0;
-            maxMessagesInPerSec_ = 0.0;
-            lastBytesOutPerSec_ = 0.0;
-            numBytesOutDeltaWithinThreshold_ = 0;
-
-            producerIpAddrs_ = args[0].split(",");
-            currentProducer_ = 0;
-            lastNChecks_ = new LinkedList<Boolean>();
-            lastScalingTime_ = 0;
-
-            producerSocks_ = new Socket[producerIpAddrs_.length];
-            for (int i = 0; i < producerIpAddrs_.length; i++) {
-                int semiColonIndex = producerIpAddrs_[i].indexOf(':');
-                String ipAddr = producerIpAddrs_[i].substring(0, semiColonIndex);
-                int port = Integer.parseInt(producerIpAddrs_[i].substring(semiColonIndex + 1));
-                try {
-                    producerSocks_[i] = new Socket(ipAddr, port);
-                } catch (IOException ex) {
-                    log.error(ex);
-                }
+            Properties config = new Properties();
+            try {
+                config = ProducerScaling.loadConfig();
+            } catch (IOException ex) {
+                log.error("Cannot read scaling config, using the defaults: " + ex);
+            }
+            scaling_ = new ProducerScaling(Integer.parseInt(args[1]), config);
+            // ip1:port1,ip2:port2,...
+            try {
+                producers_ = new ProducerChannel(args[0].split(","),
+                                                 Long.getLong("kafkamon.producer.timeout.ms", PRODUCER_TIMEOUT_MS),
+                                                 Boolean.getBoolean("kafkamon.producer.acks"));
+                producers_.setStats(stats_);
+            } catch (IOException ex) {
+                log.error(ex);
+                producerScalingEnabled_ = false;
             }
         }
         else 
@@ -130,7 +158,73 @@ public class KafkaMonitor {
 
         log.info("KafkaMonitor started at time " + startTime_ + 
                  ", listening port: " + port_ +
-                 ", producer scaling: " + producerScalingEnabled_);
+                 ", sampling interval: " + intervalMs + " ms" +
+                 ((alerts_ != null) ? ", alert rules: " + alerts_.getNumRules() : "") +
+                 ((partitions_ != null) ? ", consumers: " + consumers_.size() : ", partitions: off") +
+                 ", producer scaling: " + producerScalingEnabled_ +
+                 (producerScalingEnabled_ ? " (" + scaling_.getPolicy() + ")" : ""));
+    }
+
+    /*
+     * Per-topic rates and per-partition end offsets of the topics (csv, all
+     * if null) from the broker, and the lag of every consumer (host:port or
+     * pid, csv) on them. Only with topics or consumers given, or
+     * -Dkafkamon.partitions=true: it costs a JMX call per bean and tick.
+     */
+    private void setupPartitions(String topics, String consumers) {
+        consumers_ = new ArrayList<JmxClient>();
+        consumerHandles_ = new ArrayList<Integer>();
+        String enabled = System.getProperty("kafkamon.partitions");
+        if ((enabled != null) ? !Boolean.parseBoolean(enabled) : (topics == null && consumers == null))
+            return;
+        Set<String> topicSet = null;
+        String[] patterns = { "*" };
+        if (topics != null) {
+            topicSet = new HashSet<String>(Arrays.asList(topics.split(",")));
+            patterns = topicSet.toArray(new String[topicSet.size()]);
+        }
+        partitionHandles_ = new int[PARTITION_METRICS.length * patterns.length];
+        int i = 0;
+        for (String metric : PARTITION_METRICS) {
+            for (String topic : patterns) {
+                String beanAttr = String.format(metric, topic.trim());
+                partitionHandles_[i++] = client_.prepare(beanAttr.substring(0, beanAttr.indexOf('#')),
+                                                         beanAttr.substring(beanAttr.indexOf('#') + 1));
+            }
+        }
+        if (consumers != null) {
+            for (String consumer : consumers.split(",")) {
+                consumer = consumer.trim();
+                // in the broker's registry, so that one PartitionLag sees both
+                JmxClient client = JmxClient.isRemote(consumer) ?
+                    new JmxClient(consumer, client_.getRegistry(), consumer + "/") :
+                    new JmxClient(Integer.parseInt(consumer), client_.getRegistry(), consumer + "/");
+                client.setStats(stats_);
+                manager_.add(client);
+                consumers_.add(client);
+                consumerHandles_.add(client.prepare(CONSUMER_METRICS.substring(0, CONSUMER_METRICS.indexOf('#')),
+                                                    CONSUMER_METRICS.substring(CONSUMER_METRICS.indexOf('#') + 1)));
+            }
+        }
+        partitions_ = new PartitionLag(client_.getRegistry(), topicSet);
+    }
+
+    /* Reads the consumers' lag into the frame; a consumer that is down only misses the tick */
+    private void readConsumers() {
+        for (int i = 0; i < consumers_.size(); i++) {
+            JmxClient consumer = consumers_.get(i);
+            if (!manager_.isUp(consumer))
+                continue;
+            try {
+                consumer.readValues(consumerHandles_.get(i), frame_);
+            } catch (IOException ex) {
+                stats_.counter(MonitorStats.ERRORS + "io").incrementAndGet();
+                manager_.reportFailure(consumer, ex.toString());
+            } catch (JMException ex) {
+                stats_.counter(MonitorStats.ERRORS + "jmx").incrementAndGet();
+                log.error(ex);
+            }
+        }
     }
 
     private int getPid(String className) {
@@ -149,219 +243,156 @@ public class KafkaMonitor {
         return pid;
     }
 
-    private boolean checkIfTerminate(Map<String, Object> vals) {
-        boolean terminate = false;
-
-        double bytesOutPerSec = 0.0, bytesInPerSec = 0.0, messagesInPerSec = 0.0;
-        for (Map.Entry<String, Object> entry : vals.entrySet()) {
-            String beanAttr = entry.getKey();
-            if (beanAttr.contains("BytesOutPerSec"))
-                bytesOutPerSec = (Double)entry.getValue();
-            else if (beanAttr.contains("BytesInPerSec")) {
-                bytesInPerSec = (Double)entry.getValue();
-                if (maxBytesInPerSec_ < bytesInPerSec)
-                    maxBytesInPerSec_ = bytesInPerSec;
-            }
-            else if (beanAttr.contains("MessagesInPerSec")) {
-                messagesInPerSec = (Double)entry.getValue();
-                if (maxMessagesInPerSec_ < messagesInPerSec)
-                    maxMessagesInPerSec_ = messagesInPerSec;
-            }
-        }
-
-        if (bytesOutPerSec < maxBytesOutPerSec_) {
-            double dropPercent = 
-                100 * (double)(maxBytesOutPerSec_ - bytesOutPerSec) / maxBytesOutPerSec_;
-            if (TERMINATION_BYTESOUT_DROP_THRESHOLD_PERCENTAGE <= dropPercent) {
-                log.debug("bytesOutPerSec:" + bytesOutPerSec + 
-                          " dropped more than " + TERMINATION_BYTESOUT_DROP_THRESHOLD_PERCENTAGE +
-                          "% of maxBytesOutPerSec_: " + maxBytesOutPerSec_);
-                terminate = true;
-            }
+    private void requestNewProducer(long now) {
+        // request creating a new producer by sending producer throughput;
+        // it counts towards the total once the producer confirms
+        int messagesInPerSec = scaling_.getMessagesInPerSec();
+        if (!producers_.request(messagesInPerSec)) {
+            log.warn("No producer connected, cannot scale");
+            return;
         }
+        scaling_.scaled(now);
+        log.debug("Updated lastScalingTime: " + scaling_.getLastScalingTime() + 
+                  ", totalMessagesInPerSec: " + scaling_.getTotalMessagesInPerSec());
+    }
 
-        if (!terminate) {
-            if (messagesInPerSecWithinThreshold_) {
-                if (100 * Math.abs((lastBytesOutPerSec_ - bytesOutPerSec) / lastBytesOutPerSec_) <
-                    TERMINATION_BYTESOUT_THRESHOLD_PERCENTAGE) {
-                    numBytesOutDeltaWithinThreshold_++;
-                    log.debug("bytesOutPerSec:" +  bytesOutPerSec +
-                              " is within " + TERMINATION_BYTESOUT_THRESHOLD_PERCENTAGE +
-                              "% of lastBytesOutPerSec: " + lastBytesOutPerSec_ + 
-                              ", M: " + numBytesOutDeltaWithinThreshold_);
-                }
-                else {
-                    numBytesOutDeltaWithinThreshold_ = 0;
-                    log.debug("bytesOutPerSec:" +  bytesOutPerSec +
-                              " is out of " + TERMINATION_BYTESOUT_THRESHOLD_PERCENTAGE +
-                              "% of lastBytesOutPerSec: " + lastBytesOutPerSec_);
-                }
-                if (M <= numBytesOutDeltaWithinThreshold_) 
-                    terminate = true;
-            }
-            else {
-                // check if messagesInPerSec is within a% of totalMessagesInPerSec_
-                if ((totalMessagesInPerSec_ * 
-                     (100 - TERMINATION_MESSAGESIN_THRESHOLD_PERCENTAGE) / 100) < messagesInPerSec) {
-                    log.debug("messagesInPerSec:" +  messagesInPerSec + 
-                              " reached within " + TERMINATION_MESSAGESIN_THRESHOLD_PERCENTAGE +
-                              "% of totalMessagesInPerSec: " + totalMessagesInPerSec_);
-                    messagesInPerSecWithinThreshold_ = true;
-                }
+    /* The "time, value, ..." line logged every tick, with the values of each bean in turn */
+    static String formatTick(long now, List<Map<String, Object>> beanVals) {
+        String str = now + ", ";
+        for (Map<String, Object> vals : beanVals) {
+            for (Map.Entry<String, Object> val : vals.entrySet()) {
+                str += String.format("%.3f", val.getValue()) + ", ";
             }
         }
-
-        lastBytesOutPerSec_ = bytesOutPerSec;
-
-        return terminate;
+        return str.substring(0, str.lastIndexOf(','));
     }
 
-    private boolean checkIfScaleProducers(Map<String, Object> vals) {
-        if (lastScalingTime_ == 0) {
-            log.debug("First time, always create a new producer");
-            return true;
+    private void sample() {
+        if (!manager_.isUp(client_)) {
+            log.debug("Broker connection down, skipping tick");
+            return;
         }
 
-        // K out of N check
-        double bytesInPerSec = 0.0, messagesInPerSec = 0.0, bytesOutPerSec = 0.0;
-        for (Map.Entry<String, Object> entry : vals.entrySet()) {
-            String beanAttr = entry.getKey();
-            if (beanAttr.contains("BytesInPerSec"))
-                bytesInPerSec = (Double)entry.getValue();
-            else if (beanAttr.contains("MessagesInPerSec"))
-                messagesInPerSec = (Double)entry.getValue();
-            else if (beanAttr.contains("BytesOutPerSec")) {
-                bytesOutPerSec = (Double)entry.getValue();
-                if (maxBytesOutPerSec_ < bytesOutPerSec &&
-                    bytesOutPerSec <= 
-                    maxBytesInPerSec_ * (100 + BYTES_INOUT_DIFF_PERCENTAGE) / 100) {
-                    /* Output should be within a reasonable range from input throughput */
-                    maxBytesOutPerSec_ = bytesOutPerSec;
-                    log.debug("Updated maxBytesOutPerSec: " + maxBytesOutPerSec_);
-                }
+        long tickStart = System.nanoTime();
+        try {
+            // String str = (double)(System.currentTimeMillis() - startTime_)/1000 + ", ";
+            long now = System.currentTimeMillis();
+            long roundTrips = client_.getRoundTrips();
+
+            List<Map<String, Object>> beanVals = new ArrayList<Map<String, Object>>();
+            Map<String, Object> allVals = new TreeMap<String, Object>();
+            for (int i = 0; i < beans_.length; i++) {
+                Map<String, Object> vals = client_.getAttributeValues(beans_[i], csvAttributes_[i]);
+                beanVals.add(vals);
+                allVals.putAll(vals);
             }
-        }
-
-        // check if the consumer is processing at least (100-alpha)% of the producer throughput
-        boolean isConsumerKeepingUp = ((bytesInPerSec * (100 - SCALING_THRESHOLD_PERCENTAGE) / 100) < bytesOutPerSec);
-        lastNChecks_.addLast(new Boolean(isConsumerKeepingUp));
-
 
-        // cooldown check - time based
-        long now = System.currentTimeMillis();
-        long cooldownPeriod = lastScalingTime_ + COOLDOWN_PERIOD_MS;
-        if (now < cooldownPeriod) {
-            double countdown = (double)(cooldownPeriod - now) / 1000;
-            log.debug("Cooling down (time remaining: " + countdown + " sec)");
-            return false;       
-        }
-        // cooldown check - messagesInPerSec based
-        else if (messagesInPerSec < totalMessagesInPerSec_) {
-            double messagesInPerSecPercent = 
-                100 * (double)(totalMessagesInPerSec_ - messagesInPerSec) / totalMessagesInPerSec_;
-            if (COOLDOWN_THRESHOLD_PERCENTAGE < messagesInPerSecPercent) {
-                log.debug("Cooling down (msgInPerSecPercent now: " + messagesInPerSecPercent + 
-                          ", threshold: " + COOLDOWN_THRESHOLD_PERCENTAGE + ")");
-                messagesInPerSecWithinThreshold_ = false;                
-                return false;       
+            log.info(formatTick(now, beanVals));
+            log.debug("JMX round trips in this tick: " + 
+                      (client_.getRoundTrips() - roundTrips));
+            if (frame_ != null) {
+                frame_.reset(now);
+                for (Map.Entry<String, Object> val : allVals.entrySet())
+                    frame_.put(client_.getRegistry().idOf(val.getKey()), val.getValue());
             }
-        }
-
-        if (N <= lastNChecks_.size()) {
-            // we have done enough checks
-            int k = 0;
-            int index = lastNChecks_.size() - 1;
-            for (int i = 0; i < N; i++) {
-                boolean check = lastNChecks_.get(index);
-                if (check) k++;
-                index--;
+            if (partitions_ != null) {
+                for (int handle : partitionHandles_)
+                    client_.readValues(handle, frame_);
+                readConsumers();
+                partitions_.update(frame_);
+                if (log.isDebugEnabled())
+                    log.debug(partitions_.getTotals());
+            }
+            if (segmentLog_ != null) {
+                try {
+                    segmentLog_.append(frame_);
+                } catch (IOException ex) {
+                    log.error(ex);  // not a broker failure
+                }
+            }
+            if (alerts_ != null)
+                alerts_.evaluate(frame_);
+
+            if (producerScalingEnabled_) {
+                scaling_.addConfirmed(producers_.takeConfirmed());
+                if (consumers_.isEmpty() || partitions_ == null) {
+                    if (scaling_.checkIfTerminate(allVals))
+                        sampler_.stop();
+                    else if (scaling_.checkIfScaleProducers(allVals, now))
+                        requestNewProducer(now);
+                }
+                else if (partitions_.hasLag()) {
+                    // what the consumers read against what was produced, in messages/s
+                    double producedPerSec = partitions_.getProducedPerSec();
+                    double inPerSec = partitions_.getTrackedProducedPerSec();
+                    double outPerSec = partitions_.getConsumedPerSec();
+                    if (scaling_.checkIfTerminate(producedPerSec, inPerSec, outPerSec))
+                        sampler_.stop();
+                    else if (scaling_.checkIfScaleProducers(producedPerSec, inPerSec, outPerSec, now))
+                        requestNewProducer(now);
+                }
+                else if (scaling_.getLastScalingTime() == 0) {
+                    // the first producer needs no rates; the lag shows once it produces
+                    log.debug("No consumer lag yet, starting the first producer");
+                    requestNewProducer(now);
+                }
+                else {
+                    log.debug("No consumer lag yet, no scaling decision");
+                }
             }
-            log.debug("K out N check: K " + k + ", N " + N);
-            lastNChecks_.removeFirst(); // remove the oldest one for the next check
-            return (K <= k);
-        }
-
-        log.debug("Not enough checks yet (check: " + lastNChecks_.size() + " times)");
-        return false;               
-    }
-
-    private void requestNewProducer() {
-        try {
-            // request creating a new producer by sending producer throughput
-            Socket sock = producerSocks_[currentProducer_];
-            DataOutputStream out = new DataOutputStream(sock.getOutputStream());
-            out.writeBytes(Integer.toString(messagesInPerSec_) + "\n"); 
-            log.debug("Sent request to producer " + currentProducer_ +
-                      " with messagesInPerSec " + messagesInPerSec_);
         } catch (IOException ex) {
+            stats_.counter(MonitorStats.ERRORS + "io").incrementAndGet();
+            manager_.reportFailure(client_, ex.toString());
+        } catch (JMException ex) {
+            stats_.counter(MonitorStats.ERRORS + "jmx").incrementAndGet();
             log.error(ex);
+            sampler_.stop();
         }
-        
-        lastScalingTime_ = System.currentTimeMillis();
-        currentProducer_ = (currentProducer_ + 1) % producerIpAddrs_.length;
-        totalMessagesInPerSec_ += messagesInPerSec_;
-        log.debug("Updated lastScalingTime: " + lastScalingTime_ + 
-                  ", currentProducer: " + currentProducer_ + 
-                  ", totalMessagesInPerSec: " + totalMessagesInPerSec_);
+        tickNs_.recordSince(tickStart);
     }
 
     public void doMonitor() {
         try {
-            client_.open();
-
-            while (true) {
-                // String str = (double)(System.currentTimeMillis() - startTime_)/1000 + ", ";
-                String str = System.currentTimeMillis() + ", ";
-
-                Map<String, Object> allVals = new TreeMap<String, Object>();
-                for (int i = 0; i < beans_.length; i++) {
-                    Map<String, Object> vals = client_.getAttributeValues(beans_[i], csvAttributes_[i]);
-                    for (Map.Entry<String, Object> val : vals.entrySet()) {
-                        str += String.format("%.3f", val.getValue()) + ", ";
-                    }
-                    allVals.putAll(vals);
-                }
-
-                str = str.substring(0, str.lastIndexOf(','));
-                log.info(str);
-
-                if (producerScalingEnabled_) {
-                    if (checkIfTerminate(allVals))
-                        break;
-                    else if (checkIfScaleProducers(allVals)) {
-                        requestNewProducer();
-                    }
-                }
-
-                try {
-                    Socket sock = serverSock_.accept();
-                    BufferedReader in = new BufferedReader(new InputStreamReader(sock.getInputStream()));
-                    String data = in.readLine();
-                    if (data.equals("bye") || data.equals("quit")) {
-                        sock.close();
-                        serverSock_.close();
-                        for (int i = 0; i < producerSocks_.length; i++)
-                            producerSocks_[i].close();
-                        break;
-                    }
-                } catch (SocketTimeoutException ex) {
-                    ;
-                }
-            }
-
-            client_.close();
-            log.info("maxBytesOutPerSec: " + maxBytesOutPerSec_);
+            manager_.openAll();
+            if (server_ != null)
+                server_.start();
+            if (producers_ != null)
+                producers_.start();
+            if (alerts_ != null)
+                alerts_.start();
+            sampler_.start();
+            sampler_.join();
+
+            if (server_ != null)
+                server_.close();
+            if (producers_ != null)
+                producers_.close();
+            manager_.close();
+            if (segmentLog_ != null)
+                segmentLog_.close();
+            if (alerts_ != null)
+                alerts_.close();
+            if (scaling_ != null)
+                log.info("maxBytesOutPerSec: " + scaling_.getMaxBytesOutPerSec());
+            log.info("Self stats: " + stats_.getSummary());
             
         } catch (IOException ex) {
             log.error(ex);
-        } catch (JMException ex) {
+        } catch (InterruptedException ex) {
             log.error(ex);
         }
     }
 
     public static void main(String[] args) {
         if (2 < args.length) {
-            System.err.println("Usage: java KafkaMonitor [Kafka Producer IP addrs(csv)] [producer messagesInPerSec]");
+            System.err.println("Usage: java [-Dkafkamon.interval.ms=<sampling interval>] " +
+                               "[-Dkafkamon.broker=<host:port>] [-Dkafkamon.log.dir=<dir>] " +
+                               "[-Dkafkamon.scaling.config=<file>] [-Dkafkamon.scaling.<key>=<value>] " +
+                               "[-Dkafkamon.producer.timeout.ms=<ms>] [-Dkafkamon.producer.acks=true] " +
+                               "[-Dkafkamon.alerts=<rules file>] [-Dkafkamon.alerts.sink=<file | URL>(csv)] " +
+                               "[-Dkafkamon.topics=<topics(csv)>] [-Dkafkamon.consumer=<host:port | pid>(csv)] " +
+                               "[-Dkafkamon.partitions=<true | false>] " +
+                               "KafkaMonitor [Kafka Producer IP addrs(csv)] [producer messagesInPerSec]");
             System.exit(1);
         }
 
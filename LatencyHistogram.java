@@ -0,0 +1,121 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+/**
+ * Latency histogram in nanoseconds with HdrHistogram-style log-linear
+ * buckets: exact below 128 ns, then 64 buckets per power of two, i.e.
+ * values are kept to within 1/64 (1.6%) up to MAX_VALUE_NS (about 18
+ * minutes; anything longer counts as that). Fixed size (about 18 KB),
+ * recording is lock-free and never allocates, so it can be fed from any
+ * thread on the sampling path.
+ */
+public class LatencyHistogram {
+
+    static private final int SUB_BITS = 6;
+    static private final int SUB_COUNT = 1 << SUB_BITS;          // buckets per power of two
+    static private final int LINEAR = 2 * SUB_COUNT;             // exact values below this
+    static public final long MAX_VALUE_NS = (1L << 40) - 1;
+    static private final int NUM_BUCKETS = index(MAX_VALUE_NS) + 1;
+
+    private final AtomicLongArray counts_;
+    private final AtomicLong count_;
+    private final AtomicLong sum_;
+    private final AtomicLong max_;
+
+    public LatencyHistogram() {
+        counts_ = new AtomicLongArray(NUM_BUCKETS);
+        count_ = new AtomicLong();
+        sum_ = new AtomicLong();
+        max_ = new AtomicLong();
+    }
+
+    public void record(long ns) {
+        if (ns < 0)
+            ns = 0;
+        else if (MAX_VALUE_NS < ns)
+            ns = MAX_VALUE_NS;
+        counts_.incrementAndGet(index(ns));
+        count_.incrementAndGet();
+        sum_.addAndGet(ns);
+        long max;
+        while ((max = max_.get()) < ns && !max_.compareAndSet(max, ns))
+            ;
+    }
+
+    /* Records the time elapsed since start, a System.nanoTime() value */
+    public void recordSince(long start) {
+        record(System.nanoTime() - start);
+    }
+
+    public long getCount() {
+        return count_.get();
+    }
+
+    public long getMaxNs() {
+        return max_.get();
+    }
+
+    public double getMeanNs() {
+        long count = count_.get();
+        return (count == 0) ? 0 : (double)sum_.get() / count;
+    }
+
+    /*
+     * Value at the given percentile (0-100): the middle of the bucket
+     * holding it, so within half a bucket width of the recorded value
+     */
+    public long getPercentileNs(double percentile) {
+        long count = count_.get();
+        if (count == 0)
+            return 0;
+        long rank = Math.max(1, (long)Math.ceil(percentile / 100 * count));
+        long seen = 0;
+        for (int i = 0; i < NUM_BUCKETS; i++) {
+            seen += counts_.get(i);
+            if (rank <= seen)
+                return Math.min(lowest(i) + width(i) / 2, max_.get());
+        }
+        return max_.get();
+    }
+
+    /* "count N, mean x, p50 x, p90 x, p99 x, p99.9 x, max x" in ms */
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("count ").append(getCount());
+        sb.append(", mean ").append(ms(getMeanNs()));
+        sb.append(", p50 ").append(ms(getPercentileNs(50)));
+        sb.append(", p90 ").append(ms(getPercentileNs(90)));
+        sb.append(", p99 ").append(ms(getPercentileNs(99)));
+        sb.append(", p99.9 ").append(ms(getPercentileNs(99.9)));
+        sb.append(", max ").append(ms(getMaxNs())).append(" ms");
+        return sb.toString();
+    }
+
+    static private String ms(double ns) {
+        return String.format("%.3f", ns / 1e6);
+    }
+
+    static private int index(long value) {
+        if (value < LINEAR)
+            return (int)value;
+        int exponent = 63 - Long.numberOfLeadingZeros(value);    // value in [2^e, 2^(e+1))
+        int sub = (int)(value >>> (exponent - SUB_BITS)) - SUB_COUNT;
+        return LINEAR + (exponent - SUB_BITS - 1) * SUB_COUNT + sub;
+    }
+
+    static private long lowest(int index) {
+        if (index < LINEAR)
+            return index;
+        int exponent = (index - LINEAR) / SUB_COUNT + SUB_BITS + 1;
+        int sub = (index - LINEAR) % SUB_COUNT;
+        return (long)(SUB_COUNT + sub) << (exponent - SUB_BITS);
+    }
+
+    static private long width(int index) {
+        if (index < LINEAR)
+            return 1;
+        int exponent = (index - LINEAR) / SUB_COUNT + SUB_BITS + 1;
+        return 1L << (exponent - SUB_BITS);
+    }
+}
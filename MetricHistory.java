@@ -0,0 +1,163 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+
+/**
+ * Recent samples of every numeric metric, one MetricSeries per metric id,
+ * for answering time-range queries. Memory is bounded by the number of
+ * metrics times the per-metric footprint: fixed for a MetricRing, a few
+ * bits per sample for a GorillaSeries.
+ */
+public class MetricHistory {
+
+    static public final int MAX_ROWS = 1000;    // of a getRange()
+
+    private final MetricRegistry registry_;
+    private final int capacity_;
+    private final boolean compressed_;
+    private final List<MetricSeries> series_;   // by metric id, null if never numeric
+    private int numMetrics_;
+
+    public MetricHistory(MetricRegistry registry, int capacity) {
+        this(registry, capacity, false);
+    }
+
+    public MetricHistory(MetricRegistry registry, int capacity, boolean compressed) {
+        if (capacity < 1)
+            throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+        registry_ = registry;
+        capacity_ = capacity;
+        compressed_ = compressed;
+        series_ = new ArrayList<MetricSeries>();
+        numMetrics_ = 0;
+    }
+
+    public int getCapacity() {
+        return capacity_;
+    }
+
+    public boolean isCompressed() {
+        return compressed_;
+    }
+
+    public synchronized void add(long time, int id, double value) {
+        while (series_.size() <= id)
+            series_.add(null);
+        MetricSeries series = series_.get(id);
+        if (series == null) {
+            series = compressed_ ? new GorillaSeries(capacity_) : new MetricRing(capacity_);
+            series_.set(id, series);
+            numMetrics_++;
+        }
+        series.add(time, value);
+    }
+
+    /* Records every numeric value of a frame */
+    public synchronized void add(SampleFrame frame) {
+        for (int i = 0; i < frame.size(); i++) {
+            int id = frame.idAt(i);
+            if (frame.isNumber(id))
+                add(frame.getTime(), id, frame.doubleValue(id));
+        }
+    }
+
+    public synchronized int getNumMetrics() {
+        return numMetrics_;
+    }
+
+    /* Heap footprint of the samples; rings are allocated full size */
+    public synchronized long getFootprintBytes() {
+        long bytes = 0;
+        for (MetricSeries series : series_) {
+            if (series != null)
+                bytes += series.getFootprintBytes();
+        }
+        return bytes;
+    }
+
+    public String getRange(long from, long to) {
+        return getRange(from, to, null);
+    }
+
+    /**
+     * Returns the samples with from <= timestamp <= to as CSV: a header line
+     * ("timestamp, name, ...") followed by one line per timestamp in the
+     * get_data format. A metric without a sample at a timestamp gets an
+     * empty field. Every line, including the last, ends with a newline.
+     * Only metrics whose name contains filter are included, if it is not null.
+     * At most MAX_ROWS timestamps are returned; the rest are read by asking
+     * again from the last one + 1. The samples are copied under the lock,
+     * merged and formatted after it, so that add() waits only for the copy.
+     */
+    public String getRange(long from, long to, String filter) {
+        int[] ids;
+        long[][] times;         // by column, the samples of [from, to]
+        double[][] values;
+        int[] counts;
+        synchronized (this) {
+            ids = new int[series_.size()];
+            int numColumns = 0;
+            for (int id = 0; id < series_.size(); id++) {
+                if (series_.get(id) != null &&
+                    (filter == null || registry_.nameOf(id).contains(filter)))
+                    ids[numColumns++] = id;
+            }
+            ids = Arrays.copyOf(ids, numColumns);
+            times = new long[numColumns][];
+            values = new double[numColumns][];
+            counts = new int[numColumns];
+            // no column has more than MAX_ROWS samples in the rows returned
+            for (int c = 0; c < numColumns; c++) {
+                MetricSeries.Cursor cursor = series_.get(ids[c]).cursor(from);
+                long[] t = new long[16];
+                double[] v = new double[t.length];
+                int n = 0;
+                for (; n < MAX_ROWS && cursor.valid() && cursor.time() <= to; cursor.next(), n++) {
+                    if (n == t.length) {
+                        t = Arrays.copyOf(t, Math.min(2 * n, MAX_ROWS));
+                        v = Arrays.copyOf(v, t.length);
+                    }
+                    t[n] = cursor.time();
+                    v[n] = cursor.value();
+                }
+                times[c] = t;
+                values[c] = v;
+                counts[c] = n;
+            }
+        }
+
+        StringBuilder sb = new StringBuilder("timestamp");
+        for (int id : ids)
+            sb.append(", ").append(registry_.nameOf(id));
+        sb.append('\n');
+
+        // merge the columns by timestamp
+        int[] next = new int[ids.length];
+        for (int rows = 0; rows < MAX_ROWS; rows++) {
+            long time = Long.MAX_VALUE;
+            for (int c = 0; c < ids.length; c++) {
+                if (next[c] < counts[c] && times[c][next[c]] < time)
+                    time = times[c][next[c]];
+            }
+            if (time == Long.MAX_VALUE)
+                break;
+
+            sb.append(time);
+            for (int c = 0; c < ids.length; c++) {
+                sb.append(", ");
+                if (next[c] < counts[c] && times[c][next[c]] == time)
+                    format(sb, values[c][next[c]++]);
+            }
+            sb.append('\n');
+        }
+        return sb.toString();
+    }
+
+    static void format(StringBuilder sb, double value) {
+        if (value == Math.rint(value) && Math.abs(value) < 1e15)
+            sb.append((long)value);
+        else
+            SampleFormatter.appendDouble(sb, value);
+    }
+}
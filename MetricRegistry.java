@@ -0,0 +1,39 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * Assigns a dense integer id to every metric name ("bean#attr" or
+ * "bean#attr-key"). Ids are handed out once, when a query is compiled, so
+ * that the sampling hot path can address values by id instead of by name.
+ */
+public class MetricRegistry {
+
+    private final Map<String, Integer> ids_;
+    private final List<String> names_;
+
+    public MetricRegistry() {
+        ids_ = new HashMap<String, Integer>();
+        names_ = new ArrayList<String>();
+    }
+
+    public synchronized int idOf(String name) {
+        Integer id = ids_.get(name);
+        if (id == null) {
+            id = names_.size();
+            ids_.put(name, id);
+            names_.add(name);
+        }
+        return id;
+    }
+
+    public synchronized String nameOf(int id) {
+        return names_.get(id);
+    }
+
+    public synchronized int size() {
+        return names_.size();
+    }
+}
@@ -0,0 +1,107 @@
+/**
+ * Fixed-capacity history of one metric, kept in two parallel primitive
+ * arrays so that adding a sample neither allocates nor boxes. Once full,
+ * each new sample overwrites the oldest one.
+ *
+ * Memory: 16 bytes per retained sample (8 for the timestamp, 8 for the
+ * value) plus two array headers and this object, i.e. about
+ * 16 * capacity + 64 bytes per metric.
+ *
+ * Timestamps are expected to be added in non-decreasing order. Not
+ * thread-safe; MetricHistory does the locking.
+ */
+public class MetricRing implements MetricSeries {
+
+    private final long[] times_;
+    private final double[] values_;
+    private int head_;      // index of the oldest sample
+    private int size_;
+
+    public MetricRing(int capacity) {
+        if (capacity < 1)
+            throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+        times_ = new long[capacity];
+        values_ = new double[capacity];
+        head_ = 0;
+        size_ = 0;
+    }
+
+    public int capacity() {
+        return times_.length;
+    }
+
+    public int size() {
+        return size_;
+    }
+
+    public void add(long time, double value) {
+        int index;
+        if (size_ < times_.length) {
+            index = physical(size_);
+            size_++;
+        }
+        else {
+            index = head_;
+            head_ = (head_ + 1) % times_.length;
+        }
+        times_[index] = time;
+        values_[index] = value;
+    }
+
+    /* i-th oldest sample, 0 <= i < size() */
+    public long timeAt(int i) {
+        return times_[physical(i)];
+    }
+
+    public double valueAt(int i) {
+        return values_[physical(i)];
+    }
+
+    /**
+     * Returns the logical index of the first sample at or after time, or
+     * size() if there is none.
+     */
+    public int indexOf(long time) {
+        int lo = 0, hi = size_;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (timeAt(mid) < time)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        return lo;
+    }
+
+    public long getFootprintBytes() {
+        return 16L * times_.length + 64;
+    }
+
+    public Cursor cursor(long time) {
+        final int start = indexOf(time);
+        return new Cursor() {
+                private int i_ = start;
+
+                public boolean valid() {
+                    return i_ < size_;
+                }
+
+                public long time() {
+                    return timeAt(i_);
+                }
+
+                public double value() {
+                    return valueAt(i_);
+                }
+
+                public void next() {
+                    i_++;
+                }
+            };
+    }
+
+    private int physical(int i) {
+        int index = head_ + i;
+        return (index < times_.length) ? index : index - times_.length;
+    }
+}
@@ -0,0 +1,30 @@
+/**
+ * Bounded history of one metric, read sequentially through cursors.
+ * Implementations are not thread-safe; MetricHistory does the locking.
+ */
+public interface MetricSeries {
+
+    /* Timestamps are expected to be added in non-decreasing order */
+    void add(long time, double value);
+
+    int size();
+
+    int capacity();
+
+    /* Heap bytes taken by the samples */
+    long getFootprintBytes();
+
+    /* Returns a cursor at the first sample at or after time */
+    Cursor cursor(long time);
+
+    interface Cursor {
+        /* False once past the newest sample */
+        boolean valid();
+
+        long time();
+
+        double value();
+
+        void next();
+    }
+}
@@ -0,0 +1,172 @@
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.ObjectName;
+import org.apache.log4j.Logger;
+
+
+/**
+ * The monitor's own measurements: latency histograms and counters by name,
+ * plus the CPU and heap used by the monitor process. Histograms and
+ * counters are created on first use and then kept, so the hot path only
+ * records into ones it looked up once. Names in use:
+ *
+ *   tick                     wall time of a whole sampling tick
+ *   jmx.<operation>          each JMX call (getMBeanInfo, getAttributes, ...)
+ *   bean <target> <bean>     the read of one bean
+ *   errors.<kind>            failed reads and connections
+ *   notifications            JMX notifications of notify beans received
+ *   calls.saved              JMX calls not made thanks to notifications,
+ *                            per-bean intervals and batching same-bean reads
+ *
+ * Safe to use from any thread.
+ */
+public class MonitorStats implements MonitorStatsMBean {
+    static Logger log = Logger.getLogger(MonitorStats.class.getName());
+
+    static public final String TICK = "tick";
+    static public final String ERRORS = "errors.";
+    static public final String CALLS_SAVED = "calls.saved";
+
+    private final ConcurrentMap<String, LatencyHistogram> histograms_;    // sorted by name
+    private final ConcurrentMap<String, AtomicLong> counters_;
+    private volatile Sampler sampler_;
+    private volatile ConnectionManager manager_;
+    private long lastCpuNs_;
+    private long lastCpuWallNs_;
+
+    public MonitorStats() {
+        histograms_ = new ConcurrentSkipListMap<String, LatencyHistogram>();
+        counters_ = new ConcurrentSkipListMap<String, AtomicLong>();
+    }
+
+    /* Where tick and reconnect counts come from, once they exist */
+    public void setSampler(Sampler sampler) {
+        sampler_ = sampler;
+    }
+
+    public void setConnectionManager(ConnectionManager manager) {
+        manager_ = manager;
+    }
+
+    public LatencyHistogram histogram(String name) {
+        LatencyHistogram histogram = histograms_.get(name);
+        if (histogram == null) {
+            histogram = new LatencyHistogram();
+            LatencyHistogram old = histograms_.putIfAbsent(name, histogram);
+            if (old != null)
+                histogram = old;
+        }
+        return histogram;
+    }
+
+    public AtomicLong counter(String name) {
+        AtomicLong counter = counters_.get(name);
+        if (counter == null) {
+            counter = new AtomicLong();
+            AtomicLong old = counters_.putIfAbsent(name, counter);
+            if (old != null)
+                counter = old;
+        }
+        return counter;
+    }
+
+    /* Registers this as an MBean of the monitor's own platform MBeanServer */
+    public void register(String objectName) {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(objectName));
+        } catch (Exception ex) {
+            log.error(ex);
+        }
+    }
+
+    public long getTicks() {
+        Sampler sampler = sampler_;
+        return (sampler != null) ? sampler.getTicks() : histogram(TICK).getCount();
+    }
+
+    public long getMissedTicks() {
+        Sampler sampler = sampler_;
+        return (sampler != null) ? sampler.getMissedTicks() : 0;
+    }
+
+    public double getTickP50Ms() {
+        return histogram(TICK).getPercentileNs(50) / 1e6;
+    }
+
+    public double getTickP99Ms() {
+        return histogram(TICK).getPercentileNs(99) / 1e6;
+    }
+
+    public double getTickMaxMs() {
+        return histogram(TICK).getMaxNs() / 1e6;
+    }
+
+    public long getErrors() {
+        long errors = 0;
+        for (Map.Entry<String, AtomicLong> counter : counters_.entrySet()) {
+            if (counter.getKey().startsWith(ERRORS))
+                errors += counter.getValue().get();
+        }
+        return errors;
+    }
+
+    public long getReconnects() {
+        ConnectionManager manager = manager_;
+        return (manager != null) ? manager.getReconnects() : 0;
+    }
+
+    public long getProcessCpuTimeNs() {
+        OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        if (os instanceof com.sun.management.OperatingSystemMXBean)
+            return ((com.sun.management.OperatingSystemMXBean)os).getProcessCpuTime();
+        return -1;
+    }
+
+    public synchronized double getProcessCpuLoad() {
+        long cpuNs = getProcessCpuTimeNs();
+        long wallNs = System.nanoTime();
+        double load = (lastCpuWallNs_ == 0 || wallNs == lastCpuWallNs_) ? 0 :
+            (double)(cpuNs - lastCpuNs_) / (wallNs - lastCpuWallNs_);
+        lastCpuNs_ = cpuNs;
+        lastCpuWallNs_ = wallNs;
+        return load;
+    }
+
+    public long getHeapUsedBytes() {
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    public String[] getLatencies() {
+        List<String> latencies = new ArrayList<String>();
+        for (Map.Entry<String, LatencyHistogram> histogram : histograms_.entrySet())
+            latencies.add(histogram.getKey() + ": " + histogram.getValue());
+        return latencies.toArray(new String[latencies.size()]);
+    }
+
+    public String[] getCounters() {
+        List<String> counters = new ArrayList<String>();
+        for (Map.Entry<String, AtomicLong> counter : counters_.entrySet())
+            counters.add(counter.getKey() + " " + counter.getValue().get());
+        return counters.toArray(new String[counters.size()]);
+    }
+
+    /* One line for the query port */
+    public String getSummary() {
+        return "ticks " + getTicks() +
+            ", missed ticks " + getMissedTicks() +
+            ", tick p50 " + String.format("%.3f", getTickP50Ms()) + " ms" +
+            ", p99 " + String.format("%.3f", getTickP99Ms()) + " ms" +
+            ", max " + String.format("%.3f", getTickMaxMs()) + " ms" +
+            ", errors " + getErrors() +
+            ", reconnects " + getReconnects() +
+            ", cpu " + String.format("%.1f", getProcessCpuTimeNs() / 1e6) + " ms" +
+            ", heap used " + getHeapUsedBytes() + " bytes";
+    }
+}
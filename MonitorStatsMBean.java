@@ -0,0 +1,35 @@
+/**
+ * Management interface of MonitorStats, registered by the monitor as
+ * jmxmon:type=MonitorStats (kafkamon:type=MonitorStats for KafkaMonitor).
+ * Latencies are in milliseconds.
+ */
+public interface MonitorStatsMBean {
+
+    long getTicks();
+
+    long getMissedTicks();
+
+    double getTickP50Ms();
+
+    double getTickP99Ms();
+
+    double getTickMaxMs();
+
+    long getErrors();
+
+    long getReconnects();
+
+    /* CPU time used by the monitor process so far */
+    long getProcessCpuTimeNs();
+
+    /* Share of one CPU used by the monitor since the previous call, 0-1 */
+    double getProcessCpuLoad();
+
+    long getHeapUsedBytes();
+
+    /* "name: count N, mean x, p50 x, ..." for every histogram */
+    String[] getLatencies();
+
+    /* "name value" for every counter */
+    String[] getCounters();
+}
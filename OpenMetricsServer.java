@@ -0,0 +1,281 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.log4j.Logger;
+
+
+/**
+ * Serves the latest sample of every target at /metrics in the OpenMetrics
+ * text format (or the Prometheus text format 0.0.4 to clients that do not
+ * ask for OpenMetrics), for scraping without a custom client.
+ *
+ * A metric "[target/]domain:type=T,name=N,k1=v1,...#attr[-item][:derived]"
+ * becomes the gauge
+ *
+ *   domain_T_N_attr[_item][_derived]{k1="v1",...,target="target"}
+ *
+ * name= is part of the family, as in jmx_exporter's default naming, so
+ * that a family does not mix quantities (Kafka's MessagesInPerSec and
+ * BytesInPerSec are both BrokerTopicMetrics); without type= it is a label.
+ *
+ * Headers and body go out in separate writes, so without
+ * -Dsun.net.httpserver.nodelay=true (see run_jmxmon) a keep-alive scrape
+ * waits for the client's delayed ACK.
+ *
+ * The name and labels of each metric id are worked out once. update()
+ * renders the whole page once per tick on the sampling thread, and a
+ * scrape only writes out the bytes of the last rendering.
+ */
+public class OpenMetricsServer {
+    static Logger log = Logger.getLogger(OpenMetricsServer.class.getName());
+
+    static private final Charset CHARSET = Charset.forName("UTF-8");
+    static private final String EOF = "# EOF\n";
+    static private final String OPENMETRICS_TYPE =
+        "application/openmetrics-text; version=1.0.0; charset=utf-8";
+    static private final String TEXT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private final MetricRegistry registry_;
+    private final HttpServer server_;
+    private final ExecutorService executor_;
+
+    // per metric id, filled in on first use
+    private int[] familyOf_;     // index into families_, -1 if not known yet, -2 if not exported
+    private String[] labelsOf_;  // "{k=\"v\",...}" or ""
+    private final Map<String, Integer> familyIndex_;
+    private String[] families_;
+    // reused by update(): one entry per numeric value, sorted by family
+    private long[] entries_;
+    private int[] ids_;
+    private double[] doubles_;
+    private long[] longs_;
+    private boolean[] isLong_;
+    private final StringBuilder sb_;
+
+    private volatile byte[] page_;
+    private volatile long scrapes_;
+
+    public OpenMetricsServer(int port, MetricRegistry registry) throws IOException {
+        registry_ = registry;
+        familyOf_ = new int[0];
+        labelsOf_ = new String[0];
+        familyIndex_ = new HashMap<String, Integer>();
+        families_ = new String[16];
+        entries_ = new long[256];
+        ids_ = new int[256];
+        doubles_ = new double[256];
+        longs_ = new long[256];
+        isLong_ = new boolean[256];
+        sb_ = new StringBuilder(4096);
+        page_ = EOF.getBytes(CHARSET);
+
+        server_ = HttpServer.create(new InetSocketAddress(port), 0);
+        server_.createContext("/metrics", new HttpHandler() {
+                public void handle(HttpExchange exchange) throws IOException {
+                    serve(exchange);
+                }
+            });
+        executor_ = Executors.newSingleThreadExecutor();
+        server_.setExecutor(executor_);
+    }
+
+    public void start() {
+        server_.start();
+        log.info("Serving OpenMetrics at http://localhost:" +
+                 server_.getAddress().getPort() + "/metrics");
+    }
+
+    public void close() {
+        server_.stop(0);
+        executor_.shutdown();
+    }
+
+    public long getScrapes() {
+        return scrapes_;
+    }
+
+    private void serve(HttpExchange exchange) throws IOException {
+        byte[] page = page_;
+        String accept = exchange.getRequestHeaders().getFirst("Accept");
+        boolean openMetrics = (accept != null && accept.contains("application/openmetrics-text"));
+        // the text format is the same page without the "# EOF" line
+        int length = openMetrics ? page.length : page.length - EOF.length();
+        exchange.getResponseHeaders().set("Content-Type", openMetrics ? OPENMETRICS_TYPE : TEXT_TYPE);
+        exchange.sendResponseHeaders(200, length);
+        OutputStream out = exchange.getResponseBody();
+        out.write(page, 0, length);
+        out.close();
+        scrapes_++;
+    }
+
+    /*
+     * Renders the frames of a tick; prefixes.get(i) is the key prefix of
+     * the target of frames.get(i), which becomes its target label.
+     */
+    public void update(List<SampleFrame> frames, List<String> prefixes) {
+        int n = 0;
+        for (int f = 0; f < frames.size(); f++) {
+            SampleFrame frame = frames.get(f);
+            for (int i = 0; i < frame.size(); i++) {
+                int id = frame.idAt(i);
+                if (!frame.isNumber(id))
+                    continue;
+                int family = familyOf(id, prefixes.get(f));
+                if (family < 0)
+                    continue;
+                if (entries_.length <= n) {
+                    entries_ = Arrays.copyOf(entries_, n * 2);
+                    ids_ = Arrays.copyOf(ids_, n * 2);
+                    doubles_ = Arrays.copyOf(doubles_, n * 2);
+                    longs_ = Arrays.copyOf(longs_, n * 2);
+                    isLong_ = Arrays.copyOf(isLong_, n * 2);
+                }
+                // family in the high bits, so that sorting groups each family
+                entries_[n] = ((long)family << 32) | n;
+                ids_[n] = id;
+                isLong_[n] = (frame.typeOf(id) == SampleFrame.LONG);
+                longs_[n] = frame.longValue(id);
+                doubles_[n] = frame.doubleValue(id);
+                n++;
+            }
+        }
+        Arrays.sort(entries_, 0, n);
+
+        sb_.setLength(0);
+        int lastFamily = -1;
+        for (int i = 0; i < n; i++) {
+            int family = (int)(entries_[i] >>> 32);
+            int j = (int)entries_[i];
+            if (family != lastFamily) {
+                sb_.append("# TYPE ").append(families_[family]).append(" gauge\n");
+                lastFamily = family;
+            }
+            sb_.append(families_[family]).append(labelsOf_[ids_[j]]).append(' ');
+            if (isLong_[j])
+                sb_.append(longs_[j]);
+            else
+                appendDouble(sb_, doubles_[j]);
+            sb_.append('\n');
+        }
+        sb_.append(EOF);
+        page_ = sb_.toString().getBytes(CHARSET);
+    }
+
+    static private void appendDouble(StringBuilder sb, double value) {
+        if (Double.isNaN(value))
+            sb.append("NaN");
+        else if (Double.isInfinite(value))
+            sb.append((value < 0) ? "-Inf" : "+Inf");
+        else if (value == Math.rint(value) && Math.abs(value) < 1e15)
+            sb.append((long)value);
+        else
+            sb.append(value);
+    }
+
+    /* Family index of a metric id, or -2 if its name cannot be mapped */
+    private int familyOf(int id, String prefix) {
+        if (id < familyOf_.length && familyOf_[id] != -1)
+            return familyOf_[id];
+        if (familyOf_.length <= id) {
+            int old = familyOf_.length;
+            familyOf_ = Arrays.copyOf(familyOf_, Math.max(id + 1, 2 * old));
+            labelsOf_ = Arrays.copyOf(labelsOf_, familyOf_.length);
+            Arrays.fill(familyOf_, old, familyOf_.length, -1);
+        }
+
+        String name = registry_.nameOf(id);
+        if (!name.startsWith(prefix))
+            return -2;
+        name = name.substring(prefix.length());
+        int hash = name.indexOf('#');
+        ObjectName bean;
+        try {
+            bean = new ObjectName(name.substring(0, Math.max(hash, 0)));
+        } catch (MalformedObjectNameException ex) {
+            log.debug("Not exported: " + name);
+            familyOf_[id] = -2;
+            return -2;
+        }
+
+        // attr[-item][:derived]
+        StringBuilder family = new StringBuilder(sanitize(bean.getDomain()));
+        Map<String, String> keys = new TreeMap<String, String>(bean.getKeyPropertyList());
+        String type = keys.remove("type");
+        if (type != null) {
+            family.append('_').append(sanitize(unquote(type)));
+            String beanName = keys.remove("name");
+            if (beanName != null)
+                family.append('_').append(sanitize(unquote(beanName)));
+        }
+        family.append('_').append(sanitize(name.substring(hash + 1)));
+
+        StringBuilder labels = new StringBuilder();
+        if (!prefix.isEmpty())
+            keys.put("target", prefix.substring(0, prefix.length() - 1));
+        for (Map.Entry<String, String> key : keys.entrySet()) {
+            labels.append((labels.length() == 0) ? '{' : ',');
+            labels.append(sanitize(key.getKey())).append("=\"");
+            escape(labels, unquote(key.getValue()));
+            labels.append('"');
+        }
+        if (0 < labels.length())
+            labels.append('}');
+
+        Integer index = familyIndex_.get(family.toString());
+        if (index == null) {
+            index = familyIndex_.size();
+            familyIndex_.put(family.toString(), index);
+            if (families_.length <= index)
+                families_ = Arrays.copyOf(families_, 2 * families_.length);
+            families_[index] = family.toString();
+        }
+        familyOf_[id] = index;
+        labelsOf_[id] = labels.toString();
+        return index;
+    }
+
+    /* Metric and label names: [a-zA-Z_][a-zA-Z0-9_]* */
+    static private String sanitize(String name) {
+        StringBuilder sb = new StringBuilder(name.length() + 1);
+        if (name.isEmpty() || Character.isDigit(name.charAt(0)))
+            sb.append('_');
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            boolean ok = (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || 
+                (c >= '0' && c <= '9') || c == '_';
+            sb.append(ok ? c : '_');
+        }
+        return sb.toString();
+    }
+
+    static private String unquote(String value) {
+        return (value.startsWith("\"")) ? ObjectName.unquote(value) : value;
+    }
+
+    static private void escape(StringBuilder sb, String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\\' || c == '"')
+                sb.append('\\').append(c);
+            else if (c == '\n')
+                sb.append("\\n");
+            else
+                sb.append(c);
+        }
+    }
+}
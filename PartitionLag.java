@@ -0,0 +1,297 @@
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+
+import org.apache.log4j.Logger;
+
+
+/**
+ * Per-partition throughput and consumer lag, updated from the frame of
+ * each tick:
+ *
+ *   kafka.log:type=Log,name=LogEndOffset,topic=T,partition=P#Value
+ *     the broker's end offset; its change over the tick is the partition's
+ *     produced messages/s
+ *   kafka.consumer:type=consumer-fetch-manager-metrics,client-id=C,topic=T,partition=P#records-lag
+ *     a consumer's lag on the partition; the largest of all consumers counts
+ *   kafka.consumer:type=consumer-fetch-manager-metrics,client-id=C#records-lag-max
+ *     used, summed over the consumers, only if no consumer has per-partition lag
+ *
+ * What a partition's consumers read is its produced rate less the growth
+ * of its lag, so the consumed rate is exact, not inferred from BytesOut,
+ * which also counts replication and every other consumer group.
+ *
+ * Metric ids are classified once, on their first tick, so a tick costs
+ * an array lookup per value and a pass over the partitions. Internal
+ * topics ("__consumer_offsets") are left out unless named in topics.
+ */
+public class PartitionLag {
+    static Logger log = Logger.getLogger(PartitionLag.class.getName());
+
+    static private final byte UNKNOWN = 0;
+    static private final byte OTHER = 1;
+    static private final byte END_OFFSET = 2;
+    static private final byte RECORDS_LAG = 3;
+    static private final byte RECORDS_LAG_MAX = 4;
+
+    private static class Partition {
+        final String name;      // topic-partition
+        long offset = -1;       // end offset of the last read
+        long offsetTime;
+        boolean read;           // end offset read in this tick
+        double producedPerSec = Double.NaN;
+        double tickLag;         // largest of this tick, NaN if none
+        double lag = Double.NaN;
+        double lastLag = Double.NaN;
+        long lagTime;
+        double consumedPerSec = Double.NaN;
+
+        Partition(String name) {
+            this.name = name;
+        }
+
+        void offset(long now, long offset) {
+            if (0 <= this.offset && offsetTime < now && this.offset <= offset)
+                producedPerSec = (offset - this.offset) * 1000.0 / (now - offsetTime);
+            else
+                producedPerSec = Double.NaN;    // first read, or the log was recreated
+            this.offset = offset;
+            offsetTime = now;
+            read = true;
+        }
+
+        void lag(long now) {
+            lag = tickLag;
+            if (Double.isNaN(tickLag)) {
+                consumedPerSec = Double.NaN;
+                return;
+            }
+            if (read && !Double.isNaN(producedPerSec) && !Double.isNaN(lastLag) && lagTime < now)
+                consumedPerSec = Math.max(0, producedPerSec - (tickLag - lastLag) * 1000.0 / (now - lagTime));
+            else
+                consumedPerSec = Double.NaN;
+            lastLag = tickLag;
+            lagTime = now;
+        }
+    }
+
+    private final MetricRegistry registry_;
+    private final Set<String> topics_;      // null for all but internal ones
+    private byte[] kinds_;                  // by metric id
+    private Partition[] byId_;
+    private final Map<String, Partition> byName_;
+    private Partition[] partitions_;
+    private int numPartitions_;
+    // totals of the last tick
+    private double producedPerSec_;
+    private double trackedProducedPerSec_;  // of the partitions with a consumed rate
+    private double consumedPerSec_;
+    private double lag_;
+    private int numTracked_;
+    private double lastLagMax_ = Double.NaN;
+    private long lagMaxTime_;
+
+    public PartitionLag(MetricRegistry registry, Set<String> topics) {
+        registry_ = registry;
+        topics_ = topics;
+        kinds_ = new byte[256];
+        byId_ = new Partition[256];
+        byName_ = new TreeMap<String, Partition>();
+        partitions_ = new Partition[16];
+    }
+
+    public void update(SampleFrame frame) {
+        long now = frame.getTime();
+        for (int i = 0; i < numPartitions_; i++) {
+            partitions_[i].read = false;
+            partitions_[i].tickLag = Double.NaN;
+        }
+        double lagMax = 0;
+        boolean hasLagMax = false;
+        for (int i = 0; i < frame.size(); i++) {
+            int id = frame.idAt(i);
+            byte kind = kindOf(id);
+            if (kind == OTHER || !frame.isNumber(id))
+                continue;
+            double value = frame.doubleValue(id);
+            if (Double.isNaN(value) || Double.isInfinite(value))
+                continue;   // consumers report NaN before their first fetch
+            Partition partition = byId_[id];
+            switch (kind) {
+            case END_OFFSET:
+                partition.offset(now, (long)value);
+                break;
+            case RECORDS_LAG:
+                if (Double.isNaN(partition.tickLag) || partition.tickLag < value)
+                    partition.tickLag = value;
+                break;
+            case RECORDS_LAG_MAX:
+                lagMax += value;
+                hasLagMax = true;
+                break;
+            }
+        }
+
+        producedPerSec_ = 0;
+        trackedProducedPerSec_ = 0;
+        consumedPerSec_ = 0;
+        lag_ = 0;
+        numTracked_ = 0;
+        boolean hasLag = false;
+        for (int i = 0; i < numPartitions_; i++) {
+            Partition partition = partitions_[i];
+            partition.lag(now);
+            if (!partition.read)
+                continue;
+            if (!Double.isNaN(partition.producedPerSec))
+                producedPerSec_ += partition.producedPerSec;
+            if (!Double.isNaN(partition.lag)) {
+                lag_ += partition.lag;
+                hasLag = true;
+            }
+            if (!Double.isNaN(partition.consumedPerSec)) {
+                trackedProducedPerSec_ += partition.producedPerSec;
+                consumedPerSec_ += partition.consumedPerSec;
+                numTracked_++;
+            }
+        }
+        // consumers without per-partition metrics: their lag as a whole
+        if (!hasLag && hasLagMax) {
+            lag_ = lagMax;
+            if (!Double.isNaN(lastLagMax_) && lagMaxTime_ < now) {
+                trackedProducedPerSec_ = producedPerSec_;
+                consumedPerSec_ = Math.max(0, producedPerSec_ - (lagMax - lastLagMax_) * 1000.0 / (now - lagMaxTime_));
+                numTracked_ = numPartitions_;
+            }
+            lastLagMax_ = lagMax;
+            lagMaxTime_ = now;
+        }
+        else {
+            lastLagMax_ = Double.NaN;
+        }
+    }
+
+    /* Whether the last tick had a consumed rate, i.e. the lag of two ticks in a row */
+    public boolean hasLag() {
+        return 0 < numTracked_;
+    }
+
+    public int getNumPartitions() {
+        return numPartitions_;
+    }
+
+    /* Produced messages/s of all partitions */
+    public double getProducedPerSec() {
+        return producedPerSec_;
+    }
+
+    /* Produced messages/s of the partitions getConsumedPerSec() covers */
+    public double getTrackedProducedPerSec() {
+        return trackedProducedPerSec_;
+    }
+
+    public double getConsumedPerSec() {
+        return consumedPerSec_;
+    }
+
+    public double getLag() {
+        return lag_;
+    }
+
+    /* The totals of the last tick */
+    public String getTotals() {
+        return "partitions " + numPartitions_ +
+            ", produced " + String.format("%.1f", producedPerSec_) + " msg/s" +
+            ", lag " + String.format("%.0f", lag_) +
+            (hasLag() ? ", consumed " + String.format("%.1f", consumedPerSec_) + " msg/s of " +
+             String.format("%.1f", trackedProducedPerSec_) + " msg/s" : "");
+    }
+
+    /* The totals, then one line per partition in name order */
+    public String getSummary() {
+        StringBuilder sb = new StringBuilder(getTotals()).append('\n');
+        for (Partition partition : byName_.values()) {
+            sb.append(partition.name)
+                .append(": offset ").append(partition.offset)
+                .append(", produced ").append(format(partition.producedPerSec)).append(" msg/s")
+                .append(", lag ").append(Double.isNaN(partition.lag) ? "-" : String.format("%.0f", partition.lag))
+                .append(", consumed ").append(format(partition.consumedPerSec)).append(" msg/s")
+                .append('\n');
+        }
+        return sb.toString();
+    }
+
+    static private String format(double perSec) {
+        return Double.isNaN(perSec) ? "-" : String.format("%.1f", perSec);
+    }
+
+    private byte kindOf(int id) {
+        if (kinds_.length <= id) {
+            int capacity = Math.max(id + 1, 2 * kinds_.length);
+            kinds_ = Arrays.copyOf(kinds_, capacity);
+            byId_ = Arrays.copyOf(byId_, capacity);
+        }
+        if (kinds_[id] == UNKNOWN)
+            kinds_[id] = classify(id);
+        return kinds_[id];
+    }
+
+    /* What a metric is, from its "[prefix/]bean#attribute" name */
+    private byte classify(int id) {
+        String name = registry_.nameOf(id);
+        int hash = name.lastIndexOf('#');
+        if (hash < 0)
+            return OTHER;
+        String attribute = name.substring(hash + 1);
+        // the prefix, e.g. "host:port/", may itself have a colon or slash
+        ObjectName bean = null;
+        for (int start = 0; 0 <= start && start < hash; start = name.indexOf('/', start) + 1) {
+            try {
+                ObjectName candidate = new ObjectName(name.substring(start, hash));
+                if (candidate.getDomain().startsWith("kafka.")) {
+                    bean = candidate;
+                    break;
+                }
+            } catch (MalformedObjectNameException ex) {
+                // not here
+            }
+            if (name.indexOf('/', start) < 0)
+                break;
+        }
+        if (bean == null)
+            return OTHER;
+        String topic = bean.getKeyProperty("topic");
+        String partition = bean.getKeyProperty("partition");
+        byte kind = OTHER;
+        if (bean.getDomain().equals("kafka.log") && "Log".equals(bean.getKeyProperty("type")) &&
+            "LogEndOffset".equals(bean.getKeyProperty("name")) && attribute.equals("Value"))
+            kind = END_OFFSET;
+        else if (bean.getDomain().equals("kafka.consumer") &&
+                 "consumer-fetch-manager-metrics".equals(bean.getKeyProperty("type"))) {
+            if (attribute.equals("records-lag"))
+                kind = RECORDS_LAG;
+            else if (attribute.equals("records-lag-max") && topic == null)
+                return RECORDS_LAG_MAX;
+        }
+        if (kind == OTHER || topic == null || partition == null)
+            return OTHER;
+        if ((topics_ != null) ? !topics_.contains(topic) : topic.startsWith("__"))
+            return OTHER;
+        String key = topic + "-" + partition;
+        Partition p = byName_.get(key);
+        if (p == null) {
+            p = new Partition(key);
+            byName_.put(key, p);
+            if (numPartitions_ == partitions_.length)
+                partitions_ = Arrays.copyOf(partitions_, 2 * numPartitions_);
+            partitions_[numPartitions_++] = p;
+            log.debug("New partition " + key);
+        }
+        byId_[id] = p;
+        return kind;
+    }
+}
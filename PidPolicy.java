@@ -0,0 +1,61 @@
+/**
+ * PID-style controller on how far the consumer is above the point where
+ * it stops keeping up. The error of a tick is
+ *
+ *   e = 100 * BytesOutPerSec / BytesInPerSec - (100 - threshold)
+ *
+ * in percentage points, positive while the consumer has headroom. A
+ * producer is added when kp * e + ki * sum(e) + kd * (e - last e)
+ * reaches 1. The integral is clamped so that ki * sum(e) stays within
+ * [-1, 1] (no windup while the consumer lags for a long time) and
+ * cleared when a producer is added, so a lasting headroom adds producers
+ * one at a time, each after some ticks.
+ */
+public class PidPolicy implements ScalingPolicy {
+    private final double kp_;
+    private final double ki_;
+    private final double kd_;
+    private final double thresholdPercent_;
+    private double integral_;
+    private double lastError_;
+    private double output_;
+    private boolean started_;
+
+    public PidPolicy(double kp, double ki, double kd, double thresholdPercent) {
+        kp_ = kp;
+        ki_ = ki;
+        kd_ = kd;
+        thresholdPercent_ = thresholdPercent;
+    }
+
+    public void update(double bytesInPerSec, double bytesOutPerSec) {
+        double error = 100 * keptUp(bytesInPerSec, bytesOutPerSec) - (100 - thresholdPercent_);
+        integral_ += error;
+        if (ki_ != 0) {
+            double limit = 1 / Math.abs(ki_);
+            integral_ = Math.max(-limit, Math.min(limit, integral_));
+        }
+        double derivative = started_ ? error - lastError_ : 0;
+        output_ = kp_ * error + ki_ * integral_ + kd_ * derivative;
+        lastError_ = error;
+        started_ = true;
+    }
+
+    /* Share of the input the consumer read, 1 when there was no input */
+    static private double keptUp(double bytesInPerSec, double bytesOutPerSec) {
+        return (0 < bytesInPerSec) ? bytesOutPerSec / bytesInPerSec : 1;
+    }
+
+    public boolean shouldScale() {
+        return (started_ && 1 <= output_);
+    }
+
+    public void scaled() {
+        integral_ = 0;
+    }
+
+    public String toString() {
+        return "pid kp " + kp_ + ", ki " + ki_ + ", kd " + kd_ + ", threshold " + thresholdPercent_ + "%" +
+            " (output " + String.format("%.3f", output_) + ")";
+    }
+}
@@ -0,0 +1,447 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+
+/**
+ * KafkaMonitor's connections to its producers, served by one selector on
+ * its own thread so that the sampler never blocks on a producer.
+ *
+ * Protocol, one line each way per request: the monitor sends the
+ * messagesInPerSec the producer should add ("10000"), the producer
+ * answers "ok ..." once it has ramped up or "error ..." if it cannot.
+ * Answers come in request order. A request not answered within the
+ * timeout fails and its connection is closed, since a late answer could
+ * no longer be matched. With acks off (producers that never answer) a
+ * request counts as confirmed once it is written.
+ *
+ * Connections are opened without blocking and reopened with exponential
+ * backoff (1 s up to 60 s) after a failure; requests waiting on a broken
+ * connection fail. request() picks the connected producer with the least
+ * confirmed plus pending plus refused messagesInPerSec, so that one that
+ * keeps refusing is not asked first every time. What a producer refused
+ * counts only until its connection is reopened; what timed out goes with
+ * the connection it closed.
+ */
+public class ProducerChannel implements Runnable {
+    static Logger log = Logger.getLogger(ProducerChannel.class.getName());
+
+    static private final long MIN_BACKOFF_MS = 1000;  // [ms]
+    static private final long MAX_BACKOFF_MS = 60000; // [ms]
+    static private final int READ_BUFFER_SIZE = 1024;
+    static private final Charset CHARSET = Charset.forName("UTF-8");
+
+    private static class Request {
+        final int messagesInPerSec;
+        long sentNs;            // 0 until written
+        long deadlineNs;
+
+        Request(int messagesInPerSec) {
+            this.messagesInPerSec = messagesInPerSec;
+        }
+    }
+
+    /* State of one producer; the connection is only touched on the selector thread */
+    private static class Producer {
+        final String name;      // host:port
+        final String host;
+        final int port;
+        SocketChannel channel;  // null while waiting to reconnect
+        volatile boolean connected;
+        boolean wasConnected;
+        long backoffMs = MIN_BACKOFF_MS;
+        long reconnectAtNs;
+        long connectDeadlineNs;
+        ByteBuffer in = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        ArrayDeque<ByteBuffer> out = new ArrayDeque<ByteBuffer>();
+        ArrayDeque<Request> unanswered = new ArrayDeque<Request>();  // in request order
+        final AtomicInteger confirmed = new AtomicInteger();    // messagesInPerSec
+        final AtomicInteger pending = new AtomicInteger();
+        final AtomicInteger failed = new AtomicInteger();     // on this connection
+        volatile long acks;
+        volatile long failures;
+
+        Producer(String name, String host, int port) {
+            this.name = name;
+            this.host = host;
+            this.port = port;
+        }
+    }
+
+    private final Producer[] producers_;
+    private final long timeoutNs_;
+    private final boolean acks_;
+    private Selector selector_;
+    private Thread thread_;
+    private volatile boolean running_;
+    // requests waiting for the selector thread, with the index of their producer
+    private final ConcurrentLinkedQueue<Object[]> submitted_;
+    private final AtomicInteger newlyConfirmed_;
+    private final AtomicLong reconnects_;
+    private LatencyHistogram ackNs_;
+    private AtomicLong errors_;
+
+    /* addresses are host:port; timeoutMs bounds the wait for each answer */
+    public ProducerChannel(String[] addresses, long timeoutMs, boolean acks) throws IOException {
+        producers_ = new Producer[addresses.length];
+        for (int i = 0; i < addresses.length; i++) {
+            String address = addresses[i].trim();
+            int colon = address.lastIndexOf(':');
+            if (colon < 0)
+                throw new IllegalArgumentException("Not host:port: " + address);
+            producers_[i] = new Producer(address, address.substring(0, colon),
+                                         Integer.parseInt(address.substring(colon + 1)));
+        }
+        timeoutNs_ = timeoutMs * 1000000;
+        acks_ = acks;
+        submitted_ = new ConcurrentLinkedQueue<Object[]>();
+        newlyConfirmed_ = new AtomicInteger();
+        reconnects_ = new AtomicLong();
+        selector_ = Selector.open();
+        thread_ = new Thread(this, "producer-channel");
+        thread_.setDaemon(true);
+        setStats(new MonitorStats());
+    }
+
+    /* Where to record answer latencies and failed requests */
+    public void setStats(MonitorStats stats) {
+        ackNs_ = stats.histogram("producer.ack");
+        errors_ = stats.counter(MonitorStats.ERRORS + "producer");
+    }
+
+    public void start() {
+        running_ = true;
+        thread_.start();
+    }
+
+    public void close() {
+        running_ = false;
+        selector_.wakeup();
+        if (!thread_.isAlive() || Thread.currentThread() == thread_)
+            closeChannels();
+    }
+
+    /**
+     * Asks the least loaded connected producer to add messagesInPerSec.
+     * Returns false if no producer is connected. Does not block; the
+     * rate counts for takeConfirmed() once the producer has answered.
+     */
+    public boolean request(int messagesInPerSec) {
+        int best = -1;
+        long bestLoad = Long.MAX_VALUE;
+        for (int i = 0; i < producers_.length; i++) {
+            Producer producer = producers_[i];
+            long load = (long)producer.confirmed.get() + producer.pending.get() + producer.failed.get();
+            if (producer.connected && load < bestLoad) {
+                best = i;
+                bestLoad = load;
+            }
+        }
+        if (best < 0)
+            return false;
+        producers_[best].pending.addAndGet(messagesInPerSec);
+        submitted_.add(new Object[] { best, new Request(messagesInPerSec) });
+        selector_.wakeup();
+        log.debug("Requested " + messagesInPerSec + " messagesInPerSec from producer " +
+                  producers_[best].name + " (load " + bestLoad + ")");
+        return true;
+    }
+
+    /* messagesInPerSec confirmed since the last call */
+    public int takeConfirmed() {
+        return newlyConfirmed_.getAndSet(0);
+    }
+
+    public int getNumConnected() {
+        int connected = 0;
+        for (Producer producer : producers_) {
+            if (producer.connected)
+                connected++;
+        }
+        return connected;
+    }
+
+    public long getReconnects() {
+        return reconnects_.get();
+    }
+
+    /* One "name: up|down, confirmed N, pending N, failed N, acks N, failures N" per producer */
+    public String getSummary() {
+        StringBuilder sb = new StringBuilder();
+        for (Producer producer : producers_) {
+            if (0 < sb.length())
+                sb.append("; ");
+            sb.append(producer.name).append(producer.connected ? ": up" : ": down");
+            sb.append(", confirmed ").append(producer.confirmed.get());
+            sb.append(", pending ").append(producer.pending.get());
+            sb.append(", failed ").append(producer.failed.get());
+            sb.append(", acks ").append(producer.acks);
+            sb.append(", failures ").append(producer.failures);
+        }
+        return sb.toString();
+    }
+
+    public void run() {
+        try {
+            for (Producer producer : producers_)
+                connect(producer);
+            while (running_) {
+                selector_.select(Math.max(1, (nextDeadlineNs() - System.nanoTime()) / 1000000));
+                takeSubmitted();
+                Iterator<SelectionKey> it = selector_.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    Producer producer = (Producer)key.attachment();
+                    try {
+                        if (!key.isValid())
+                            continue;
+                        if (key.isConnectable())
+                            finishConnect(key, producer);
+                        else {
+                            if (key.isReadable())
+                                read(key, producer);
+                            if (key.isValid() && key.isWritable())
+                                write(key, producer);
+                        }
+                    } catch (IOException ex) {
+                        disconnect(producer, ex.toString());
+                    }
+                }
+                checkTimers();
+            }
+        } catch (IOException ex) {
+            log.error(ex);
+        } catch (ClosedSelectorException ex) {
+            ;
+        }
+        closeChannels();
+    }
+
+    /* The next request deadline or reconnect, whichever comes first */
+    private long nextDeadlineNs() {
+        long next = System.nanoTime() + MAX_BACKOFF_MS * 1000000;
+        for (Producer producer : producers_) {
+            if (producer.channel == null)
+                next = Math.min(next, producer.reconnectAtNs);
+            else if (!producer.connected)
+                next = Math.min(next, producer.connectDeadlineNs);
+            Request head = producer.unanswered.peekFirst();
+            if (head != null && head.sentNs != 0)
+                next = Math.min(next, head.deadlineNs);
+        }
+        return next;
+    }
+
+    private void checkTimers() {
+        long now = System.nanoTime();
+        for (Producer producer : producers_) {
+            if (producer.channel == null) {
+                if (producer.reconnectAtNs <= now)
+                    connect(producer);
+                continue;
+            }
+            if (!producer.connected) {
+                if (producer.connectDeadlineNs <= now)
+                    disconnect(producer, "connect timed out");
+                continue;
+            }
+            Request head = producer.unanswered.peekFirst();
+            if (head != null && head.sentNs != 0 && head.deadlineNs <= now)
+                disconnect(producer, "no answer within " + (timeoutNs_ / 1000000) + " ms");
+        }
+    }
+
+    private void takeSubmitted() {
+        Object[] submitted;
+        while ((submitted = submitted_.poll()) != null) {
+            Producer producer = producers_[(Integer)submitted[0]];
+            Request request = (Request)submitted[1];
+            if (producer.channel == null || !producer.connected) {
+                fail(producer, request, "not connected");
+                continue;
+            }
+            producer.out.addLast(ByteBuffer.wrap((request.messagesInPerSec + "\n").getBytes(CHARSET)));
+            producer.unanswered.addLast(request);
+            SelectionKey key = producer.channel.keyFor(selector_);
+            try {
+                write(key, producer);
+            } catch (IOException ex) {
+                disconnect(producer, ex.toString());
+            }
+        }
+    }
+
+    private void connect(Producer producer) {
+        try {
+            SocketChannel channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            producer.channel = channel;
+            producer.connectDeadlineNs = System.nanoTime() + timeoutNs_;
+            if (channel.connect(new InetSocketAddress(producer.host, producer.port))) {
+                channel.register(selector_, SelectionKey.OP_READ, producer);
+                connected(producer);
+            }
+            else {
+                channel.register(selector_, SelectionKey.OP_CONNECT, producer);
+            }
+        } catch (IOException ex) {
+            disconnect(producer, ex.toString());
+        }
+    }
+
+    private void finishConnect(SelectionKey key, Producer producer) throws IOException {
+        if (producer.channel.finishConnect()) {
+            key.interestOps(SelectionKey.OP_READ);
+            connected(producer);
+        }
+    }
+
+    private void connected(Producer producer) {
+        if (producer.wasConnected)
+            reconnects_.incrementAndGet();
+        producer.wasConnected = true;
+        producer.failed.set(0);     // a new start; failures keeps counting
+        producer.backoffMs = MIN_BACKOFF_MS;
+        producer.connected = true;
+        log.info("Connected to producer " + producer.name);
+    }
+
+    private void read(SelectionKey key, Producer producer) throws IOException {
+        if (!producer.in.hasRemaining())
+            throw new IOException("Answer too long");
+        if (producer.channel.read(producer.in) < 0)
+            throw new IOException("Closed by producer");
+
+        // handle every complete line; a partial line stays in the buffer
+        ByteBuffer in = producer.in;
+        in.flip();
+        int start = 0;
+        for (int i = 0; i < in.limit(); i++) {
+            if (in.get(i) != '\n')
+                continue;
+            int end = (start < i && in.get(i - 1) == '\r') ? i - 1 : i;
+            answered(producer, new String(in.array(), start, end - start, CHARSET).trim());
+            start = i + 1;
+        }
+        in.position(start);
+        in.compact();
+    }
+
+    private void answered(Producer producer, String answer) {
+        if (!acks_) {
+            log.debug("Answer from producer " + producer.name + " ignored, acks are off: " + answer);
+            return;
+        }
+        Request request = producer.unanswered.peekFirst();
+        if (request == null || request.sentNs == 0) {
+            log.warn("Unexpected answer from producer " + producer.name + ": " + answer);
+            return;
+        }
+        producer.unanswered.removeFirst();
+        if (answer.startsWith("ok")) {
+            ackNs_.recordSince(request.sentNs);
+            confirm(producer, request);
+        }
+        else {
+            fail(producer, request, answer);
+        }
+    }
+
+    private void confirm(Producer producer, Request request) {
+        producer.pending.addAndGet(-request.messagesInPerSec);
+        producer.confirmed.addAndGet(request.messagesInPerSec);
+        producer.acks++;
+        newlyConfirmed_.addAndGet(request.messagesInPerSec);
+        log.debug("Producer " + producer.name + " confirmed " + request.messagesInPerSec +
+                  " messagesInPerSec");
+    }
+
+    private void fail(Producer producer, Request request, String reason) {
+        producer.pending.addAndGet(-request.messagesInPerSec);
+        producer.failed.addAndGet(request.messagesInPerSec);
+        producer.failures++;
+        errors_.incrementAndGet();
+        log.warn("Request of " + request.messagesInPerSec + " messagesInPerSec to producer " +
+                 producer.name + " failed: " + reason);
+    }
+
+    private void write(SelectionKey key, Producer producer) throws IOException {
+        while (!producer.out.isEmpty()) {
+            ByteBuffer buf = producer.out.peekFirst();
+            producer.channel.write(buf);
+            if (buf.hasRemaining())
+                break;
+            producer.out.removeFirst();
+        }
+        // requests written so far start their timeout (or are done without acks);
+        // the last out.size() requests are not fully written yet)
+        int written = producer.unanswered.size() - producer.out.size();
+        Iterator<Request> it = producer.unanswered.iterator();
+        while (0 < written--) {
+            Request request = it.next();
+            if (request.sentNs != 0)
+                continue;
+            request.sentNs = System.nanoTime();
+            request.deadlineNs = request.sentNs + timeoutNs_;
+            if (!acks_) {
+                it.remove();
+                confirm(producer, request);
+            }
+        }
+
+        // only ask for OP_WRITE while there is something left to send
+        if (producer.out.isEmpty())
+            key.interestOps(SelectionKey.OP_READ);
+        else
+            key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+    }
+
+    /* Closes the connection of producer, fails what it has not answered and schedules a reconnect */
+    private void disconnect(Producer producer, String reason) {
+        if (producer.connected)
+            log.warn("Lost producer " + producer.name + ": " + reason);
+        else
+            log.debug("Cannot connect to producer " + producer.name + ": " + reason);
+        producer.connected = false;
+        if (producer.channel != null) {
+            try {
+                producer.channel.close();
+            } catch (IOException ex) {
+                log.error(ex);
+            }
+            producer.channel = null;
+        }
+        while (!producer.unanswered.isEmpty())
+            fail(producer, producer.unanswered.removeFirst(), reason);
+        producer.out.clear();
+        producer.in.clear();
+        producer.reconnectAtNs = System.nanoTime() + producer.backoffMs * 1000000;
+        producer.backoffMs = Math.min(2 * producer.backoffMs, MAX_BACKOFF_MS);
+    }
+
+    private void closeChannels() {
+        try {
+            for (SelectionKey key : selector_.keys())
+                key.channel().close();
+            selector_.close();
+        } catch (IOException ex) {
+            log.error(ex);
+        } catch (ClosedSelectorException ex) {
+            ;
+        }
+    }
+}
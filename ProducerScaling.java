@@ -0,0 +1,312 @@
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+import java.util.Properties;
+
+import org.apache.log4j.Logger;
+
+
+/**
+ * KafkaMonitor's decisions on the broker throughput of each tick: when to
+ * ask for one more producer, and when the broker has stopped keeping up
+ * so that the run can end. Keeps no connections, so the decisions can be
+ * driven from recorded samples or a benchmark. Time is passed in by the
+ * caller. The in and out rates are BytesIn/BytesOutPerSec, or, when
+ * KafkaMonitor tracks consumer lag (see PartitionLag), the messages/s
+ * produced to and consumed from the partitions; only their ratios and
+ * changes are compared.
+ *
+ * Whether to scale once out of cooldown is up to a ScalingPolicy. The
+ * policy and all thresholds come from a config (see loadConfig()), keys
+ * and defaults:
+ *
+ *   policy=kofn                  kofn, ewma or pid
+ *   threshold.percent=3          consumer keeps up if BytesOut > (100-x)% of BytesIn
+ *   kofn.k=8, kofn.n=10          kofn: kept up in K of the last N ticks
+ *   ewma.alpha=0.3               ewma: weight of the newest tick
+ *   ewma.min.samples=5           ewma: ticks before the first decision
+ *   pid.kp=0.1, pid.ki=0.05, pid.kd=0
+ *                                pid: gains on the headroom in percentage points
+ *   cooldown.ms=60000            no scaling for this long after a scaling
+ *   cooldown.percent=5           nor while MessagesIn is more than x% below the total
+ *   bytes.inout.diff.percent=15  BytesOut above BytesIn by more is not a new peak
+ *   terminate.messagesin.percent=3, terminate.bytesout.percent=5,
+ *   terminate.m=10, terminate.bytesout.drop.percent=10
+ *                                termination criteria a, b, M and c below
+ */
+public class ProducerScaling {
+    static Logger log = Logger.getLogger(ProducerScaling.class.getName());
+
+    static public final String CONFIG_PROPERTY = "kafkamon.scaling.config";
+    static public final String PROPERTY_PREFIX = "kafkamon.scaling.";
+
+    private final ScalingPolicy policy_;
+    private final long cooldownPeriodMs_;
+    private final double cooldownThresholdPercent_;
+    // BytesIn < BytesOut
+    // See why this happens: http://mail-archives.apache.org/mod_mbox/kafka-users/201404.mbox/%3cCAFbh0Q1ikxwxce8i5H_yEd9DfsxUJSoJoQ7AYpGvwQexii-nYA@mail.gmail.com%3e
+    private final double bytesInOutDiffPercent_;
+
+    // Termination criteria: program terminates if both conditions 1 and 2 meet
+    //  OR
+    // condition 3 meet
+    // 1. messagesInPerSec_ is within a% of totalMessagesInPerSec_
+    // 2. "delta between BytesOutPerSec and lastBytesOutPerSec is less than b%"
+    //    is observed M times in a row
+    // 3. bytesOutPerSec_ drops more than c% from its peak value (maxBytesOutPerSec-)
+    private final double terminationMessagesInPercent_;     // a
+    private final double terminationBytesOutPercent_;       // b
+    private final double terminationBytesOutDropPercent_;   // c
+    private final int m_;
+
+    private int messagesInPerSec_;      // added by each new producer
+    private long lastScalingTime_;
+    private double maxMessagesInPerSec_;
+    private double maxBytesInPerSec_;
+    private boolean messagesInPerSecWithinThreshold_;
+    private int totalMessagesInPerSec_;
+    private double maxBytesOutPerSec_;
+    private double lastBytesOutPerSec_;
+    private int numBytesOutDeltaWithinThreshold_;
+
+    public ProducerScaling(int messagesInPerSec) {
+        this(messagesInPerSec, new Properties());
+    }
+
+    public ProducerScaling(int messagesInPerSec, Properties config) {
+        policy_ = newPolicy(config);
+        cooldownPeriodMs_ = getLong(config, "cooldown.ms", 60000);
+        cooldownThresholdPercent_ = getDouble(config, "cooldown.percent", 5);
+        bytesInOutDiffPercent_ = getDouble(config, "bytes.inout.diff.percent", 15);
+        terminationMessagesInPercent_ = getDouble(config, "terminate.messagesin.percent", 3);
+        terminationBytesOutPercent_ = getDouble(config, "terminate.bytesout.percent", 5);
+        terminationBytesOutDropPercent_ = getDouble(config, "terminate.bytesout.drop.percent", 10);
+        m_ = (int)getLong(config, "terminate.m", 10);
+
+        messagesInPerSec_ = messagesInPerSec;
+        messagesInPerSecWithinThreshold_ = false;
+        totalMessagesInPerSec_ = 0;
+        maxBytesOutPerSec_ = 0.0;
+        maxMessagesInPerSec_ = 0.0;
+        lastBytesOutPerSec_ = 0.0;
+        numBytesOutDeltaWithinThreshold_ = 0;
+        lastScalingTime_ = 0;
+    }
+
+    /* The policy named by the "policy" key of config, with its parameters */
+    static public ScalingPolicy newPolicy(Properties config) {
+        String policy = config.getProperty("policy", "kofn").trim();
+        double threshold = getDouble(config, "threshold.percent", 3);
+        if (policy.equals("kofn"))
+            return new KOutOfNPolicy((int)getLong(config, "kofn.k", 8),
+                                     (int)getLong(config, "kofn.n", 10), threshold);
+        if (policy.equals("ewma"))
+            return new EwmaPolicy(getDouble(config, "ewma.alpha", 0.3), threshold,
+                                  (int)getLong(config, "ewma.min.samples", 5));
+        if (policy.equals("pid"))
+            return new PidPolicy(getDouble(config, "pid.kp", 0.1), getDouble(config, "pid.ki", 0.05),
+                                 getDouble(config, "pid.kd", 0), threshold);
+        throw new IllegalArgumentException("Unknown scaling policy: " + policy);
+    }
+
+    /*
+     * The scaling config: the properties file named by
+     * -Dkafkamon.scaling.config if set, overridden by any
+     * -Dkafkamon.scaling.<key> system property
+     */
+    static public Properties loadConfig() throws IOException {
+        Properties config = new Properties();
+        String file = System.getProperty(CONFIG_PROPERTY);
+        if (file != null) {
+            InputStream in = new FileInputStream(file);
+            try {
+                config.load(in);
+            } finally {
+                in.close();
+            }
+        }
+        for (String name : System.getProperties().stringPropertyNames()) {
+            if (name.startsWith(PROPERTY_PREFIX) && !name.equals(CONFIG_PROPERTY))
+                config.setProperty(name.substring(PROPERTY_PREFIX.length()), System.getProperty(name));
+        }
+        return config;
+    }
+
+    static private long getLong(Properties config, String key, long defaultValue) {
+        String value = config.getProperty(key);
+        return (value != null) ? Long.parseLong(value.trim()) : defaultValue;
+    }
+
+    static private double getDouble(Properties config, String key, double defaultValue) {
+        String value = config.getProperty(key);
+        return (value != null) ? Double.parseDouble(value.trim()) : defaultValue;
+    }
+
+    public ScalingPolicy getPolicy() {
+        return policy_;
+    }
+
+    public int getMessagesInPerSec() {
+        return messagesInPerSec_;
+    }
+
+    public int getTotalMessagesInPerSec() {
+        return totalMessagesInPerSec_;
+    }
+
+    public double getMaxBytesOutPerSec() {
+        return maxBytesOutPerSec_;
+    }
+
+    public boolean checkIfTerminate(Map<String, Object> vals) {
+        double bytesOutPerSec = 0.0, bytesInPerSec = 0.0, messagesInPerSec = 0.0;
+        for (Map.Entry<String, Object> entry : vals.entrySet()) {
+            String beanAttr = entry.getKey();
+            if (beanAttr.contains("BytesOutPerSec"))
+                bytesOutPerSec = (Double)entry.getValue();
+            else if (beanAttr.contains("BytesInPerSec"))
+                bytesInPerSec = (Double)entry.getValue();
+            else if (beanAttr.contains("MessagesInPerSec"))
+                messagesInPerSec = (Double)entry.getValue();
+        }
+        return checkIfTerminate(messagesInPerSec, bytesInPerSec, bytesOutPerSec);
+    }
+
+    /* checkIfTerminate() on the three OneMinuteRates of a tick */
+    public boolean checkIfTerminate(double messagesInPerSec, double bytesInPerSec, double bytesOutPerSec) {
+        boolean terminate = false;
+        boolean debug = log.isDebugEnabled();
+
+        if (maxBytesInPerSec_ < bytesInPerSec)
+            maxBytesInPerSec_ = bytesInPerSec;
+        if (maxMessagesInPerSec_ < messagesInPerSec)
+            maxMessagesInPerSec_ = messagesInPerSec;
+
+        if (bytesOutPerSec < maxBytesOutPerSec_) {
+            double dropPercent =
+                100 * (double)(maxBytesOutPerSec_ - bytesOutPerSec) / maxBytesOutPerSec_;
+            if (terminationBytesOutDropPercent_ <= dropPercent) {
+                if (debug)
+                    log.debug("bytesOutPerSec:" + bytesOutPerSec +
+                              " dropped more than " + terminationBytesOutDropPercent_ +
+                              "% of maxBytesOutPerSec_: " + maxBytesOutPerSec_);
+                terminate = true;
+            }
+        }
+
+        if (!terminate) {
+            if (messagesInPerSecWithinThreshold_) {
+                if (100 * Math.abs((lastBytesOutPerSec_ - bytesOutPerSec) / lastBytesOutPerSec_) <
+                    terminationBytesOutPercent_) {
+                    numBytesOutDeltaWithinThreshold_++;
+                    if (debug)
+                        log.debug("bytesOutPerSec:" +  bytesOutPerSec +
+                                  " is within " + terminationBytesOutPercent_ +
+                                  "% of lastBytesOutPerSec: " + lastBytesOutPerSec_ +
+                                  ", M: " + numBytesOutDeltaWithinThreshold_);
+                }
+                else {
+                    numBytesOutDeltaWithinThreshold_ = 0;
+                    if (debug)
+                        log.debug("bytesOutPerSec:" +  bytesOutPerSec +
+                                  " is out of " + terminationBytesOutPercent_ +
+                                  "% of lastBytesOutPerSec: " + lastBytesOutPerSec_);
+                }
+                if (m_ <= numBytesOutDeltaWithinThreshold_)
+                    terminate = true;
+            }
+            else {
+                // check if messagesInPerSec is within a% of totalMessagesInPerSec_
+                if ((totalMessagesInPerSec_ *
+                     (100 - terminationMessagesInPercent_) / 100) < messagesInPerSec) {
+                    if (debug)
+                        log.debug("messagesInPerSec:" +  messagesInPerSec +
+                                  " reached within " + terminationMessagesInPercent_ +
+                                  "% of totalMessagesInPerSec: " + totalMessagesInPerSec_);
+                    messagesInPerSecWithinThreshold_ = true;
+                }
+            }
+        }
+
+        lastBytesOutPerSec_ = bytesOutPerSec;
+
+        return terminate;
+    }
+
+    /* now is the time of the sample, in ms */
+    public boolean checkIfScaleProducers(Map<String, Object> vals, long now) {
+        double bytesInPerSec = 0.0, messagesInPerSec = 0.0, bytesOutPerSec = 0.0;
+        for (Map.Entry<String, Object> entry : vals.entrySet()) {
+            String beanAttr = entry.getKey();
+            if (beanAttr.contains("BytesInPerSec"))
+                bytesInPerSec = (Double)entry.getValue();
+            else if (beanAttr.contains("MessagesInPerSec"))
+                messagesInPerSec = (Double)entry.getValue();
+            else if (beanAttr.contains("BytesOutPerSec"))
+                bytesOutPerSec = (Double)entry.getValue();
+        }
+        return checkIfScaleProducers(messagesInPerSec, bytesInPerSec, bytesOutPerSec, now);
+    }
+
+    /* checkIfScaleProducers() on the three OneMinuteRates of a tick */
+    public boolean checkIfScaleProducers(double messagesInPerSec, double bytesInPerSec,
+                                         double bytesOutPerSec, long now) {
+        boolean debug = log.isDebugEnabled();
+        if (lastScalingTime_ == 0) {
+            log.debug("First time, always create a new producer");
+            return true;
+        }
+
+        if (maxBytesOutPerSec_ < bytesOutPerSec &&
+            bytesOutPerSec <=
+            maxBytesInPerSec_ * (100 + bytesInOutDiffPercent_) / 100) {
+            /* Output should be within a reasonable range from input throughput */
+            maxBytesOutPerSec_ = bytesOutPerSec;
+            if (debug)
+                log.debug("Updated maxBytesOutPerSec: " + maxBytesOutPerSec_);
+        }
+
+        policy_.update(bytesInPerSec, bytesOutPerSec);
+
+        // cooldown check - time based
+        long cooldownPeriod = lastScalingTime_ + cooldownPeriodMs_;
+        if (now < cooldownPeriod) {
+            if (debug)
+                log.debug("Cooling down (time remaining: " + (double)(cooldownPeriod - now) / 1000 + " sec)");
+            return false;
+        }
+        // cooldown check - messagesInPerSec based
+        else if (messagesInPerSec < totalMessagesInPerSec_) {
+            double messagesInPerSecPercent =
+                100 * (double)(totalMessagesInPerSec_ - messagesInPerSec) / totalMessagesInPerSec_;
+            if (cooldownThresholdPercent_ < messagesInPerSecPercent) {
+                if (debug)
+                    log.debug("Cooling down (msgInPerSecPercent now: " + messagesInPerSecPercent +
+                              ", threshold: " + cooldownThresholdPercent_ + ")");
+                messagesInPerSecWithinThreshold_ = false;
+                return false;
+            }
+        }
+
+        boolean scale = policy_.shouldScale();
+        if (debug)
+            log.debug("Scaling policy: " + policy_ + (scale ? ", scale" : ""));
+        return scale;
+    }
+
+    /* Records that a new producer was requested at time now; starts the cooldown */
+    public void scaled(long now) {
+        lastScalingTime_ = now;
+        policy_.scaled();
+    }
+
+    /* Adds the messagesInPerSec that producers confirmed to the expected total */
+    public void addConfirmed(int messagesInPerSec) {
+        totalMessagesInPerSec_ += messagesInPerSec;
+    }
+
+    public long getLastScalingTime() {
+        return lastScalingTime_;
+    }
+}
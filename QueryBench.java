@@ -0,0 +1,143 @@
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+
+
+/**
+ * Load benchmark for the query port: opens many persistent connections to a
+ * running JmxMonitor, issues get_data requests (optionally pipelined) and
+ * prints query latency percentiles.
+ */
+public class QueryBench {
+
+    private String host_;
+    private int port_;
+    private int numClients_;
+    private int numRequests_;   // per client
+    private int pipelineDepth_;
+
+    public QueryBench(String host, int port, int numClients, int numRequests, int pipelineDepth) {
+        host_ = host;
+        port_ = port;
+        numClients_ = numClients;
+        numRequests_ = numRequests;
+        pipelineDepth_ = pipelineDepth;
+    }
+
+    /*
+     * Each client sends pipelineDepth_ requests back to back and then waits
+     * for all the responses; the latency of a request runs from the write of
+     * its batch to the arrival of its response line.
+     */
+    private long[] runClient(Socket sock) throws IOException {
+        long[] latencies = new long[numRequests_];
+        OutputStream out = sock.getOutputStream();
+        BufferedReader in = new BufferedReader(new InputStreamReader(sock.getInputStream()));
+
+        StringBuilder batch = new StringBuilder();
+        for (int i = 0; i < pipelineDepth_; i++)
+            batch.append("get_data\n");
+        byte[] request = batch.toString().getBytes("UTF-8");
+
+        int done = 0;
+        while (done < numRequests_) {
+            int n = Math.min(pipelineDepth_, numRequests_ - done);
+            long start = System.nanoTime();
+            out.write(request, 0, n * "get_data\n".length());
+            out.flush();
+            for (int i = 0; i < n; i++) {
+                if (in.readLine() == null)
+                    throw new IOException("Connection closed by server");
+                latencies[done++] = System.nanoTime() - start;
+            }
+        }
+
+        return latencies;
+    }
+
+    public void run() throws Exception {
+        final Socket[] socks = new Socket[numClients_];
+        for (int i = 0; i < numClients_; i++) {
+            socks[i] = new Socket(host_, port_);
+            socks[i].setTcpNoDelay(true);
+        }
+
+        final long[][] results = new long[numClients_][];
+        final CountDownLatch startGate = new CountDownLatch(1);
+        Thread[] threads = new Thread[numClients_];
+        for (int i = 0; i < numClients_; i++) {
+            final int client = i;
+            threads[i] = new Thread() {
+                    public void run() {
+                        try {
+                            startGate.await();
+                            results[client] = runClient(socks[client]);
+                        } catch (Exception ex) {
+                            System.err.println("Client " + client + ": " + ex);
+                        }
+                    }
+                };
+            threads[i].start();
+        }
+
+        long start = System.nanoTime();
+        startGate.countDown();
+        for (Thread thread : threads)
+            thread.join();
+        long elapsed = System.nanoTime() - start;
+
+        for (Socket sock : socks)
+            sock.close();
+
+        int total = 0;
+        for (long[] latencies : results)
+            total += (latencies != null) ? latencies.length : 0;
+        long[] all = new long[total];
+        int pos = 0;
+        for (long[] latencies : results) {
+            if (latencies != null) {
+                System.arraycopy(latencies, 0, all, pos, latencies.length);
+                pos += latencies.length;
+            }
+        }
+        Arrays.sort(all);
+
+        System.out.println("clients: " + numClients_ + ", requests/client: " + numRequests_ +
+                           ", pipeline depth: " + pipelineDepth_);
+        System.out.println("completed: " + total + " requests in " +
+                           String.format("%.3f", (double)elapsed / 1e9) + " s (" +
+                           String.format("%.0f", total / ((double)elapsed / 1e9)) + " req/s)");
+        if (total == 0)
+            return;
+        double[] percentiles = { 50, 90, 99, 99.9, 100 };
+        String[] labels = { "p50", "p90", "p99", "p99.9", "max" };
+        for (int i = 0; i < percentiles.length; i++) {
+            int index = (int)Math.ceil(percentiles[i] / 100 * total) - 1;
+            System.out.println(String.format("%-6s %10.3f ms", labels[i],
+                                             (double)all[Math.max(0, index)] / 1e6));
+        }
+    }
+
+    public static void main(String[] args) {
+        if (args.length < 2) {
+            System.err.println("Usage: java QueryBench [host] [port] " +
+                               "([clients] [requests per client] [pipeline depth])");
+            System.exit(1);
+        }
+
+        int numClients = (3 <= args.length) ? Integer.parseInt(args[2]) : 100;
+        int numRequests = (4 <= args.length) ? Integer.parseInt(args[3]) : 1000;
+        int pipelineDepth = (5 <= args.length) ? Integer.parseInt(args[4]) : 1;
+
+        try {
+            new QueryBench(args[0], Integer.parseInt(args[1]),
+                           numClients, numRequests, pipelineDepth).run();
+        } catch (Exception ex) {
+            ex.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,155 @@
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+
+/**
+ * Measures the CPU time and heap allocation per tick of the sample
+ * pipeline (record values, keep history, format the get_data line), for
+ * the SampleFrame/SampleFormatter path and for the TreeMap/String.format
+ * path it replaced. JMX reads are left out: both paths get the same boxed
+ * values, as they would from a JmxClient. First checks that both format
+ * doubles the same.
+ */
+public class SampleBench {
+
+    static private final int WARMUP_TICKS = 20000;
+
+    private int numMetrics_;
+    private int numTicks_;
+    private String[] names_;
+    private Object[][] values_;    // boxed values per tick, as JMX returns them
+
+    public SampleBench(int numMetrics, int numTicks) {
+        numMetrics_ = numMetrics;
+        numTicks_ = numTicks;
+        names_ = new String[numMetrics];
+        for (int i = 0; i < numMetrics; i++)
+            names_[i] = "kafka.server:type=BrokerTopicMetrics,name=Metric" + i;
+
+        // a few distinct tick values, alternating rates (Double) and counts (Long)
+        values_ = new Object[16][numMetrics];
+        for (int t = 0; t < values_.length; t++) {
+            for (int i = 0; i < numMetrics; i++) {
+                if (i % 2 == 0)
+                    values_[t][i] = Double.valueOf(1000 * Math.random());
+                else
+                    values_[t][i] = Long.valueOf((long)(1e6 * Math.random()));
+            }
+        }
+    }
+
+    private long legacyTick(long now, Object[] vals) {
+        String str = now + ", ";
+        Map<String, Object> attrValues = new TreeMap<String, Object>();
+        for (int i = 0; i < numMetrics_; i++)
+            attrValues.put(names_[i] + "#" + "OneMinuteRate", vals[i]);
+        for (Map.Entry<String, Object> val : attrValues.entrySet()) {
+            if (val.getValue() instanceof Double)
+                str += String.format("%.3f", val.getValue()) + ", ";
+            else
+                str += val.getValue() + ", ";
+        }
+        str = str.substring(0, str.lastIndexOf(','));
+        return str.length();
+    }
+
+    private long frameTick(long now, Object[] vals, SampleFrame frame,
+                           MetricHistory history, SampleFormatter formatter, boolean copy) {
+        frame.reset(now);
+        for (int i = 0; i < numMetrics_; i++)
+            frame.put(i, vals[i]);
+        history.add(frame);
+        CharSequence line = formatter.format(frame);
+        return copy ? line.toString().length() : line.length();
+    }
+
+    private void report(String name, long ticks, long cpuNs, long bytes) {
+        System.out.println(String.format("%-28s %10.3f us/tick %12.1f bytes/tick",
+                                         name, (double)cpuNs / ticks / 1000, (double)bytes / ticks));
+    }
+
+    public void run() {
+        com.sun.management.ThreadMXBean threads =
+            (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+        long tid = Thread.currentThread().getId();
+
+        MetricRegistry registry = new MetricRegistry();
+        for (int i = 0; i < numMetrics_; i++)
+            registry.idOf(names_[i] + "#OneMinuteRate");
+        SampleFrame frame = new SampleFrame(numMetrics_);
+        MetricHistory history = new MetricHistory(registry, 3600);
+        SampleFormatter formatter = new SampleFormatter();
+
+        long sink = 0;
+        for (int t = 0; t < WARMUP_TICKS; t++) {
+            sink += legacyTick(t, values_[t % values_.length]);
+            sink += frameTick(t, values_[t % values_.length], frame, history, formatter, true);
+        }
+
+        System.out.println("metrics: " + numMetrics_ + ", ticks: " + numTicks_);
+        for (int mode = 0; mode < 3; mode++) {
+            long bytes = threads.getThreadAllocatedBytes(tid);
+            long cpu = threads.getCurrentThreadCpuTime();
+            for (int t = 0; t < numTicks_; t++) {
+                long now = WARMUP_TICKS + t;
+                Object[] vals = values_[t % values_.length];
+                if (mode == 0)
+                    sink += legacyTick(now, vals);
+                else
+                    sink += frameTick(now, vals, frame, history, formatter, mode == 2);
+            }
+            cpu = threads.getCurrentThreadCpuTime() - cpu;
+            bytes = threads.getThreadAllocatedBytes(tid) - bytes;
+            String[] names = { "TreeMap + String.format", "SampleFrame", "SampleFrame + line copy" };
+            report(names[mode], numTicks_, cpu, bytes);
+        }
+        if (sink == 42)
+            System.out.println();
+    }
+
+    /*
+     * Compares SampleFormatter.appendDouble() with String.format("%.3f")
+     * over edge values (ties, -0.0, magnitudes around 2^53 / 1000) and
+     * random ones; returns the number that differ
+     */
+    static public int checkFormat(int numRandom) {
+        double[] edges = { 0.0, -0.0, -0.0001, 0.0005, 0.0015, 1.0005, -1.0005, 2.675, 0.9995,
+                           999999.9995, 123456789.1234995, 4503599627370.4995, 9.007199254740991E12,
+                           9.007199254740993E12, 1e15, Double.MIN_VALUE, -Double.MIN_VALUE };
+        Random random = new Random(1);
+        StringBuilder sb = new StringBuilder();
+        int differ = 0;
+        for (int i = 0; i < edges.length + numRandom; i++) {
+            double value;
+            if (i < edges.length)
+                value = edges[i];
+            else if (i % 3 == 0)    // decimal ties
+                value = (random.nextInt(2000000) - 1000000 + 0.5) / 1000;
+            else if (i % 3 == 1)
+                value = random.nextDouble() * Math.pow(10, random.nextInt(16));
+            else
+                value = Double.longBitsToDouble(random.nextLong());
+            if (Double.isNaN(value))
+                continue;
+            sb.setLength(0);
+            SampleFormatter.appendDouble(sb, value);
+            String expected = String.format("%.3f", value);
+            if (!expected.contentEquals(sb)) {
+                if (differ++ < 10)
+                    System.out.println("format differs for " + value + ": " + sb + ", %.3f: " + expected);
+            }
+        }
+        System.out.println("format check: " + (edges.length + numRandom) + " values, " + differ + " differ from %.3f");
+        return differ;
+    }
+
+    public static void main(String[] args) {
+        int numMetrics = (1 <= args.length) ? Integer.parseInt(args[0]) : 100;
+        int numTicks = (2 <= args.length) ? Integer.parseInt(args[1]) : 100000;
+
+        checkFormat(100000);
+        new SampleBench(numMetrics, numTicks).run();
+    }
+}
@@ -0,0 +1,96 @@
+import java.util.List;
+
+
+/**
+ * Formats a SampleFrame into the "timestamp, value, ..." line served by
+ * get_data, reusing one buffer for every tick. Doubles are written with
+ * three decimals like String.format("%.3f") but without going through
+ * Formatter, and integral values without boxing.
+ */
+public class SampleFormatter {
+
+    static private final double MAX_SCALABLE = (double)(1L << 53) / 1000;
+    static private final int TIE_ULPS = 16;
+
+    private final StringBuilder sb_;
+
+    public SampleFormatter() {
+        sb_ = new StringBuilder(1024);
+    }
+
+    /**
+     * Returns the formatted line. The returned buffer is overwritten by the
+     * next call, so copy it (toString()) before handing it to other threads.
+     */
+    public CharSequence format(SampleFrame frame) {
+        sb_.setLength(0);
+        sb_.append(frame.getTime());
+        appendValues(sb_, frame);
+        return sb_;
+    }
+
+    /* Formats the frames of several targets taken at the same time as one line */
+    public CharSequence format(long time, List<SampleFrame> frames) {
+        sb_.setLength(0);
+        sb_.append(time);
+        for (int i = 0; i < frames.size(); i++)
+            appendValues(sb_, frames.get(i));
+        return sb_;
+    }
+
+    static private void appendValues(StringBuilder sb, SampleFrame frame) {
+        for (int i = 0; i < frame.size(); i++) {
+            sb.append(", ");
+            appendValue(sb, frame, frame.idAt(i));
+        }
+    }
+
+    static public void appendValue(StringBuilder sb, SampleFrame frame, int id) {
+        switch (frame.typeOf(id)) {
+        case SampleFrame.DOUBLE:
+            appendDouble(sb, frame.doubleValue(id));
+            break;
+        case SampleFrame.LONG:
+            sb.append(frame.longValue(id));
+            break;
+        default:
+            sb.append(frame.objectValue(id));
+        }
+    }
+
+    /*
+     * Appends value rounded half-up to three decimals, exactly as "%.3f".
+     * Formatter rounds the shortest decimal form of the value, while
+     * abs * 1000 may be a few ulps off it, so values that scale to within
+     * a few ulps of a tie (1.0005) and values too large to scale exactly
+     * (above 2^53 / 1000) go through String.format; in practice a tiny share.
+     */
+    static public void appendDouble(StringBuilder sb, double value) {
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            sb.append(value);
+            return;
+        }
+        double abs = Math.abs(value);
+        if (MAX_SCALABLE <= abs) {
+            sb.append(String.format("%.3f", value));
+            return;
+        }
+        double scaledAbs = abs * 1000;
+        if (Math.abs(scaledAbs - Math.floor(scaledAbs) - 0.5) <= TIE_ULPS * Math.ulp(scaledAbs)) {
+            sb.append(String.format("%.3f", value));
+            return;
+        }
+
+        long scaled = Math.round(scaledAbs);
+        long intPart = scaled / 1000;
+        int fraction = (int)(scaled % 1000);
+        if (Double.doubleToRawLongBits(value) < 0)
+            sb.append('-');     // also -0.0 and values rounding to it, as "%.3f"
+        sb.append(intPart).append('.');
+        if (fraction < 100)
+            sb.append('0');
+        if (fraction < 10)
+            sb.append('0');
+        sb.append(fraction);
+    }
+}
@@ -0,0 +1,140 @@
+import java.util.Arrays;
+
+
+/**
+ * Values of one sampling tick, stored in preallocated slots indexed by
+ * metric id (see MetricRegistry). Numeric values are unboxed into primitive
+ * arrays; anything else is kept as an object. The frame also remembers the
+ * order in which values were put, which is the column order of the output.
+ *
+ * A frame is reused from tick to tick: reset() clears it without
+ * allocating, and the arrays only grow when new metric ids show up.
+ */
+public class SampleFrame {
+    static public final byte NONE = 0;
+    static public final byte DOUBLE = 1;
+    static public final byte LONG = 2;
+    static public final byte OBJECT = 3;
+
+    private long time_;
+    private byte[] types_;
+    private double[] doubles_;
+    private long[] longs_;
+    private Object[] objects_;
+    private int[] order_;
+    private int count_;
+
+    public SampleFrame() {
+        this(64);
+    }
+
+    public SampleFrame(int capacity) {
+        types_ = new byte[capacity];
+        doubles_ = new double[capacity];
+        longs_ = new long[capacity];
+        objects_ = new Object[capacity];
+        order_ = new int[capacity];
+        count_ = 0;
+    }
+
+    public void reset(long time) {
+        for (int i = 0; i < count_; i++) {
+            types_[order_[i]] = NONE;
+            objects_[order_[i]] = null;
+        }
+        count_ = 0;
+        time_ = time;
+    }
+
+    public long getTime() {
+        return time_;
+    }
+
+    /* Number of values put since the last reset() */
+    public int size() {
+        return count_;
+    }
+
+    /* Id of the i-th value put since the last reset() */
+    public int idAt(int i) {
+        return order_[i];
+    }
+
+    public void put(int id, Object value) {
+        if (value instanceof Double)
+            putDouble(id, ((Double)value).doubleValue());
+        else if (value instanceof Long || value instanceof Integer ||
+                 value instanceof Short || value instanceof Byte)
+            putLong(id, ((Number)value).longValue());
+        else {
+            slot(id, OBJECT);
+            objects_[id] = value;
+        }
+    }
+
+    public void putDouble(int id, double value) {
+        slot(id, DOUBLE);
+        doubles_[id] = value;
+    }
+
+    public void putLong(int id, long value) {
+        slot(id, LONG);
+        longs_[id] = value;
+    }
+
+    public byte typeOf(int id) {
+        return (id < types_.length) ? types_[id] : NONE;
+    }
+
+    public boolean isNumber(int id) {
+        byte type = typeOf(id);
+        return type == DOUBLE || type == LONG || 
+            (type == OBJECT && objects_[id] instanceof Number);
+    }
+
+    public double doubleValue(int id) {
+        switch (typeOf(id)) {
+        case DOUBLE:
+            return doubles_[id];
+        case LONG:
+            return longs_[id];
+        case OBJECT:
+            if (objects_[id] instanceof Number)
+                return ((Number)objects_[id]).doubleValue();
+        }
+        return Double.NaN;
+    }
+
+    public long longValue(int id) {
+        return (typeOf(id) == LONG) ? longs_[id] : (long)doubleValue(id);
+    }
+
+    public Object objectValue(int id) {
+        switch (typeOf(id)) {
+        case DOUBLE:
+            return doubles_[id];
+        case LONG:
+            return longs_[id];
+        }
+        return objects_[id];
+    }
+
+    private void slot(int id, byte type) {
+        if (types_.length <= id)
+            grow(id + 1);
+        if (types_[id] == NONE) {
+            if (order_.length <= count_)
+                order_ = Arrays.copyOf(order_, order_.length * 2);
+            order_[count_++] = id;
+        }
+        types_[id] = type;
+    }
+
+    private void grow(int minCapacity) {
+        int capacity = Math.max(minCapacity, types_.length * 2);
+        types_ = Arrays.copyOf(types_, capacity);
+        doubles_ = Arrays.copyOf(doubles_, capacity);
+        longs_ = Arrays.copyOf(longs_, capacity);
+        objects_ = Arrays.copyOf(objects_, capacity);
+    }
+}
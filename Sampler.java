@@ -0,0 +1,118 @@
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.log4j.Logger;
+
+
+/**
+ * Runs a sampling task at a fixed rate on its own thread.
+ *
+ * Ticks are scheduled on absolute deadlines (start + n * period), so a slow
+ * tick does not shift the ones after it. The delay between a deadline and
+ * the actual start of its tick is recorded as drift; deadlines that already
+ * passed while a tick was still running are skipped and counted as missed.
+ */
+public class Sampler implements Runnable {
+    static Logger log = Logger.getLogger(Sampler.class.getName());
+
+    static public final long MIN_PERIOD_MS = 100; // [ms]
+
+    private final long periodNs_;
+    private final Runnable task_;
+    private final Thread thread_;
+    private volatile boolean running_;
+
+    private volatile long ticks_;
+    private volatile long missedTicks_;
+    private volatile long lastDriftNs_;
+    private volatile long maxDriftNs_;
+
+    public Sampler(long periodMs, Runnable task) {
+        if (periodMs < MIN_PERIOD_MS)
+            throw new IllegalArgumentException("Sampling period must be at least " +
+                                               MIN_PERIOD_MS + " ms: " + periodMs);
+        periodNs_ = TimeUnit.MILLISECONDS.toNanos(periodMs);
+        task_ = task;
+        thread_ = new Thread(this, "sampler");
+    }
+
+    public void start() {
+        running_ = true;
+        thread_.start();
+    }
+
+    public void stop() {
+        running_ = false;
+        LockSupport.unpark(thread_);
+    }
+
+    public void join() throws InterruptedException {
+        thread_.join();
+    }
+
+    public boolean isRunning() {
+        return running_;
+    }
+
+    public long getPeriodMs() {
+        return TimeUnit.NANOSECONDS.toMillis(periodNs_);
+    }
+
+    public long getTicks() {
+        return ticks_;
+    }
+
+    public long getMissedTicks() {
+        return missedTicks_;
+    }
+
+    public double getLastDriftMs() {
+        return (double)lastDriftNs_ / 1000000;
+    }
+
+    public double getMaxDriftMs() {
+        return (double)maxDriftNs_ / 1000000;
+    }
+
+    public void run() {
+        long deadline = System.nanoTime();
+
+        while (running_) {
+            long now;
+            while (running_ && (now = System.nanoTime()) < deadline)
+                LockSupport.parkNanos(deadline - now);
+            if (!running_)
+                break;
+
+            long drift = System.nanoTime() - deadline;
+            lastDriftNs_ = drift;
+            if (maxDriftNs_ < drift)
+                maxDriftNs_ = drift;
+
+            try {
+                task_.run();
+            } catch (RuntimeException ex) {
+                log.error("Sampling task failed", ex);
+            }
+            ticks_++;
+
+            deadline += periodNs_;
+            now = System.nanoTime();
+            if (deadline <= now) {
+                long missed = (now - deadline) / periodNs_ + 1;
+                missedTicks_ += missed;
+                deadline += missed * periodNs_;
+                log.warn("Tick overran the sampling period, skipped " + missed + " tick(s)");
+            }
+        }
+
+        log.info("Sampler stopped: " + this);
+    }
+
+    public String toString() {
+        return "period " + getPeriodMs() + " ms, ticks " + ticks_ +
+            ", missed " + missedTicks_ +
+            ", drift last " + String.format("%.3f", getLastDriftMs()) +
+            " ms, max " + String.format("%.3f", getMaxDriftMs()) + " ms";
+    }
+}
@@ -0,0 +1,22 @@
+/**
+ * Decides when KafkaMonitor adds a producer, from the broker throughput of
+ * each tick. ProducerScaling owns the cooldown and termination logic and
+ * asks the policy only once out of cooldown. Implementations keep a fixed
+ * amount of state and take constant time per tick, so many of them can be
+ * evaluated side by side over recorded samples.
+ *
+ * Selected with the "policy" key of the scaling config (see
+ * ProducerScaling): kofn (KOutOfNPolicy, the default), ewma (EwmaPolicy)
+ * or pid (PidPolicy).
+ */
+public interface ScalingPolicy {
+
+    /* Takes the throughput of one tick, in bytes/s; called every tick, also in cooldown */
+    void update(double bytesInPerSec, double bytesOutPerSec);
+
+    /* Whether to add a producer now */
+    boolean shouldScale();
+
+    /* Told that a producer was added */
+    void scaled();
+}
@@ -0,0 +1,351 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+
+
+/**
+ * Replays recorded KafkaMonitor samples through ProducerScaling at full
+ * speed, with the sample timestamps as the clock, and prints when the
+ * monitor would have added producers and when it would have terminated:
+ *
+ *   java ScalingReplay <log file | log dir> <producer messagesInPerSec> [key=value[,value...] ...]
+ *
+ * The samples come from KafkaMonitor's log ("<time>, <MessagesInPerSec>,
+ * <BytesInPerSec>, <BytesOutPerSec>" lines, with or without the log4j
+ * prefix) or from a -Dkafkamon.log.dir segment log. A segment log of a
+ * run with -Dkafkamon.consumer also has the end offsets and consumer lags,
+ * which go through PartitionLag as in the monitor, so its decisions are
+ * replayed on the consumed message rates; a log file only has the
+ * broker-wide rates. The keys are those of
+ * the scaling config (see ProducerScaling), on top of the one from
+ * -Dkafkamon.scaling.config; a key with several values sweeps over them,
+ * and every combination is replayed, in parallel, one line each.
+ *
+ * The replay is open loop: the recorded throughput does not change with
+ * the decisions replayed, so it answers "when would this config have
+ * acted on this run", not how the run would have gone on.
+ */
+public class ScalingReplay {
+
+    static private final byte RATE_OTHER = 1;      // 0: not classified yet
+    static private final byte RATE_MESSAGES_IN = 2;
+    static private final byte RATE_BYTES_IN = 3;
+    static private final byte RATE_BYTES_OUT = 4;
+
+    private long[] times_;
+    private double[] messagesIn_;
+    private double[] bytesIn_;
+    private double[] bytesOut_;
+    // consumed against produced messages/s, NaN in ticks without lag
+    private double[] producedPerSec_;
+    private double[] trackedProducedPerSec_;
+    private double[] consumedPerSec_;
+    private boolean consumers_;     // some tick had consumer lag
+    private int size_;
+
+    public ScalingReplay() {
+        times_ = new long[1024];
+        messagesIn_ = new double[1024];
+        bytesIn_ = new double[1024];
+        bytesOut_ = new double[1024];
+        producedPerSec_ = new double[1024];
+        trackedProducedPerSec_ = new double[1024];
+        consumedPerSec_ = new double[1024];
+    }
+
+    public int size() {
+        return size_;
+    }
+
+    public void add(long time, double messagesIn, double bytesIn, double bytesOut) {
+        add(time, messagesIn, bytesIn, bytesOut, Double.NaN, Double.NaN, Double.NaN);
+    }
+
+    /* A tick with the message rates of PartitionLag, NaN if it had no lag */
+    public void add(long time, double messagesIn, double bytesIn, double bytesOut,
+                    double producedPerSec, double trackedProducedPerSec, double consumedPerSec) {
+        if (size_ == times_.length) {
+            times_ = Arrays.copyOf(times_, 2 * size_);
+            messagesIn_ = Arrays.copyOf(messagesIn_, 2 * size_);
+            bytesIn_ = Arrays.copyOf(bytesIn_, 2 * size_);
+            bytesOut_ = Arrays.copyOf(bytesOut_, 2 * size_);
+            producedPerSec_ = Arrays.copyOf(producedPerSec_, 2 * size_);
+            trackedProducedPerSec_ = Arrays.copyOf(trackedProducedPerSec_, 2 * size_);
+            consumedPerSec_ = Arrays.copyOf(consumedPerSec_, 2 * size_);
+        }
+        times_[size_] = time;
+        messagesIn_[size_] = messagesIn;
+        bytesIn_[size_] = bytesIn;
+        bytesOut_[size_] = bytesOut;
+        producedPerSec_[size_] = producedPerSec;
+        trackedProducedPerSec_[size_] = trackedProducedPerSec;
+        consumedPerSec_[size_] = consumedPerSec;
+        if (!Double.isNaN(consumedPerSec))
+            consumers_ = true;
+        size_++;
+    }
+
+    /* Adds the samples of a KafkaMonitor log or CSV file; other lines are skipped */
+    public void loadLog(String file) throws IOException {
+        BufferedReader in = new BufferedReader(new FileReader(file));
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                int dash = line.lastIndexOf(" - ");
+                String[] fields = line.substring((0 <= dash) ? dash + 3 : 0).split(",");
+                if (fields.length != 4)
+                    continue;
+                try {
+                    add(Long.parseLong(fields[0].trim()), Double.parseDouble(fields[1].trim()),
+                        Double.parseDouble(fields[2].trim()), Double.parseDouble(fields[3].trim()));
+                } catch (NumberFormatException ex) {
+                    continue;   // some other line with three commas
+                }
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /*
+     * Adds the ticks of a segment log that have all three broker-wide
+     * rates, with the consumed rates of PartitionLag if it has lag
+     */
+    public void loadSegments(String dir) throws IOException {
+        final MetricRegistry registry = new MetricRegistry();
+        final PartitionLag partitions = new PartitionLag(registry, null);
+        final SampleFrame lagFrame = new SampleFrame();
+        new SegmentReader(dir).scan(Long.MIN_VALUE, Long.MAX_VALUE, new SegmentReader.Visitor() {
+                private String[] names_;    // of the segment the ids below are of
+                private byte[] rates_;      // by segment id
+                private int[] ids_;         // by segment id, in registry
+
+                public void sample(SampleFrame frame, String[] names) {
+                    if (names != names_ || rates_.length < names.length) {
+                        names_ = names;
+                        rates_ = new byte[names.length];
+                        ids_ = new int[names.length];
+                    }
+                    double messagesIn = Double.NaN, bytesIn = Double.NaN, bytesOut = Double.NaN;
+                    lagFrame.reset(frame.getTime());
+                    for (int i = 0; i < frame.size(); i++) {
+                        int id = frame.idAt(i);
+                        if (rates_[id] == 0) {
+                            rates_[id] = rateOf(names[id]);
+                            ids_[id] = registry.idOf(names[id]);
+                        }
+                        if (!frame.isNumber(id))
+                            continue;
+                        double value = frame.doubleValue(id);
+                        switch (rates_[id]) {
+                        case RATE_MESSAGES_IN:
+                            messagesIn = value;
+                            break;
+                        case RATE_BYTES_IN:
+                            bytesIn = value;
+                            break;
+                        case RATE_BYTES_OUT:
+                            bytesOut = value;
+                            break;
+                        default:
+                            lagFrame.putDouble(ids_[id], value);
+                        }
+                    }
+                    partitions.update(lagFrame);
+                    if (Double.isNaN(messagesIn) || Double.isNaN(bytesIn) || Double.isNaN(bytesOut))
+                        return;
+                    if (partitions.hasLag())
+                        add(frame.getTime(), messagesIn, bytesIn, bytesOut, partitions.getProducedPerSec(),
+                            partitions.getTrackedProducedPerSec(), partitions.getConsumedPerSec());
+                    else
+                        add(frame.getTime(), messagesIn, bytesIn, bytesOut);
+                }
+            });
+    }
+
+    /*
+     * Which broker-wide rate a metric name is: only the OneMinuteRate of
+     * the BrokerTopicMetrics without a topic, whatever the key order
+     */
+    static private byte rateOf(String name) {
+        int hash = name.lastIndexOf('#');
+        if (hash < 0 || !name.substring(hash + 1).equals("OneMinuteRate"))
+            return RATE_OTHER;
+        ObjectName bean;
+        try {
+            bean = new ObjectName(name.substring(0, hash));
+        } catch (MalformedObjectNameException ex) {
+            return RATE_OTHER;  // e.g. a consumer's, prefixed with host:port/
+        }
+        if (!bean.getDomain().equals("kafka.server") || bean.getKeyPropertyList().size() != 2 ||
+            !"BrokerTopicMetrics".equals(bean.getKeyProperty("type")))
+            return RATE_OTHER;
+        String rate = bean.getKeyProperty("name");
+        return rate.equals("MessagesInPerSec") ? RATE_MESSAGES_IN :
+            rate.equals("BytesInPerSec") ? RATE_BYTES_IN :
+            rate.equals("BytesOutPerSec") ? RATE_BYTES_OUT : RATE_OTHER;
+    }
+
+    /* What one config would have done */
+    public static class Result {
+        long[] scalings = new long[8];  // times of the producer requests
+        int numScalings;
+        long terminated = -1;           // time of termination, -1 if never
+        int ticks;
+
+        void scaled(long time) {
+            if (numScalings == scalings.length)
+                scalings = Arrays.copyOf(scalings, 2 * numScalings);
+            scalings[numScalings++] = time;
+        }
+    }
+
+    /*
+     * Runs the samples through ProducerScaling the way KafkaMonitor.sample()
+     * does, until it terminates: on the consumed message rates if the
+     * samples have consumer lag (only the first producer in ticks without
+     * it), else on the broker-wide rates
+     */
+    public Result replay(int messagesInPerSec, Properties config) {
+        ProducerScaling scaling = new ProducerScaling(messagesInPerSec, config);
+        Result result = new Result();
+        for (int i = 0; i < size_; i++) {
+            long now = times_[i];
+            result.ticks++;
+            boolean scale;
+            if (!consumers_) {
+                if (scaling.checkIfTerminate(messagesIn_[i], bytesIn_[i], bytesOut_[i])) {
+                    result.terminated = now;
+                    break;
+                }
+                scale = scaling.checkIfScaleProducers(messagesIn_[i], bytesIn_[i], bytesOut_[i], now);
+            }
+            else if (!Double.isNaN(consumedPerSec_[i])) {
+                if (scaling.checkIfTerminate(producedPerSec_[i], trackedProducedPerSec_[i], consumedPerSec_[i])) {
+                    result.terminated = now;
+                    break;
+                }
+                scale = scaling.checkIfScaleProducers(producedPerSec_[i], trackedProducedPerSec_[i],
+                                                      consumedPerSec_[i], now);
+            }
+            else {
+                scale = (scaling.getLastScalingTime() == 0);
+            }
+            if (scale) {
+                scaling.scaled(now);
+                scaling.addConfirmed(messagesInPerSec);     // at once, as if acked
+                result.scaled(now);
+            }
+        }
+        return result;
+    }
+
+    /* Every combination of the values of "key=v1,v2,..." settings, on top of base */
+    static public List<Properties> sweep(Properties base, String[] settings) {
+        List<Properties> configs = new ArrayList<Properties>();
+        configs.add(base);
+        for (String setting : settings) {
+            int eq = setting.indexOf('=');
+            if (eq <= 0)
+                throw new IllegalArgumentException("Not key=value[,value...]: " + setting);
+            String key = setting.substring(0, eq).trim();
+            List<Properties> combined = new ArrayList<Properties>();
+            for (Properties config : configs) {
+                for (String value : setting.substring(eq + 1).split(",")) {
+                    Properties copy = new Properties();
+                    copy.putAll(config);
+                    copy.setProperty(key, value.trim());
+                    combined.add(copy);
+                }
+            }
+            configs = combined;
+        }
+        return configs;
+    }
+
+    /* "scaled N times (+s, ...), terminated at +s", times relative to the first sample */
+    public String describe(Result result) {
+        long start = (0 < size_) ? times_[0] : 0;
+        StringBuilder sb = new StringBuilder();
+        sb.append("scaled ").append(result.numScalings).append(" times");
+        for (int i = 0; i < result.numScalings; i++)
+            sb.append((i == 0) ? " (" : ", ").append(seconds(result.scalings[i] - start));
+        if (0 < result.numScalings)
+            sb.append(')');
+        if (0 <= result.terminated)
+            sb.append(", terminated at ").append(seconds(result.terminated - start));
+        else
+            sb.append(", not terminated");
+        sb.append(" after ").append(result.ticks).append(" ticks");
+        return sb.toString();
+    }
+
+    static private String seconds(long ms) {
+        return "+" + (ms / 1000) + "s";
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.err.println("Usage: java [-Dkafkamon.scaling.config=<file>] ScalingReplay " +
+                               "[KafkaMonitor log file | segment log dir] [producer messagesInPerSec] " +
+                               "([key=value[,value...]] ...)");
+            System.exit(1);
+        }
+
+        final ScalingReplay replay = new ScalingReplay();
+        if (new File(args[0]).isDirectory())
+            replay.loadSegments(args[0]);
+        else
+            replay.loadLog(args[0]);
+        final int messagesInPerSec = Integer.parseInt(args[1]);
+        String[] settings = Arrays.copyOfRange(args, 2, args.length);
+        final List<Properties> configs = sweep(ProducerScaling.loadConfig(), settings);
+        System.err.println("Replaying " + replay.size() + " samples" +
+                           ((0 < replay.size()) ? " from " + replay.times_[0] : "") +
+                           (replay.consumers_ ? " on consumer lag" : "") +
+                           " with " + configs.size() + " configs");
+
+        // the reasoning of a single run is worth reading, that of a sweep is not
+        if (1 < configs.size())
+            Logger.getLogger(ProducerScaling.class.getName()).setLevel(Level.INFO);
+
+        long start = System.nanoTime();
+        int numThreads = Math.min(configs.size(), Runtime.getRuntime().availableProcessors());
+        ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+        List<Future<Result>> results = new ArrayList<Future<Result>>();
+        for (final Properties config : configs) {
+            results.add(executor.submit(new Callable<Result>() {
+                    public Result call() {
+                        return replay.replay(messagesInPerSec, config);
+                    }
+                }));
+        }
+        for (int i = 0; i < configs.size(); i++) {
+            // the swept keys, in the order given
+            StringBuilder sb = new StringBuilder();
+            for (String setting : settings) {
+                String key = setting.substring(0, setting.indexOf('=')).trim();
+                sb.append(key).append('=').append(configs.get(i).getProperty(key)).append(' ');
+            }
+            System.out.println(sb + replay.describe(results.get(i).get()));
+        }
+        executor.shutdown();
+        long elapsedNs = System.nanoTime() - start;
+        System.err.println(configs.size() + " replays in " + String.format("%.1f", elapsedNs / 1e6) + " ms");
+    }
+}
@@ -0,0 +1,212 @@
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+import org.apache.log4j.Logger;
+
+
+/**
+ * Append-only binary log of samples, split into segment files
+ * "metrics-<start ms>.seg" that are rotated by size and by age. Every
+ * segment can be decoded on its own (see SegmentReader):
+ *
+ *   segment = MAGIC version:int32 startTime:int64 record*
+ *   record  = NAME   id:varint length:varint utf8
+ *           | SAMPLE timeDelta:zigzag count:varint value*
+ *   value   = (id << 1 | 0):varint delta:zigzag          long, minus previous long of id
+ *           | (id << 1 | 1):varint shift:byte xor:varint  double, bits XOR previous bits
+ *                                                         of id, shifted right by shift
+ *                                                         (64: unchanged, no xor)
+ *
+ * A NAME record precedes the first value of an id in the segment, so the
+ * header is the set of NAME records and names are never repeated per
+ * sample. Time deltas are relative to the previous SAMPLE (the segment
+ * start for the first one); previous values start at zero in each segment.
+ *
+ * Only numeric values are logged. Not thread-safe: append() is called from
+ * the sampler thread.
+ */
+public class SegmentLog {
+    static Logger log = Logger.getLogger(SegmentLog.class.getName());
+
+    static public final int MAGIC = 0x4b4d534c;    // "KMSL"
+    static public final int VERSION = 1;
+    static public final int HEADER_SIZE = 16;
+    static public final byte NAME = 1;
+    static public final byte SAMPLE = 2;
+    static public final String PREFIX = "metrics-";
+    static public final String SUFFIX = ".seg";
+    static private final Charset CHARSET = Charset.forName("UTF-8");
+
+    private final File dir_;
+    private final MetricRegistry registry_;
+    private final long maxBytes_;
+    private final long maxAgeMs_;
+
+    private FileChannel channel_;
+    private long segmentStart_;
+    private long segmentBytes_;
+    private long lastTime_;
+    // per metric id, reset with every segment
+    private boolean[] named_;
+    private long[] prevLongs_;
+    private long[] prevBits_;
+    private ByteBuffer buf_;    // one tick, written with a single write()
+    private long segments_;
+
+    public SegmentLog(String dir, MetricRegistry registry, long maxBytes, long maxAgeMs)
+        throws IOException {
+        if (maxBytes < HEADER_SIZE || Integer.MAX_VALUE < maxBytes)
+            throw new IllegalArgumentException("Segment size out of range: " + maxBytes);
+        dir_ = new File(dir);
+        if (!dir_.isDirectory() && !dir_.mkdirs())
+            throw new IOException("Cannot create log directory " + dir);
+        registry_ = registry;
+        maxBytes_ = maxBytes;
+        maxAgeMs_ = maxAgeMs;
+        named_ = new boolean[64];
+        prevLongs_ = new long[64];
+        prevBits_ = new long[64];
+        buf_ = ByteBuffer.allocate(4096);
+    }
+
+    public File getDir() {
+        return dir_;
+    }
+
+    /* Number of segments opened so far */
+    public long getSegments() {
+        return segments_;
+    }
+
+    /* Appends the numeric values of frame as one SAMPLE record */
+    public void append(SampleFrame frame) throws IOException {
+        long time = frame.getTime();
+        if (channel_ == null || maxBytes_ <= segmentBytes_ || maxAgeMs_ <= time - segmentStart_)
+            rotate(time);
+
+        int count = 0;
+        for (int i = 0; i < frame.size(); i++) {
+            int id = frame.idAt(i);
+            if (frame.isNumber(id)) {
+                ensureId(id);
+                if (!named_[id])
+                    putName(id);
+                count++;
+            }
+        }
+        if (count == 0)
+            return;
+
+        ensureRoom(2 + 10 + 5);
+        buf_.put(SAMPLE);
+        putVarLong(zigzag(time - lastTime_));
+        putVarLong(count);
+        lastTime_ = time;
+        for (int i = 0; i < frame.size(); i++) {
+            int id = frame.idAt(i);
+            if (!frame.isNumber(id))
+                continue;
+            ensureRoom(5 + 1 + 10);
+            if (frame.typeOf(id) == SampleFrame.LONG) {
+                long value = frame.longValue(id);
+                putVarLong((long)id << 1);
+                putVarLong(zigzag(value - prevLongs_[id]));
+                prevLongs_[id] = value;
+            }
+            else {
+                long bits = Double.doubleToLongBits(frame.doubleValue(id));
+                long xor = bits ^ prevBits_[id];
+                int shift = Long.numberOfTrailingZeros(xor);
+                putVarLong((long)id << 1 | 1);
+                buf_.put((byte)shift);
+                if (shift < 64)
+                    putVarLong(xor >>> shift);
+                prevBits_[id] = bits;
+            }
+        }
+        flush();
+    }
+
+    public void close() throws IOException {
+        if (channel_ != null) {
+            channel_.close();
+            channel_ = null;
+        }
+    }
+
+    private void rotate(long time) throws IOException {
+        close();
+        // the file name is the start time, bumped if a segment started in the same ms
+        long start = time;
+        File file;
+        while ((file = new File(dir_, PREFIX + String.format("%013d", start) + SUFFIX)).exists())
+            start++;
+        channel_ = new FileOutputStream(file).getChannel();
+        segmentStart_ = time;
+        segmentBytes_ = 0;
+        lastTime_ = time;
+        Arrays.fill(named_, false);
+        Arrays.fill(prevLongs_, 0);
+        Arrays.fill(prevBits_, 0);
+        segments_++;
+
+        buf_.clear();
+        buf_.putInt(MAGIC);
+        buf_.putInt(VERSION);
+        buf_.putLong(time);
+        flush();
+        log.info("Opened log segment " + file);
+    }
+
+    private void putName(int id) {
+        byte[] name = registry_.nameOf(id).getBytes(CHARSET);
+        ensureRoom(1 + 5 + 5 + name.length);
+        buf_.put(NAME);
+        putVarLong(id);
+        putVarLong(name.length);
+        buf_.put(name);
+        named_[id] = true;
+    }
+
+    private void flush() throws IOException {
+        buf_.flip();
+        while (buf_.hasRemaining())
+            segmentBytes_ += channel_.write(buf_);
+        buf_.clear();
+    }
+
+    private void ensureId(int id) {
+        if (id < named_.length)
+            return;
+        int capacity = Math.max(id + 1, named_.length * 2);
+        named_ = Arrays.copyOf(named_, capacity);
+        prevLongs_ = Arrays.copyOf(prevLongs_, capacity);
+        prevBits_ = Arrays.copyOf(prevBits_, capacity);
+    }
+
+    private void ensureRoom(int bytes) {
+        if (bytes <= buf_.remaining())
+            return;
+        ByteBuffer larger = ByteBuffer.allocate(Math.max(buf_.capacity() * 2, buf_.position() + bytes));
+        buf_.flip();
+        larger.put(buf_);
+        buf_ = larger;
+    }
+
+    private void putVarLong(long value) {
+        while ((value & ~0x7fL) != 0) {
+            buf_.put((byte)((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        buf_.put((byte)value);
+    }
+
+    static private long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+}
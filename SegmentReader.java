@@ -0,0 +1,255 @@
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+
+/**
+ * Memory-mapped reader of the segments written by SegmentLog, and a CLI
+ * exporting a time range to CSV:
+ *
+ *   java SegmentReader <log dir> [from ms] [to ms] [name substring]
+ *
+ * Segments entirely outside the range are skipped by their file name.
+ * Decoding does not allocate per value: each SAMPLE record is decoded into
+ * one reused SampleFrame keyed by the ids of the segment.
+ */
+public class SegmentReader {
+
+    static private final Charset CHARSET = Charset.forName("UTF-8");
+
+    public interface Visitor {
+        /*
+         * Called once per SAMPLE record with from <= time <= to. names maps
+         * the ids of the segment to metric names; both are only valid
+         * during the call.
+         */
+        void sample(SampleFrame frame, String[] names);
+    }
+
+    private final File[] segments_;
+    private final long[] starts_;
+    private long values_;
+    private long bytes_;
+
+    public SegmentReader(String dir) throws IOException {
+        File[] files = new File(dir).listFiles();
+        if (files == null)
+            throw new IOException("Not a directory: " + dir);
+        List<File> segments = new ArrayList<File>();
+        for (File file : files) {
+            String name = file.getName();
+            if (name.startsWith(SegmentLog.PREFIX) && name.endsWith(SegmentLog.SUFFIX))
+                segments.add(file);
+        }
+        segments_ = segments.toArray(new File[segments.size()]);
+        Arrays.sort(segments_);    // zero-padded start times sort by name
+        starts_ = new long[segments_.length];
+        for (int i = 0; i < segments_.length; i++) {
+            String name = segments_[i].getName();
+            starts_[i] = Long.parseLong(name.substring(SegmentLog.PREFIX.length(),
+                                                       name.length() - SegmentLog.SUFFIX.length()));
+        }
+    }
+
+    public int getNumSegments() {
+        return segments_.length;
+    }
+
+    /* Values decoded and bytes mapped so far */
+    public long getValues() {
+        return values_;
+    }
+
+    public long getBytes() {
+        return bytes_;
+    }
+
+    /* Passes every sample with from <= time <= to to visitor, in segment order */
+    public void scan(long from, long to, Visitor visitor) throws IOException {
+        SampleFrame frame = new SampleFrame();
+        for (int i = 0; i < segments_.length; i++) {
+            // a segment ends where the next one starts
+            if (to < starts_[i] || (i + 1 < segments_.length && starts_[i + 1] <= from))
+                continue;
+            scan(segments_[i], from, to, frame, visitor);
+        }
+    }
+
+    private void scan(File file, long from, long to, SampleFrame frame, Visitor visitor)
+        throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            MappedByteBuffer buf = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+            bytes_ += buf.limit();
+            if (buf.limit() < SegmentLog.HEADER_SIZE || buf.getInt() != SegmentLog.MAGIC)
+                throw new IOException("Not a segment: " + file);
+            int version = buf.getInt();
+            if (version != SegmentLog.VERSION)
+                throw new IOException("Unsupported segment version " + version + ": " + file);
+            long time = buf.getLong();
+
+            String[] names = new String[64];
+            long[] prevLongs = new long[64];
+            long[] prevBits = new long[64];
+            try {
+                while (buf.hasRemaining()) {
+                    byte type = buf.get();
+                    if (type == SegmentLog.NAME) {
+                        int id = (int)getVarLong(buf);
+                        byte[] name = new byte[(int)getVarLong(buf)];
+                        buf.get(name);
+                        if (names.length <= id) {
+                            int capacity = Math.max(id + 1, names.length * 2);
+                            names = Arrays.copyOf(names, capacity);
+                            prevLongs = Arrays.copyOf(prevLongs, capacity);
+                            prevBits = Arrays.copyOf(prevBits, capacity);
+                        }
+                        names[id] = new String(name, CHARSET);
+                        continue;
+                    }
+                    if (type != SegmentLog.SAMPLE)
+                        throw new IOException("Corrupt segment at " + (buf.position() - 1) + ": " + file);
+
+                    time += unzigzag(getVarLong(buf));
+                    int count = (int)getVarLong(buf);
+                    frame.reset(time);
+                    for (int j = 0; j < count; j++) {
+                        long key = getVarLong(buf);
+                        int id = (int)(key >>> 1);
+                        if ((key & 1) == 0) {
+                            prevLongs[id] += unzigzag(getVarLong(buf));
+                            frame.putLong(id, prevLongs[id]);
+                        }
+                        else {
+                            int shift = buf.get();
+                            if (shift < 64)
+                                prevBits[id] ^= getVarLong(buf) << shift;
+                            frame.putDouble(id, Double.longBitsToDouble(prevBits[id]));
+                        }
+                    }
+                    values_ += count;
+                    if (from <= time && time <= to)
+                        visitor.sample(frame, names);
+                }
+            } catch (BufferUnderflowException ex) {
+                // the writer died in the middle of a record
+                System.err.println("Truncated record at the end of " + file);
+            }
+        } finally {
+            raf.close();
+        }
+    }
+
+    static private long getVarLong(ByteBuffer buf) {
+        long value = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = buf.get();
+            value |= (long)(b & 0x7f) << shift;
+            if (b >= 0)
+                return value;
+        }
+    }
+
+    static private long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    /*
+     * Writes the samples of [from, to] as CSV in the get_range format: a
+     * "timestamp, name, ..." header over every metric seen in the range,
+     * then one line per timestamp, samples of several targets taken at the
+     * same time merged into one line.
+     */
+    static private void export(SegmentReader reader, long from, long to, final String filter,
+                               final PrintStream out) throws IOException {
+        // first pass: the columns
+        final TreeSet<String> names = new TreeSet<String>();
+        reader.scan(from, to, new Visitor() {
+                public void sample(SampleFrame frame, String[] ids) {
+                    for (int i = 0; i < frame.size(); i++) {
+                        String name = ids[frame.idAt(i)];
+                        if (filter == null || name.contains(filter))
+                            names.add(name);
+                    }
+                }
+            });
+        final Map<String, Integer> columns = new HashMap<String, Integer>();
+        StringBuilder header = new StringBuilder("timestamp");
+        for (String name : names) {
+            columns.put(name, columns.size());
+            header.append(", ").append(name);
+        }
+        out.println(header);
+
+        // second pass: the rows, keyed by column
+        final SampleFrame row = new SampleFrame(Math.max(1, columns.size()));
+        final StringBuilder sb = new StringBuilder();
+        row.reset(Long.MIN_VALUE);
+        reader.scan(from, to, new Visitor() {
+                public void sample(SampleFrame frame, String[] ids) {
+                    if (frame.getTime() != row.getTime()) {
+                        printRow(row, columns.size(), sb, out);
+                        row.reset(frame.getTime());
+                    }
+                    for (int i = 0; i < frame.size(); i++) {
+                        int id = frame.idAt(i);
+                        Integer column = columns.get(ids[id]);
+                        if (column == null)
+                            continue;
+                        if (frame.typeOf(id) == SampleFrame.LONG)
+                            row.putLong(column, frame.longValue(id));
+                        else
+                            row.putDouble(column, frame.doubleValue(id));
+                    }
+                }
+            });
+        printRow(row, columns.size(), sb, out);
+    }
+
+    static private void printRow(SampleFrame row, int numColumns, StringBuilder sb, PrintStream out) {
+        if (row.size() == 0)
+            return;
+        sb.setLength(0);
+        sb.append(row.getTime());
+        for (int column = 0; column < numColumns; column++) {
+            sb.append(", ");
+            if (row.typeOf(column) != SampleFrame.NONE)
+                SampleFormatter.appendValue(sb, row, column);
+        }
+        out.println(sb);
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("Usage: java SegmentReader [log dir] ([from ms] [to ms] [name substring])");
+            System.exit(1);
+        }
+        long from = (2 <= args.length) ? Long.parseLong(args[1]) : Long.MIN_VALUE;
+        long to = (3 <= args.length) ? Long.parseLong(args[2]) : Long.MAX_VALUE;
+        String filter = (4 <= args.length) ? args[3] : null;
+
+        SegmentReader reader = new SegmentReader(args[0]);
+        PrintStream out = new PrintStream(new BufferedOutputStream(System.out, 1 << 16), false);
+        long start = System.nanoTime();
+        export(reader, from, to, filter, out);
+        out.flush();
+        long elapsedNs = System.nanoTime() - start;
+        System.err.println(reader.getNumSegments() + " segments, " +
+                           reader.getValues() + " values decoded from " +
+                           reader.getBytes() + " bytes in " +
+                           String.format("%.1f", elapsedNs / 1e6) + " ms (two passes)");
+    }
+}
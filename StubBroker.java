@@ -0,0 +1,268 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.rmi.registry.LocateRegistry;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanServer;
+import javax.management.MBeanServerFactory;
+import javax.management.ObjectName;
+import javax.management.remote.JMXConnectorServer;
+import javax.management.remote.JMXConnectorServerFactory;
+import javax.management.remote.JMXServiceURL;
+
+import org.apache.log4j.Logger;
+
+
+/**
+ * Stand-in for a Kafka broker and one consumer of it, so that
+ * KafkaMonitor's partition and lag tracking and its producer scaling can
+ * be tried without a Kafka cluster:
+ *
+ *   java StubBroker <jmx port> [producer port] [topics] [partitions per topic] [consumer msgs/s]
+ *
+ * An in-process MBeanServer, served at host:<jmx port> (the RMI registry
+ * and connector of -Dkafkamon.broker and -Dkafkamon.consumer), has the
+ * broker's BrokerTopicMetrics (broker-wide and per topic) and
+ * LogEndOffset of every partition, and the consumer's
+ * consumer-fetch-manager-metrics (records-lag per partition and
+ * records-lag-max). The producer port speaks ProducerChannel's protocol:
+ * every "<messagesInPerSec>" adds that much to the produced rate, spread
+ * evenly over the partitions, and is confirmed at once. The consumer
+ * reads up to its rate, so the lag grows once more is produced.
+ */
+public class StubBroker {
+    static Logger log = Logger.getLogger(StubBroker.class.getName());
+
+    static private final int MESSAGE_BYTES = 100;
+    static private final String CLIENT_ID = "stub-consumer";
+
+    private final int jmxPort_;
+    private final int producerPort_;
+    private final String[] topics_;
+    private final int partitionsPerTopic_;
+    private final double consumerPerSec_;   // of all partitions
+    private final double[] endOffsets_;
+    private final double[] consumed_;
+    private double producedPerSec_;         // of all partitions
+    private double consumedPerSec_;         // in the last advance()
+    private long lastNs_;
+
+    public StubBroker(int jmxPort, int producerPort, String[] topics, int partitionsPerTopic,
+                      double consumerPerSec) {
+        jmxPort_ = jmxPort;
+        producerPort_ = producerPort;
+        topics_ = topics;
+        partitionsPerTopic_ = partitionsPerTopic;
+        consumerPerSec_ = consumerPerSec;
+        endOffsets_ = new double[topics.length * partitionsPerTopic];
+        consumed_ = new double[endOffsets_.length];
+        lastNs_ = System.nanoTime();
+    }
+
+    /* Moves the logs and the consumer on to now */
+    private synchronized void advance() {
+        long now = System.nanoTime();
+        double seconds = (now - lastNs_) / 1e9;
+        lastNs_ = now;
+        if (seconds <= 0)
+            return;
+        double produced = producedPerSec_ / endOffsets_.length * seconds;
+        double capacity = consumerPerSec_ / endOffsets_.length * seconds;
+        double consumed = 0;
+        for (int i = 0; i < endOffsets_.length; i++) {
+            endOffsets_[i] += produced;
+            double read = Math.min(capacity, endOffsets_[i] - consumed_[i]);
+            consumed_[i] += read;
+            consumed += read;
+        }
+        consumedPerSec_ = consumed / seconds;
+    }
+
+    private synchronized void addProduced(int messagesInPerSec) {
+        advance();
+        producedPerSec_ += messagesInPerSec;
+    }
+
+    /* A bean of one or more numeric attributes, read through value() */
+    private abstract class Gauge implements DynamicMBean {
+        private final String[] attributes_;
+        private final MBeanInfo info_;
+
+        Gauge(String... attributes) {
+            attributes_ = attributes;
+            MBeanAttributeInfo[] infos = new MBeanAttributeInfo[attributes.length];
+            for (int i = 0; i < attributes.length; i++)
+                infos[i] = new MBeanAttributeInfo(attributes[i], "double", "", true, false, false);
+            info_ = new MBeanInfo(getClass().getName(), "stub gauge", infos, null, null, null);
+        }
+
+        abstract double value(String attribute);
+
+        public Object getAttribute(String attribute) throws AttributeNotFoundException {
+            for (String name : attributes_) {
+                if (name.equals(attribute)) {
+                    synchronized (StubBroker.this) {
+                        advance();
+                        return value(attribute);
+                    }
+                }
+            }
+            throw new AttributeNotFoundException(attribute);
+        }
+
+        public AttributeList getAttributes(String[] attributes) {
+            AttributeList list = new AttributeList(attributes.length);
+            for (String attribute : attributes) {
+                try {
+                    list.add(new Attribute(attribute, getAttribute(attribute)));
+                } catch (AttributeNotFoundException ex) {
+                    // left out, as getAttributes() does for unreadable attributes
+                }
+            }
+            return list;
+        }
+
+        public void setAttribute(Attribute attribute) {
+            throw new UnsupportedOperationException();
+        }
+
+        public AttributeList setAttributes(AttributeList attributes) {
+            return new AttributeList();
+        }
+
+        public Object invoke(String actionName, Object[] params, String[] signature) {
+            throw new UnsupportedOperationException(actionName);
+        }
+
+        public MBeanInfo getMBeanInfo() {
+            return info_;
+        }
+    }
+
+    /* BrokerTopicMetrics rates of the given share of the partitions */
+    private void addRates(MBeanServer server, String suffix, final double share) throws JMException {
+        server.registerMBean(new Gauge("OneMinuteRate") {
+                double value(String attribute) {
+                    return producedPerSec_ * share;
+                }
+            }, new ObjectName("kafka.server:type=BrokerTopicMetrics,name=MessagesInPerSec" + suffix));
+        server.registerMBean(new Gauge("OneMinuteRate") {
+                double value(String attribute) {
+                    return producedPerSec_ * share * MESSAGE_BYTES;
+                }
+            }, new ObjectName("kafka.server:type=BrokerTopicMetrics,name=BytesInPerSec" + suffix));
+        server.registerMBean(new Gauge("OneMinuteRate") {
+                double value(String attribute) {
+                    return consumedPerSec_ * share * MESSAGE_BYTES;
+                }
+            }, new ObjectName("kafka.server:type=BrokerTopicMetrics,name=BytesOutPerSec" + suffix));
+    }
+
+    private void registerBeans(MBeanServer server) throws JMException {
+        addRates(server, "", 1.0);
+        for (int t = 0; t < topics_.length; t++) {
+            String topic = topics_[t];
+            addRates(server, ",topic=" + topic, 1.0 / topics_.length);
+            for (int p = 0; p < partitionsPerTopic_; p++) {
+                final int i = t * partitionsPerTopic_ + p;
+                String keys = ",topic=" + topic + ",partition=" + p;
+                server.registerMBean(new Gauge("Value") {
+                        double value(String attribute) {
+                            return Math.floor(endOffsets_[i]);
+                        }
+                    }, new ObjectName("kafka.log:type=Log,name=LogEndOffset" + keys));
+                server.registerMBean(new Gauge("records-lag", "records-lag-max") {
+                        double value(String attribute) {
+                            return Math.floor(endOffsets_[i]) - Math.floor(consumed_[i]);
+                        }
+                    }, new ObjectName("kafka.consumer:type=consumer-fetch-manager-metrics,client-id=" +
+                                      CLIENT_ID + keys));
+            }
+        }
+        server.registerMBean(new Gauge("records-lag-max") {
+                double value(String attribute) {
+                    double max = 0;
+                    for (int i = 0; i < endOffsets_.length; i++)
+                        max = Math.max(max, Math.floor(endOffsets_[i]) - Math.floor(consumed_[i]));
+                    return max;
+                }
+            }, new ObjectName("kafka.consumer:type=consumer-fetch-manager-metrics,client-id=" + CLIENT_ID));
+    }
+
+    /* Serves JMX, and producer requests until the process is killed */
+    public void serve() throws IOException, JMException {
+        MBeanServer server = MBeanServerFactory.newMBeanServer();
+        registerBeans(server);
+        LocateRegistry.createRegistry(jmxPort_);
+        JMXConnectorServer connector = JMXConnectorServerFactory.newJMXConnectorServer(
+            new JMXServiceURL("service:jmx:rmi:///jndi/rmi://127.0.0.1:" + jmxPort_ + "/jmxrmi"), null, server);
+        connector.start();
+        log.info("Stub broker on JMX port " + jmxPort_ + ": " + topics_.length + " topics of " +
+                 partitionsPerTopic_ + " partitions, consumer " + consumerPerSec_ + " msgs/s" +
+                 ((0 < producerPort_) ? ", producer port " + producerPort_ : ""));
+        if (producerPort_ <= 0) {
+            try {
+                Thread.sleep(Long.MAX_VALUE);
+            } catch (InterruptedException ex) {
+                return;
+            }
+        }
+        ServerSocket producers = new ServerSocket(producerPort_);
+        while (true) {
+            final Socket sock = producers.accept();
+            Thread thread = new Thread(new Runnable() {
+                    public void run() {
+                        handle(sock);
+                    }
+                }, "stub-broker-" + sock.getPort());
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    private void handle(Socket sock) {
+        try {
+            BufferedReader in = new BufferedReader(new InputStreamReader(sock.getInputStream(), "UTF-8"));
+            OutputStream out = sock.getOutputStream();
+            String line;
+            while ((line = in.readLine()) != null) {
+                int messagesInPerSec;
+                try {
+                    messagesInPerSec = Integer.parseInt(line.trim());
+                } catch (NumberFormatException ex) {
+                    out.write(("error not a number: " + line + "\n").getBytes("UTF-8"));
+                    continue;
+                }
+                addProduced(messagesInPerSec);
+                log.info("Producing " + producedPerSec_ + " msgs/s, consumer at most " + consumerPerSec_);
+                out.write(("ok " + messagesInPerSec + "\n").getBytes("UTF-8"));
+            }
+            sock.close();
+        } catch (IOException ex) {
+            log.error(ex);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("Usage: java StubBroker [jmx port] ([producer port] [topics(csv)] " +
+                               "[partitions per topic] [consumer msgs/s])");
+            System.exit(1);
+        }
+        int producerPort = (2 <= args.length) ? Integer.parseInt(args[1]) : 0;
+        String[] topics = (3 <= args.length) ? args[2].split(",") : new String[] { "test" };
+        int partitions = (4 <= args.length) ? Integer.parseInt(args[3]) : 4;
+        double consumerPerSec = (5 <= args.length) ? Double.parseDouble(args[4]) : 50000;
+        new StubBroker(Integer.parseInt(args[0]), producerPort, topics, partitions, consumerPerSec).serve();
+    }
+}
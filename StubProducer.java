@@ -0,0 +1,102 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+
+/**
+ * Stand-in for a producer host, speaking ProducerChannel's protocol
+ * without producing anything: every "<messagesInPerSec>" request is
+ * answered after a delay, so that KafkaMonitor's producer scaling can be
+ * tried without a Kafka cluster.
+ *
+ *   java StubProducer <port> [answer delay ms] [ok | error | silent]
+ *
+ * ok (default) confirms every request, error refuses it, silent never
+ * answers (a producer that does not send acks, or a hung one).
+ */
+public class StubProducer {
+    static Logger log = Logger.getLogger(StubProducer.class.getName());
+
+    private final int port_;
+    private final long delayMs_;
+    private final String mode_;
+    private final AtomicLong messagesInPerSec_;     // confirmed so far
+
+    public StubProducer(int port, long delayMs, String mode) {
+        if (!mode.equals("ok") && !mode.equals("error") && !mode.equals("silent"))
+            throw new IllegalArgumentException("Unknown mode: " + mode);
+        port_ = port;
+        delayMs_ = delayMs;
+        mode_ = mode;
+        messagesInPerSec_ = new AtomicLong();
+    }
+
+    /* Serves connections until the process is killed, one thread each */
+    public void serve() throws IOException {
+        ServerSocket server = new ServerSocket(port_);
+        log.info("Stub producer listening on port " + port_ + " (" + mode_ +
+                 ", answer delay " + delayMs_ + " ms)");
+        while (true) {
+            final Socket sock = server.accept();
+            Thread thread = new Thread(new Runnable() {
+                    public void run() {
+                        handle(sock);
+                    }
+                }, "stub-producer-" + sock.getPort());
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    private void handle(Socket sock) {
+        log.info("Monitor connected from " + sock.getRemoteSocketAddress());
+        try {
+            BufferedReader in = new BufferedReader(new InputStreamReader(sock.getInputStream(), "UTF-8"));
+            OutputStream out = sock.getOutputStream();
+            String line;
+            while ((line = in.readLine()) != null) {
+                int messagesInPerSec;
+                try {
+                    messagesInPerSec = Integer.parseInt(line.trim());
+                } catch (NumberFormatException ex) {
+                    out.write(("error not a number: " + line + "\n").getBytes("UTF-8"));
+                    continue;
+                }
+                log.info("Asked for " + messagesInPerSec + " more messagesInPerSec");
+                if (mode_.equals("silent"))
+                    continue;
+                try {
+                    Thread.sleep(delayMs_);
+                } catch (InterruptedException ex) {
+                    break;
+                }
+                String answer;
+                if (mode_.equals("ok"))
+                    answer = "ok " + messagesInPerSec_.addAndGet(messagesInPerSec);
+                else
+                    answer = "error stub refuses";
+                out.write((answer + "\n").getBytes("UTF-8"));
+            }
+            sock.close();
+        } catch (IOException ex) {
+            log.error(ex);
+        }
+        log.info("Monitor disconnected, now at " + messagesInPerSec_.get() + " messagesInPerSec");
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("Usage: java StubProducer [port] ([answer delay ms] [ok | error | silent])");
+            System.exit(1);
+        }
+        long delayMs = (2 <= args.length) ? Long.parseLong(args[1]) : 0;
+        String mode = (3 <= args.length) ? args[2] : "ok";
+        new StubProducer(Integer.parseInt(args[0]), delayMs, mode).serve();
+    }
+}
@@ -0,0 +1,397 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import org.apache.log4j.Logger;
+
+
+/**
+ * One monitored JVM, local or remote: its JmxClient, the prepared bean
+ * queries and the frame its values are read into on every tick. The
+ * connection itself is looked after by a ConnectionManager.
+ *
+ * A tick is read in three steps: beginTick(), which decides which beans
+ * are due, the network reads (call(), or each BeanRead on its own when a
+ * tick is fanned out per bean), which may run on pool threads, and
+ * copyValues(), which fills the frame in bean order on the sampling
+ * thread.
+ *
+ * A beans file line may be read less often than every tick, with
+ * "interval=<ms>", or adaptively with "adaptive[=<max ms>]": the interval
+ * doubles after every read that found the values within a stable change
+ * of the previous ones, up to the max (default 8 times the interval), and
+ * drops back to the line's interval as soon as they move more. In between
+ * reads a line's last values are repeated, without derived series. Lines
+ * of the same bean that are due in the same tick are read with one call.
+ */
+public class Target implements Callable<Void> {
+    static Logger log = Logger.getLogger(Target.class.getName());
+
+    static private final String NOTIFY = "notify";
+    static private final String INTERVAL = "interval";
+    static private final String ADAPTIVE = "adaptive";
+    static private final int ADAPTIVE_MAX_FACTOR = 8;
+
+    /* The read of one bean in the current tick */
+    public class BeanRead implements Callable<Void> {
+        private int handle_;
+        private DerivedMetrics.Spec spec_;  // null: nothing derived
+        private LatencyHistogram latency_;
+        private volatile boolean ok_;       // the last read succeeded
+        private volatile boolean fresh_;    // and was in this tick
+        private volatile long elapsedNs_;
+        // schedule, in ticks
+        private long intervalMs_;           // of the line, 0: the monitor's
+        private long maxIntervalMs_;        // adaptive: 0 for the default, else -1
+        private int minTicks_;
+        private int maxTicks_;
+        private int ticks_;                 // current interval
+        private long nextTick_;
+        private boolean due_;
+        private double[] prevValues_;       // of the last read, for adaptive
+        private int numPrevValues_;
+        // later reads of the same bean; in a tick where several are due,
+        // the first one (the leader) reads them all with one call
+        private BeanRead[] siblings_;
+        private BeanRead leader_;
+        private BeanRead[] batch_;          // due siblings, if leader
+        private int[] batchHandles_;
+        private int batchSize_;
+
+        BeanRead(int handle, DerivedMetrics.Spec spec, String[] beanAttr) {
+            handle_ = handle;
+            spec_ = spec;
+            latency_ = client_.getStats().histogram("bean " + displayName_ + " " + getBean());
+            intervalMs_ = intervalOf(beanAttr, 0);
+            String adaptive = optionOf(beanAttr, ADAPTIVE);
+            maxIntervalMs_ = (adaptive == null) ? -1 : parseMs(adaptive, beanAttr);
+            minTicks_ = 1;
+            maxTicks_ = 1;
+            ticks_ = 1;
+            prevValues_ = new double[0];
+            siblings_ = new BeanRead[0];
+        }
+
+        public Target getTarget() {
+            return Target.this;
+        }
+
+        public String getBean() {
+            return client_.getBean(handle_);
+        }
+
+        /* Duration of the last read, or 0 if it was skipped */
+        public long getElapsedNs() {
+            return elapsedNs_;
+        }
+
+        public Void call() {
+            // the leader sets this read's state, maybe on another thread
+            if (leader_ != null)
+                return null;
+            if (!isUp()) {
+                ok_ = false;
+                for (int i = 0; i < batchSize_; i++)
+                    batch_[i].ok_ = false;
+                return null;
+            }
+            if (!due_) {
+                // the values of the last read stand in for this tick
+                callsSaved_.addAndGet(client_.getCallsPerFetch(handle_));
+                return null;
+            }
+
+            boolean ok = false;
+            long start = System.nanoTime();
+            try {
+                if (batchSize_ == 0)
+                    client_.fetch(handle_);
+                else
+                    client_.fetch(batchHandles_, batchSize_ + 1);
+                ok = true;
+            } catch (IOException ex) {
+                ioErrors_.incrementAndGet();
+                manager_.reportFailure(client_, ex.toString());
+            } catch (JMException ex) {
+                jmxErrors_.incrementAndGet();
+                log.error(client_.getTargetName() + ": " + ex);
+            }
+            long elapsedNs = System.nanoTime() - start;
+            if (ok)
+                latency_.record(elapsedNs);
+            for (int i = 0; i < batchSize_; i++)
+                batch_[i].read(ok, elapsedNs);
+            read(ok, elapsedNs);
+            return null;
+        }
+
+        private void read(boolean ok, long elapsedNs) {
+            elapsedNs_ = elapsedNs;
+            ok_ = ok;
+            fresh_ = ok;
+        }
+
+        /*
+         * After a fresh read put its values into the frame between from
+         * and to: sets the tick of the next read, adapting the interval
+         */
+        private void reschedule(SampleFrame frame, int from, int to) {
+            if (minTicks_ < maxTicks_) {
+                if (isStable(frame, from, to))
+                    ticks_ = Math.min(2 * ticks_, maxTicks_);
+                else
+                    ticks_ = minTicks_;
+            }
+            nextTick_ = tick_ + ticks_;
+        }
+
+        /* Whether no value moved by more than stableChange_ since the last read */
+        private boolean isStable(SampleFrame frame, int from, int to) {
+            boolean stable = (numPrevValues_ == to - from);
+            if (prevValues_.length < to - from)
+                prevValues_ = new double[to - from];
+            for (int i = from; i < to; i++) {
+                int id = frame.idAt(i);
+                double value = frame.isNumber(id) ? frame.doubleValue(id) : 0;
+                double prev = prevValues_[i - from];
+                if (stable && value != prev &&
+                    stableChange_ < Math.abs(value - prev) / Math.max(Math.abs(prev), Double.MIN_NORMAL))
+                    stable = false;
+                prevValues_[i - from] = value;
+            }
+            numPrevValues_ = to - from;
+            return stable;
+        }
+    }
+
+    private String displayName_;
+    private JmxClient client_;
+    private ConnectionManager manager_;
+    private List<BeanRead> reads_;
+    private SampleFrame frame_;
+    private DerivedMetrics derived_;
+    private AtomicLong ioErrors_;
+    private AtomicLong jmxErrors_;
+    private AtomicLong callsSaved_;
+    private double stableChange_;
+    private long tick_;
+
+    /**
+     * beanAttrList holds the lines of the beans file split at '#': bean,
+     * attributes and optionally the series to derive (see DerivedMetrics)
+     * and how to read them (notify, interval, adaptive). Every line is read
+     * every tick until setSchedule() is called.
+     */
+    public Target(JmxClient client, String displayName, ConnectionManager manager, 
+                  List<String[]> beanAttrList, DerivedMetrics derived) {
+        displayName_ = displayName;
+        client_ = client;
+        manager_ = manager;
+        derived_ = derived;
+        ioErrors_ = client.getStats().counter(MonitorStats.ERRORS + "io");
+        jmxErrors_ = client.getStats().counter(MonitorStats.ERRORS + "jmx");
+        callsSaved_ = client.getStats().counter(MonitorStats.CALLS_SAVED);
+        manager_.add(client);
+        // the same bean#attributes line twice gets the same handle; read it once
+        List<Integer> handles = new ArrayList<Integer>();
+        reads_ = new ArrayList<BeanRead>();
+        for (String[] beanAttr : beanAttrList) {
+            int handle = client_.prepare(beanAttr[0], beanAttr[1], isNotify(beanAttr));
+            if (!handles.contains(handle)) {
+                handles.add(handle);
+                reads_.add(new BeanRead(handle, parseSpec(beanAttr), beanAttr));
+            }
+        }
+        for (int i = 0; i < reads_.size(); i++) {
+            BeanRead read = reads_.get(i);
+            List<BeanRead> siblings = new ArrayList<BeanRead>();
+            for (BeanRead other : reads_.subList(i + 1, reads_.size())) {
+                if (other.getBean().equals(read.getBean()))
+                    siblings.add(other);
+            }
+            read.siblings_ = siblings.toArray(new BeanRead[siblings.size()]);
+            read.batch_ = new BeanRead[siblings.size()];
+            read.batchHandles_ = new int[siblings.size() + 1];
+            read.batchHandles_[0] = read.handle_;
+        }
+        frame_ = new SampleFrame();
+    }
+
+    /**
+     * Schedules the reads on ticks of periodMs: lines without an interval
+     * every intervalMs, and adaptive lines stay put while their values
+     * change by at most stablePercent between reads.
+     */
+    public void setSchedule(long periodMs, long intervalMs, double stablePercent) {
+        stableChange_ = stablePercent / 100;
+        for (BeanRead read : reads_) {
+            long readMs = (0 < read.intervalMs_) ? read.intervalMs_ : intervalMs;
+            read.minTicks_ = (int)Math.max(1, Math.round((double)readMs / periodMs));
+            if (read.maxIntervalMs_ < 0)
+                read.maxTicks_ = read.minTicks_;
+            else if (read.maxIntervalMs_ == 0)
+                read.maxTicks_ = ADAPTIVE_MAX_FACTOR * read.minTicks_;
+            else
+                read.maxTicks_ = (int)Math.max(read.minTicks_, 
+                                               Math.round((double)read.maxIntervalMs_ / periodMs));
+            read.ticks_ = read.minTicks_;
+            if (read.minTicks_ != 1 || read.maxTicks_ != 1)
+                log.info(displayName_ + " " + read.getBean() + ": every " + (read.minTicks_ * periodMs) +
+                         ((read.minTicks_ < read.maxTicks_) ? 
+                          " to " + (read.maxTicks_ * periodMs) : "") + " ms");
+        }
+    }
+
+    /*
+     * Decides which reads are due in the tick, on the sampling thread before
+     * the reads, and batches the due reads of each bean under the first
+     */
+    public void beginTick(long tick) {
+        tick_ = tick;
+        for (BeanRead read : reads_) {
+            read.due_ = (read.nextTick_ <= tick || !read.ok_);
+            read.fresh_ = false;
+            read.elapsedNs_ = 0;
+            read.leader_ = null;
+            read.batchSize_ = 0;
+        }
+        for (BeanRead read : reads_) {
+            if (!read.due_ || read.leader_ != null)
+                continue;
+            for (BeanRead sibling : read.siblings_) {
+                if (sibling.due_ && sibling.leader_ == null) {
+                    sibling.leader_ = read;
+                    read.batch_[read.batchSize_] = sibling;
+                    read.batchHandles_[++read.batchSize_] = sibling.handle_;
+                }
+            }
+        }
+    }
+
+    /* Tick period for the lines: the shortest interval=, or intervalMs, at least Sampler's minimum */
+    static public long periodOf(List<String[]> beanAttrList, long intervalMs) {
+        long periodMs = intervalMs;
+        for (String[] beanAttr : beanAttrList)
+            periodMs = Math.min(periodMs, intervalOf(beanAttr, intervalMs));
+        return Math.max(periodMs, Sampler.MIN_PERIOD_MS);
+    }
+
+    /* The interval= of a beans file line, in ms, or defaultMs */
+    static public long intervalOf(String[] beanAttr, long defaultMs) {
+        String interval = optionOf(beanAttr, INTERVAL);
+        if (interval == null)
+            return defaultMs;
+        long ms = parseMs(interval, beanAttr);
+        return (0 < ms) ? ms : defaultMs;
+    }
+
+    /* 0 for a bad or missing value */
+    static private long parseMs(String value, String[] beanAttr) {
+        if (value.isEmpty())
+            return 0;
+        try {
+            return Math.max(0, Long.parseLong(value));
+        } catch (NumberFormatException ex) {
+            log.error(beanAttr[0] + ": not a number of ms: " + value);
+            return 0;
+        }
+    }
+
+    /* The value of the option name=value in the third field, "" for a bare name, null if absent */
+    static private String optionOf(String[] beanAttr, String name) {
+        if (beanAttr.length < 3)
+            return null;
+        for (String option : beanAttr[2].split(",")) {
+            option = option.trim();
+            if (option.equals(name))
+                return "";
+            if (option.startsWith(name + "="))
+                return option.substring(name.length() + 1);
+        }
+        return null;
+    }
+
+    static private DerivedMetrics.Spec parseSpec(String[] beanAttr) {
+        if (beanAttr.length < 3)
+            return null;
+        // notify, interval and adaptive are how the bean is read, not derived series
+        StringBuilder spec = new StringBuilder();
+        for (String option : beanAttr[2].split(",")) {
+            String name = option.trim().split("=")[0];
+            if (!name.equals(NOTIFY) && !name.equals(INTERVAL) && !name.equals(ADAPTIVE))
+                spec.append(option).append(',');
+        }
+        try {
+            return DerivedMetrics.parse(spec.toString(), beanAttr[0]);
+        } catch (IllegalArgumentException ex) {
+            log.error(beanAttr[0] + ": " + ex.getMessage());
+            return null;
+        }
+    }
+
+    /* Whether the line has the notify option (see JmxClient.prepare()) */
+    static private boolean isNotify(String[] beanAttr) {
+        return optionOf(beanAttr, NOTIFY) != null;
+    }
+
+    /* "<main class>@<pid>", used to tag metric names when there are several targets */
+    static public String tagOf(int pid, String displayName) {
+        String mainClass = displayName.trim().split("\\s+")[0];
+        return mainClass + "@" + pid;
+    }
+
+    /* -1 for a remote target */
+    public int getPid() {
+        return client_.getPid();
+    }
+
+    public String getDisplayName() {
+        return displayName_;
+    }
+
+    public JmxClient getClient() {
+        return client_;
+    }
+
+    public SampleFrame getFrame() {
+        return frame_;
+    }
+
+    public List<BeanRead> getReads() {
+        return reads_;
+    }
+
+    public boolean isUp() {
+        return manager_.isUp(client_);
+    }
+
+    /* Reads all beans of this target one after another */
+    public Void call() {
+        for (BeanRead read : reads_)
+            read.call();
+        return null;
+    }
+
+    /*
+     * Puts the values of every successful read into the frame, each fresh
+     * one followed by the series derived from it, and schedules the next
+     * reads
+     */
+    public void copyValues() {
+        for (BeanRead read : reads_) {
+            if (!read.ok_)
+                continue;
+            int from = frame_.size();
+            client_.copyValues(read.handle_, frame_);
+            if (!read.fresh_)
+                continue;
+            int to = frame_.size();
+            if (read.spec_ != null && derived_ != null)
+                derived_.derive(frame_, from, to, read.spec_);
+            read.reschedule(frame_, from, to);
+        }
+    }
+}
@@ -1,5 +1,8 @@
+import collections
 import random
 import socket
+import threading
+import time
 from datetime import datetime
 # from bokeh.layouts import row, column, gridplot
 from bokeh.models import ColumnDataSource, HoverTool, SaveTool
@@ -27,22 +30,41 @@ plt.xaxis.axis_label = "Time"
 plt.yaxis.axis_label = "Data Rate [Kbytes/sec]"
 
 
-def update_data():
-	# send request to local server
-	sock = socket.socket(socket.AF_INET, socket.SOCK_STREAM)
-	sock.connect((DATA_SERVER_HOST, DATA_SERVER_PORT))
-	sock.send('get_data\n')
-	resp = sock.recv(BUFFER_SIZE)
-	sock.close()
+# samples pushed by the data server, drained by the periodic callback
+samples = collections.deque(maxlen=10000)
+
+def subscribe():
+	# keep one subscription open, reconnecting after an error
+	while True:
+		try:
+			sock = socket.create_connection((DATA_SERVER_HOST, DATA_SERVER_PORT))
+			conn = sock.makefile('rw', BUFFER_SIZE)
+			conn.write('subscribe\n')
+			conn.flush()
+			for line in conn:
+				samples.append(line)
+		except (IOError, socket.error) as ex:
+			print("subscription failed: {}".format(ex))
+		time.sleep(1)
 
-	now = datetime.now()
-	time = [now]
-	display_time = [now.strftime("%m-%d-%Y %H:%M:%S.%f")]
-	data_rate = [float(resp.split(', ')[-1]) / 1024] # bytes/s -> Kbytes/s
+def update_data():
+	time = []
+	display_time = []
+	data_rate = []
+	while samples:
+		resp = samples.popleft()
+		sampled = datetime.fromtimestamp(int(resp.split(', ')[0]) / 1000.0)
+		time.append(sampled)
+		display_time.append(sampled.strftime("%m-%d-%Y %H:%M:%S.%f"))
+		data_rate.append(float(resp.split(', ')[-1]) / 1024) # bytes/s -> Kbytes/s
 
-	data.stream(dict(time=time, display_time=display_time, data_rate=data_rate), 10000)
-	print("time={}, data_rate={}".format(display_time, data_rate))
+	if time:
+		data.stream(dict(time=time, display_time=display_time, data_rate=data_rate), 10000)
+		print("time={}, data_rate={}".format(display_time, data_rate))
 
+subscriber = threading.Thread(target=subscribe)
+subscriber.daemon = True
+subscriber.start()
 curdoc().add_root(plt)
 curdoc().add_periodic_callback(update_data, 1000)
 curdoc().title = "Kafka Metrics Visualizer"
@@ -0,0 +1,64 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import kafkamon.bench.Workload;
+
+
+/**
+ * Formatting of the per-tick log line for a tick of the given number of
+ * metrics (one rate per bean, as in KafkaMonitor): KafkaMonitor's
+ * formatTick() over the maps of getAttributeValues(), or JmxMonitor's
+ * SampleFormatter over a SampleFrame. Each run formats the next of a few
+ * recorded ticks.
+ */
+public class FormatWorkload implements Workload {
+
+    static private final int TICKS = 16;
+
+    private final boolean frames_;
+    private final List<List<Map<String, Object>>> ticks_;
+    private final List<List<SampleFrame>> tickFrames_;
+    private final SampleFormatter formatter_;
+    private int tick_;
+
+    public FormatWorkload(int metrics, boolean frames) {
+        frames_ = frames;
+        ticks_ = new ArrayList<List<Map<String, Object>>>();
+        tickFrames_ = new ArrayList<List<SampleFrame>>();
+        formatter_ = new SampleFormatter();
+        MetricRegistry registry = new MetricRegistry();
+        Random random = new Random(42);
+        for (int t = 0; t < TICKS; t++) {
+            List<Map<String, Object>> beanVals = new ArrayList<Map<String, Object>>();
+            SampleFrame frame = new SampleFrame();
+            frame.reset(1400000000000L + 3000 * t);
+            for (int i = 0; i < metrics; i++) {
+                String key = "kafka.server:type=BrokerTopicMetrics,name=Metric" + i + "#OneMinuteRate";
+                Double value = Double.valueOf(1e6 * random.nextDouble());
+                Map<String, Object> vals = new TreeMap<String, Object>();
+                vals.put(key, value);
+                beanVals.add(vals);
+                frame.put(registry.idOf(key), value);
+            }
+            ticks_.add(beanVals);
+            tickFrames_.add(Collections.singletonList(frame));
+        }
+    }
+
+    public Object run() {
+        int t = tick_;
+        tick_ = (t + 1) % TICKS;
+        if (frames_) {
+            List<SampleFrame> frames = tickFrames_.get(t);
+            return formatter_.format(frames.get(0).getTime(), frames).toString();
+        }
+        return KafkaMonitor.formatTick(1400000000000L + 3000 * t, ticks_.get(t));
+    }
+
+    public void close() {
+    }
+}
@@ -0,0 +1,47 @@
+import kafkamon.bench.Workload;
+
+
+/**
+ * One read of a SyntheticBroker meter through a JmxClient: either
+ * getAttributeValues(), which returns a fresh map per call as KafkaMonitor
+ * uses it, or prepare()/readValues() into a reused SampleFrame as
+ * JmxMonitor uses it. The query is compiled in the constructor, so only
+ * the steady state is measured.
+ */
+public class JmxClientWorkload implements Workload {
+
+    static private final String BEAN = "kafka.server:type=BrokerTopicMetrics,name=MessagesInPerSec";
+
+    private final SyntheticBroker broker_;
+    private final JmxClient client_;
+    private final String csvAttributes_;
+    private final boolean frames_;
+    private final int handle_;
+    private final SampleFrame frame_;
+
+    public JmxClientWorkload(int attributes, int compositeWidth, boolean wildcard, boolean frames)
+        throws Exception {
+        broker_ = new SyntheticBroker();
+        broker_.addMeter(BEAN, attributes, compositeWidth);
+        client_ = new JmxClient(broker_.getUrl(), new MetricRegistry(), "");
+        client_.open();
+        csvAttributes_ = wildcard ? "*" : SyntheticBroker.attributeList(attributes, compositeWidth);
+        frames_ = frames;
+        handle_ = client_.prepare(BEAN, csvAttributes_);
+        frame_ = new SampleFrame();
+        run();
+    }
+
+    public Object run() throws Exception {
+        if (!frames_)
+            return client_.getAttributeValues(BEAN, csvAttributes_);
+        frame_.reset(0);
+        client_.readValues(handle_, frame_);
+        return frame_;
+    }
+
+    public void close() throws Exception {
+        client_.close();
+        broker_.close();
+    }
+}
@@ -0,0 +1,95 @@
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import java.util.TreeMap;
+
+import kafkamon.bench.Workload;
+
+
+/**
+ * KafkaMonitor's per-tick producer scaling decisions (ProducerScaling)
+ * over a synthetic run: producers are added every time the decision says
+ * so, broker throughput follows them with some noise until the consumer
+ * saturates, and the run starts over when it would terminate. Ticks are
+ * 3 s apart on a virtual clock. check selects what is measured per tick:
+ * "terminate", "scale" or "both", the latter as KafkaMonitor.sample()
+ * calls them. policy is the ScalingPolicy of ProducerScaling.
+ */
+public class ScalingWorkload implements Workload {
+
+    static private final int MESSAGES_IN_PER_SEC = 10000;
+    static private final int MESSAGE_BYTES = 100;
+    static private final int SATURATION_PRODUCERS = 12;
+    static private final int NOISE_SAMPLES = 4096;
+    static private final String MESSAGES_IN = "kafka.server:type=BrokerTopicMetrics,name=MessagesInPerSec#OneMinuteRate";
+    static private final String BYTES_IN = "kafka.server:name=BytesInPerSec,type=BrokerTopicMetrics#OneMinuteRate";
+    static private final String BYTES_OUT = "kafka.server:name=BytesOutPerSec,type=BrokerTopicMetrics#OneMinuteRate";
+
+    private final boolean terminate_;
+    private final boolean scale_;
+    private final Properties config_;
+    private final double[] noise_;
+    private final Map<String, Object> vals_;        // reused for every tick
+    private ProducerScaling scaling_;
+    private int producers_;
+    private long now_;
+    private int tick_;
+
+    public ScalingWorkload(String check, String policy) {
+        terminate_ = !check.equals("scale");
+        scale_ = !check.equals("terminate");
+        config_ = new Properties();
+        config_.setProperty("policy", policy);
+        noise_ = new double[NOISE_SAMPLES];
+        Random random = new Random(42);
+        for (int i = 0; i < noise_.length; i++)
+            noise_[i] = 1 + 0.02 * random.nextGaussian();
+        vals_ = new TreeMap<String, Object>();
+        now_ = 1400000000000L;
+        startRun();
+    }
+
+    private void startRun() {
+        scaling_ = new ProducerScaling(MESSAGES_IN_PER_SEC, config_);
+        producers_ = 0;
+    }
+
+    /* The values KafkaMonitor would get for the current tick */
+    private Map<String, Object> nextVals() {
+        double noise = noise_[tick_ % noise_.length];
+        double messagesIn = producers_ * MESSAGES_IN_PER_SEC * noise;
+        double bytesIn = messagesIn * MESSAGE_BYTES;
+        // the consumer keeps up until SATURATION_PRODUCERS, then falls behind
+        double consumed = Math.min(producers_, SATURATION_PRODUCERS) -
+            Math.max(0, producers_ - SATURATION_PRODUCERS) * 0.5;
+        double bytesOut = consumed * MESSAGES_IN_PER_SEC * MESSAGE_BYTES * noise_[(tick_ + 7) % noise_.length];
+
+        vals_.put(MESSAGES_IN, Double.valueOf(messagesIn));
+        vals_.put(BYTES_IN, Double.valueOf(bytesIn));
+        vals_.put(BYTES_OUT, Double.valueOf(Math.max(0, bytesOut)));
+        return vals_;
+    }
+
+    public Object run() {
+        Map<String, Object> vals = nextVals();
+        tick_++;
+        now_ += 3000;
+
+        if (terminate_ && scaling_.checkIfTerminate(vals)) {
+            startRun();
+            return Boolean.TRUE;
+        }
+        if (scale_ && scaling_.checkIfScaleProducers(vals, now_)) {
+            scaling_.scaled(now_);
+            scaling_.addConfirmed(MESSAGES_IN_PER_SEC);
+            producers_++;
+            if (2 * SATURATION_PRODUCERS < producers_)
+                startRun();     // without termination checks the run never ends
+            return Boolean.TRUE;
+        }
+        return Boolean.FALSE;
+    }
+
+    public void close() {
+    }
+}
@@ -0,0 +1,164 @@
+import java.io.IOException;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanServer;
+import javax.management.MBeanServerFactory;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeDataSupport;
+import javax.management.openmbean.CompositeType;
+import javax.management.openmbean.OpenDataException;
+import javax.management.openmbean.OpenType;
+import javax.management.openmbean.SimpleType;
+import javax.management.remote.JMXConnectorServer;
+import javax.management.remote.JMXConnectorServerFactory;
+import javax.management.remote.JMXServiceURL;
+
+
+/**
+ * An in-process MBeanServer with Kafka-like beans, reachable through an
+ * RMI connector on the loopback interface, so that a JmxClient reads it
+ * the way it reads a broker (each call serialized and sent over a socket)
+ * without a broker running.
+ *
+ * Each bean looks like a Kafka meter: "Count" (long), then rates
+ * (MeanRate, OneMinuteRate, ..., then Rate<i>) up to the given number of
+ * numeric attributes, the string attributes EventType and RateUnit, and
+ * with compositeWidth > 0 a CompositeData attribute "Usage" of that many
+ * long items, like the MemoryUsage of the JVM's memory beans. Values
+ * change on every read.
+ */
+public class SyntheticBroker implements AutoCloseable {
+
+    static private final String[] RATES = {
+        "MeanRate", "OneMinuteRate", "FiveMinuteRate", "FifteenMinuteRate"
+    };
+
+    private final MBeanServer server_;
+    private final JMXConnectorServer connector_;
+
+    public SyntheticBroker() throws IOException {
+        server_ = MBeanServerFactory.newMBeanServer();
+        connector_ = JMXConnectorServerFactory.newJMXConnectorServer(
+            new JMXServiceURL("service:jmx:rmi://127.0.0.1"), null, server_);
+        connector_.start();
+    }
+
+    /* JMX service URL of the connector, for JmxClient(url, ...) */
+    public String getUrl() {
+        return connector_.getAddress().toString();
+    }
+
+    public void addMeter(String name, int attributes, int compositeWidth) throws JMException {
+        server_.registerMBean(new Meter(attributes, compositeWidth), new ObjectName(name));
+    }
+
+    /* "Count,MeanRate,..." plus "Usage": the numeric attributes of a meter, in order */
+    static public String attributeList(int attributes, int compositeWidth) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < attributes; i++)
+            sb.append((i == 0) ? "" : ",").append(attributeName(i));
+        if (0 < compositeWidth)
+            sb.append(",Usage");
+        return sb.toString();
+    }
+
+    static private String attributeName(int i) {
+        if (i == 0)
+            return "Count";
+        return (i <= RATES.length) ? RATES[i - 1] : "Rate" + i;
+    }
+
+    public void close() throws IOException {
+        connector_.stop();
+    }
+
+    static private class Meter implements DynamicMBean {
+        private final int attributes_;
+        private final CompositeType usageType_;     // null without a composite
+        private final String[] itemNames_;
+        private final MBeanInfo info_;
+        private long count_;
+
+        Meter(int attributes, int compositeWidth) throws OpenDataException {
+            attributes_ = attributes;
+            itemNames_ = new String[compositeWidth];
+            OpenType<?>[] itemTypes = new OpenType<?>[compositeWidth];
+            for (int j = 0; j < compositeWidth; j++) {
+                itemNames_[j] = "item" + j;
+                itemTypes[j] = SimpleType.LONG;
+            }
+            usageType_ = (0 < compositeWidth) ?
+                new CompositeType("Usage", "Usage", itemNames_, itemNames_, itemTypes) : null;
+
+            MBeanAttributeInfo[] infos =
+                new MBeanAttributeInfo[attributes + 2 + ((usageType_ != null) ? 1 : 0)];
+            for (int i = 0; i < attributes; i++) {
+                String type = (i == 0) ? "long" : "double";
+                infos[i] = new MBeanAttributeInfo(attributeName(i), type, "", true, false, false);
+            }
+            infos[attributes] = new MBeanAttributeInfo("EventType", "java.lang.String", "", true, false, false);
+            infos[attributes + 1] = new MBeanAttributeInfo("RateUnit", "java.lang.String", "", true, false, false);
+            if (usageType_ != null)
+                infos[attributes + 2] = new MBeanAttributeInfo(
+                    "Usage", CompositeType.class.getName(), "", true, false, false);
+            info_ = new MBeanInfo(Meter.class.getName(), "Kafka-like meter", infos, null, null, null);
+        }
+
+        public synchronized Object getAttribute(String attribute) throws AttributeNotFoundException {
+            count_++;
+            if (attribute.equals("EventType"))
+                return "messages";
+            if (attribute.equals("RateUnit"))
+                return "SECONDS";
+            if (attribute.equals("Usage") && usageType_ != null) {
+                Object[] items = new Object[itemNames_.length];
+                for (int j = 0; j < items.length; j++)
+                    items[j] = Long.valueOf(count_ + j);
+                try {
+                    return new CompositeDataSupport(usageType_, itemNames_, items);
+                } catch (OpenDataException ex) {
+                    throw new IllegalStateException(ex);
+                }
+            }
+            for (int i = 0; i < attributes_; i++) {
+                if (attribute.equals(attributeName(i)))
+                    return (i == 0) ? (Object)Long.valueOf(count_) : (Object)Double.valueOf(count_ * 0.25 + i);
+            }
+            throw new AttributeNotFoundException(attribute);
+        }
+
+        public AttributeList getAttributes(String[] attributes) {
+            AttributeList list = new AttributeList(attributes.length);
+            for (String attribute : attributes) {
+                try {
+                    list.add(new Attribute(attribute, getAttribute(attribute)));
+                } catch (AttributeNotFoundException ex) {
+                    // left out, as getAttributes() does for unreadable attributes
+                }
+            }
+            return list;
+        }
+
+        public void setAttribute(Attribute attribute) {
+            throw new UnsupportedOperationException();
+        }
+
+        public AttributeList setAttributes(AttributeList attributes) {
+            return new AttributeList();
+        }
+
+        public Object invoke(String actionName, Object[] params, String[] signature) {
+            throw new UnsupportedOperationException(actionName);
+        }
+
+        public MBeanInfo getMBeanInfo() {
+            return info_;
+        }
+    }
+}
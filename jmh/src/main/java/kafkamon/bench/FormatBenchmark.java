@@ -0,0 +1,57 @@
+package kafkamon.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * Time to format the log line of one tick (FormatWorkload).
+ *
+ *   metrics    values in the tick; KafkaMonitor logs 3
+ *   formatter  "kafkamon": KafkaMonitor.formatTick(), "sample":
+ *              JmxMonitor's SampleFormatter
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FormatBenchmark {
+
+    @Param({"3", "100", "1000"})
+    int metrics;
+
+    @Param({"kafkamon", "sample"})
+    String formatter;
+
+    private Workload workload_;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        workload_ = Workload.create("FormatWorkload", metrics, formatter.equals("sample"));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        workload_.close();
+    }
+
+    @Benchmark
+    public Object formatTick() throws Exception {
+        return workload_.run();
+    }
+}
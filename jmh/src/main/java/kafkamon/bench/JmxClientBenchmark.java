@@ -0,0 +1,68 @@
+package kafkamon.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * Latency of one steady-state read of a Kafka-like bean through JmxClient,
+ * over RMI on the loopback interface to an in-process MBeanServer
+ * (JmxClientWorkload).
+ *
+ *   attributes      numeric attributes of the bean
+ *   compositeWidth  items of its CompositeData attribute, 0 for none
+ *   list            "explicit" names the numeric attributes, "wildcard"
+ *                   reads "*", which adds the two string attributes
+ *   read            "map": getAttributeValues(), "frame": readValues()
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class JmxClientBenchmark {
+
+    @Param({"4", "16", "64"})
+    int attributes;
+
+    @Param({"0", "8"})
+    int compositeWidth;
+
+    @Param({"explicit", "wildcard"})
+    String list;
+
+    @Param({"map", "frame"})
+    String read;
+
+    private Workload workload_;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        workload_ = Workload.create("JmxClientWorkload", attributes, compositeWidth,
+                                    list.equals("wildcard"), read.equals("frame"));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        workload_.close();
+    }
+
+    @Benchmark
+    public Object readBean() throws Exception {
+        return workload_.run();
+    }
+}
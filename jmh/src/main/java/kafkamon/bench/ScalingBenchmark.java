@@ -0,0 +1,58 @@
+package kafkamon.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * Time of KafkaMonitor's producer scaling decisions for one tick
+ * (ScalingWorkload).
+ *
+ *   check  "terminate": checkIfTerminate(), "scale":
+ *          checkIfScaleProducers(), "both": both, as in a monitor tick
+ *   policy the ScalingPolicy: "kofn", "ewma" or "pid"
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ScalingBenchmark {
+
+    @Param({"terminate", "scale", "both"})
+    String check;
+
+    @Param({"kofn", "ewma", "pid"})
+    String policy;
+
+    private Workload workload_;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        workload_ = Workload.create("ScalingWorkload", check, policy);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        workload_.close();
+    }
+
+    @Benchmark
+    public Object decide() throws Exception {
+        return workload_.run();
+    }
+}
@@ -0,0 +1,27 @@
+package kafkamon.bench;
+
+import java.lang.reflect.Constructor;
+
+
+/**
+ * The body of a benchmark. JMH does not accept benchmarks in the default
+ * package and a named package cannot refer to classes in the default
+ * package, so each benchmark here drives a workload class that sits in
+ * the default package next to the monitor classes it measures, created
+ * by name in the benchmark's setup.
+ */
+public interface Workload extends AutoCloseable {
+
+    /* One measured operation; the benchmark sinks the result into a Blackhole */
+    Object run() throws Exception;
+
+    /* Creates the default package class className with the constructor matching args */
+    static Workload create(String className, Object... args) throws Exception {
+        for (Constructor<?> constructor : Class.forName(className).getConstructors()) {
+            if (constructor.getParameterCount() == args.length)
+                return (Workload)constructor.newInstance(args);
+        }
+        throw new IllegalArgumentException("No constructor of " + className +
+                                           " with " + args.length + " arguments");
+    }
+}